@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.benchmarks;
+
+import com.andrewmccall.accounts.core.User;
+
+/**
+ * Fixed test data, so runs are comparable with each other.
+ */
+public final class Fixtures {
+
+    public static final long TWITTER_ID = 14184588l;
+
+    /**
+     * A verify_credentials response trimmed to the fields we read plus a few we don't, roughly the shape twitter sends.
+     */
+    public static final String VERIFY_CREDENTIALS = "{\"id\":" + TWITTER_ID + "," +
+            "\"name\":\"Andrew McCall\"," +
+            "\"screen_name\":\"andrewmccall\"," +
+            "\"location\":\"London, UK\"," +
+            "\"description\":\"Writes software, sometimes it even works.\"," +
+            "\"url\":\"http://www.andrewmccall.com\"," +
+            "\"followers_count\":1024," +
+            "\"friends_count\":512," +
+            "\"time_zone\":\"London\"," +
+            "\"utc_offset\":0," +
+            "\"protected\":false," +
+            "\"statuses_count\":4096," +
+            "\"profile_image_url\":\"http://a1.twimg.com/profile_images/1/me_normal.jpg\"," +
+            "\"created_at\":\"Wed Mar 19 13:16:47 +0000 2008\"}";
+
+    /**
+     * A verify_credentials response as twitter sends it, with the profile styling and the latest status, whose own id
+     * and nested objects the parser has to step over.
+     */
+    public static final String VERIFY_CREDENTIALS_FULL = "{\"profile_background_tile\":false," +
+            "\"profile_sidebar_border_color\":\"C0DEED\"," +
+            "\"profile_sidebar_fill_color\":\"DDEEF6\"," +
+            "\"profile_background_color\":\"C0DEED\"," +
+            "\"profile_link_color\":\"0084B4\"," +
+            "\"profile_text_color\":\"333333\"," +
+            "\"profile_use_background_image\":true," +
+            "\"profile_background_image_url\":\"http:\\/\\/a3.twimg.com\\/profile_background_images\\/1\\/bg.png\"," +
+            "\"profile_image_url\":\"http:\\/\\/a1.twimg.com\\/profile_images\\/1\\/me_normal.jpg\"," +
+            "\"description\":\"Writes software, sometimes it even works.\"," +
+            "\"screen_name\":\"andrewmccall\"," +
+            "\"status\":{\"coordinates\":null,\"favorited\":false,\"truncated\":false," +
+            "\"created_at\":\"Tue Jul 20 09:12:44 +0000 2010\",\"id\":19027826573," +
+            "\"in_reply_to_user_id\":null,\"contributors\":null,\"place\":null,\"geo\":null," +
+            "\"source\":\"\\u003Ca href=\\\"http:\\/\\/www.tweetdeck.com\\\" rel=\\\"nofollow\\\"\\u003ETweetDeck\\u003C\\/a\\u003E\"," +
+            "\"in_reply_to_status_id\":null,\"in_reply_to_screen_name\":null," +
+            "\"text\":\"Tuning the login path, it's {mostly} JSON. \\u2014 and a quote: \\\"done\\\"\"}," +
+            "\"url\":\"http:\\/\\/www.andrewmccall.com\"," +
+            "\"name\":\"Andrew McCall\"," +
+            "\"lang\":\"en\"," +
+            "\"followers_count\":1024," +
+            "\"friends_count\":512," +
+            "\"favourites_count\":12," +
+            "\"statuses_count\":4096," +
+            "\"listed_count\":32," +
+            "\"utc_offset\":0," +
+            "\"time_zone\":\"London\"," +
+            "\"location\":\"London, UK\"," +
+            "\"id\":" + TWITTER_ID + "," +
+            "\"protected\":false," +
+            "\"verified\":false," +
+            "\"geo_enabled\":false," +
+            "\"notifications\":false," +
+            "\"following\":false," +
+            "\"contributors_enabled\":false," +
+            "\"follow_request_sent\":false," +
+            "\"created_at\":\"Wed Mar 19 13:16:47 +0000 2008\"}";
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param user the user to fill in.
+     * @param twitterId the twitterId to give them.
+     * @return the user, with every field except the id set.
+     */
+    public static <T> User<T> fill(User<T> user, long twitterId) {
+        user.setTwitterId(twitterId);
+        user.setUsername("user" + twitterId);
+        user.setName("Andrew McCall");
+        user.setBio("Writes software, sometimes it even works.");
+        user.setWebsite("http://www.andrewmccall.com");
+        user.setLocation("London, UK");
+        user.setFollowers(1024);
+        user.setFriends(512);
+        user.setTimeZoneId("Europe/London");
+        return user;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.benchmarks;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.AsyncTokenWriter;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeService;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import com.andrewmccall.accounts.memory.AccountService;
+import com.andrewmccall.accounts.memory.springsecurity.rememberme.TokenRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures a remember-me cookie login, RememberMeService.processAutoLoginCookie, against the in-memory stores. Every
+ * call rotates the token, so each thread logs in with its own series and picks up the new token value after each call
+ * just as a browser would. Run both with and without the AsyncTokenWriter.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RememberMeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Services {
+
+        /**
+         * Whether rotated tokens are written through an AsyncTokenWriter.
+         */
+        @Param({"false", "true"})
+        public boolean async;
+
+        AccountService accountService;
+        TokenRepository tokenRepository;
+        RememberMeService rememberMeService;
+
+        final AtomicLong twitterIds = new AtomicLong(Fixtures.TWITTER_ID);
+
+        @Setup
+        public void setup() throws Exception {
+            accountService = new AccountService();
+            tokenRepository = new TokenRepository();
+
+            SpringSecurityService securityService = new SpringSecurityService();
+            ReflectionTestUtils.setField(securityService, "accountService", accountService);
+
+            rememberMeService = new RememberMeService();
+            ReflectionTestUtils.setField(rememberMeService, "accountService", accountService);
+            ReflectionTestUtils.setField(rememberMeService, "tokenRepository", tokenRepository);
+            rememberMeService.setUserDetailsService(securityService);
+
+            if (async) {
+                AsyncTokenWriter writer = new AsyncTokenWriter(tokenRepository);
+                writer.start();
+                rememberMeService.setTokenWriter(writer);
+            }
+        }
+
+        @TearDown
+        public void close() {
+            if (rememberMeService.getTokenWriter() != null)
+                rememberMeService.getTokenWriter().close();
+        }
+
+        String currentValue(String series, User<Long> user) throws Exception {
+            RememberMeToken token = null;
+            if (rememberMeService.getTokenWriter() != null)
+                token = rememberMeService.getTokenWriter().getPending(series, user);
+            if (token == null)
+                token = tokenRepository.getToken(series, user);
+            return token.getValue();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cookie {
+
+        User<Long> user;
+        String[] tokens;
+
+        @Setup
+        public void setup(Services services) throws Exception {
+            user = Fixtures.fill(new User<Long>(), services.twitterIds.incrementAndGet());
+            services.accountService.createUser(user);
+
+            RememberMeToken token = new RememberMeToken("series" + user.getId(), user, "token", new Date());
+            services.tokenRepository.create(token);
+            tokens = new String[]{user.getId().toString(), token.getSeries(), token.getValue()};
+        }
+    }
+
+    @Benchmark
+    public UserDetails processAutoLoginCookie(Services services, Cookie cookie) throws Exception {
+        UserDetails details = services.rememberMeService.processAutoLoginCookie(cookie.tokens, new MockHttpServletRequest(), new MockHttpServletResponse());
+        cookie.tokens[2] = services.currentValue(cookie.tokens[1], cookie.user);
+        return details;
+    }
+
+}
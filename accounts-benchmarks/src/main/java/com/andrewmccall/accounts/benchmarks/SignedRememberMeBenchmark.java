@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.benchmarks;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.SignedRememberMeService;
+import com.andrewmccall.accounts.memory.AccountService;
+import com.andrewmccall.accounts.memory.springsecurity.rememberme.TokenRepository;
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures a signed remember-me cookie login, SignedRememberMeService.processAutoLoginCookie, against the in-memory
+ * stores, to compare with RememberMeBenchmark. The cookie is never rotated so each thread presents the same one, and
+ * the login reads neither the user nor the revocations, which are refreshed on a thread of their own. revoked is the
+ * number of other users with a revocation in force.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SignedRememberMeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Services {
+
+        @Param({"0", "10000"})
+        public int revoked;
+
+        AccountService accountService;
+        TokenRepository tokenRepository;
+        SignedRememberMeService rememberMeService;
+
+        final AtomicLong twitterIds = new AtomicLong(Fixtures.TWITTER_ID);
+
+        @Setup
+        public void setup() throws Exception {
+            accountService = new AccountService();
+            tokenRepository = new TokenRepository();
+
+            for (int i = 0; i < revoked; i++) {
+                User<Long> user = Fixtures.fill(new User<Long>(), twitterIds.incrementAndGet());
+                accountService.createUser(user);
+                tokenRepository.revoke("series" + i, user);
+            }
+
+            SpringSecurityService securityService = new SpringSecurityService();
+            ReflectionTestUtils.setField(securityService, "accountService", accountService);
+
+            rememberMeService = new SignedRememberMeService();
+            ReflectionTestUtils.setField(rememberMeService, "accountService", accountService);
+            ReflectionTestUtils.setField(rememberMeService, "tokenRepository", tokenRepository);
+            rememberMeService.setUserDetailsService(securityService);
+            rememberMeService.setKey("benchmark-key");
+            rememberMeService.setCookieName("remember");
+            rememberMeService.afterPropertiesSet();
+        }
+
+        @TearDown
+        public void close() {
+            rememberMeService.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cookie {
+
+        String[] tokens;
+
+        @Setup
+        public void setup(Services services) throws Exception {
+            User<Long> user = Fixtures.fill(new User<Long>(), services.twitterIds.incrementAndGet());
+            services.accountService.createUser(user);
+
+            // log in once, asking to be remembered, to get a cookie.
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setParameter("_remember_me", "true");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            services.rememberMeService.loginSuccess(request, response, new TestingAuthenticationToken(user.getId().toString(), ""));
+            tokens = new String(Base64.decodeBase64(response.getCookie("remember").getValue().getBytes())).split(":");
+        }
+    }
+
+    @Benchmark
+    public UserDetails processAutoLoginCookie(Services services, Cookie cookie) throws Exception {
+        return services.rememberMeService.processAutoLoginCookie(cookie.tokens, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.benchmarks;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
+import com.andrewmccall.accounts.memory.AccountService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SpringSecurityService.loadUserByUsername, which runs on every authenticated request, against the in-memory
+ * AccountService.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SpringSecurityServiceBenchmark {
+
+    @Param({"1000"})
+    public int users;
+
+    private SpringSecurityService securityService;
+    private String[] ids;
+
+    @Setup
+    public void setup() throws Exception {
+        AccountService accountService = new AccountService();
+        securityService = new SpringSecurityService();
+        ReflectionTestUtils.setField(securityService, "accountService", accountService);
+
+        ids = new String[users];
+        for (int i = 0; i < users; i++) {
+            User<Long> user = Fixtures.fill(new User<Long>(), Fixtures.TWITTER_ID + i);
+            accountService.createUser(user);
+            ids[i] = user.getId().toString();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public UserDetails loadUserByUsername(Cursor cursor) {
+        String id = ids[cursor.next++ % ids.length];
+        return securityService.loadUserByUsername(id);
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.benchmarks;
+
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeService;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.SecureRandomTokenGenerator;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.TokenGenerator;
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-thread SecureRandomTokenGenerator with the single shared SecureRandom RememberMeService used to
+ * have. Run it at a few thread counts to see how each scales, e.g.
+ * <pre>
+ * for t in 1 2 4 8; do java -jar target/benchmarks.jar TokenGenerator -t $t; done
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TokenGeneratorBenchmark {
+
+    private TokenGenerator threadLocal;
+    private SecureRandom shared;
+
+    @Setup
+    public void setup() throws Exception {
+        threadLocal = new SecureRandomTokenGenerator();
+        shared = SecureRandom.getInstance(SecureRandomTokenGenerator.DEFAULT_ALGORITHM);
+    }
+
+    @Benchmark
+    public String threadLocal() {
+        return threadLocal.generate(RememberMeService.DEFAULT_TOKEN_LENGTH);
+    }
+
+    @Benchmark
+    public String shared() {
+        byte[] bytes = new byte[RememberMeService.DEFAULT_TOKEN_LENGTH];
+        shared.nextBytes(bytes);
+        return new String(Base64.encodeBase64(bytes));
+    }
+
+}
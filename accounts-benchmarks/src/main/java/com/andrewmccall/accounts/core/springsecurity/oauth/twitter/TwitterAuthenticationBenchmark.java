@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.benchmarks.Fixtures;
+import com.andrewmccall.accounts.memory.AccountService;
+import com.andrewmccall.accounts.core.User;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what a twitter login does once verify_credentials has answered: TwitterAuthenticationProvider's
+ * getAndUpdateUser against the in-memory AccountService. Lives in the provider's package since getAndUpdateUser is
+ * protected.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TwitterAuthenticationBenchmark {
+
+    private TwitterAuthenticationProvider provider;
+
+    private User<Long> unchanged;
+
+    @Setup
+    public void setup() throws Exception {
+        AccountService accountService = new AccountService();
+        provider = new TwitterAuthenticationProvider();
+        ReflectionTestUtils.setField(provider, "accountService", accountService);
+
+        unchanged = VerifyCredentialsParser.parse(new StringReader(Fixtures.VERIFY_CREDENTIALS));
+        provider.getAndUpdateUser(unchanged);
+    }
+
+    @State(Scope.Thread)
+    public static class Changing {
+
+        User<Long>[] profiles;
+        int next;
+
+        @Setup
+        @SuppressWarnings({"unchecked"})
+        public void setup() throws Exception {
+            profiles = new User[2];
+            for (int i = 0; i < profiles.length; i++) {
+                profiles[i] = VerifyCredentialsParser.parse(new StringReader(Fixtures.VERIFY_CREDENTIALS));
+                profiles[i].setFollowers(1000 + i);
+            }
+        }
+    }
+
+    /**
+     * The common case, a returning user whose profile hasn't changed.
+     */
+    @Benchmark
+    public User unchangedProfile() throws Exception {
+        return provider.getAndUpdateUser(unchanged);
+    }
+
+    /**
+     * A returning user whose follower count changed, so the user is written back.
+     */
+    @Benchmark
+    public User changedProfile(Changing changing) throws Exception {
+        return provider.getAndUpdateUser(changing.profiles[changing.next++ & 1]);
+    }
+
+    /**
+     * The unchanged case including parsing the response body.
+     */
+    @Benchmark
+    public User parseAndUnchangedProfile() throws Exception {
+        return provider.getAndUpdateUser(VerifyCredentialsParser.parse(new StringReader(Fixtures.VERIFY_CREDENTIALS)));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.benchmarks.Fixtures;
+import com.andrewmccall.accounts.core.User;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a verify_credentials body with VerifyCredentialsParser against what the provider used to do:
+ * read it line by line into a StringBuffer, build a JSONObject tree and pick the fields out of it.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class VerifyCredentialsParserBenchmark {
+
+    /**
+     * trimmed is the short fixture, full is a response as twitter sends it, latest status included.
+     */
+    @Param({"trimmed", "full"})
+    public String payload;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        body = ("full".equals(payload) ? Fixtures.VERIFY_CREDENTIALS_FULL : Fixtures.VERIFY_CREDENTIALS).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public User<Long> streaming() throws Exception {
+        return VerifyCredentialsParser.parse(new ByteArrayInputStream(body));
+    }
+
+    @Benchmark
+    public User<Long> jsonObject() throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        StringBuffer buf = new StringBuffer();
+        String line;
+        while (null != (line = br.readLine())) {
+            buf.append(line).append("\n");
+        }
+        JSONObject json = new JSONObject(buf.toString());
+
+        User<Long> profile = new User<Long>();
+        profile.setTwitterId(json.getLong("id"));
+        profile.setName(json.getString("name"));
+        profile.setUsername(json.getString("screen_name"));
+        profile.setLocation(json.getString("location"));
+        profile.setBio(json.getString("description"));
+        profile.setWebsite(json.getString("url"));
+        profile.setFollowers(json.getInt("followers_count"));
+        profile.setFriends(json.getInt("friends_count"));
+        profile.setTimeZoneId(TimeZone.getTimeZone(json.getString("time_zone")).getID());
+        return profile;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.benchmarks.Fixtures;
+import com.andrewmccall.accounts.core.User;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the HBase AccountService's row codecs, resultToUser and toOperations, without a cluster, for both the
+ * column per field and the compact profile layouts. Lives in the service's package since the codecs are protected.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private AccountService accountService;
+    private User<UUID> user;
+    private byte[] row;
+    private KeyValue[] keyValues;
+
+    @Setup
+    public void setup() {
+        accountService = new AccountService();
+        accountService.setUseCompactEncoding(compact);
+
+        user = Fixtures.fill(new User<UUID>(), Fixtures.TWITTER_ID);
+        user.setId(UUID.randomUUID());
+        row = Bytes.toBytes(user.getId().toString());
+
+        Put put = new Put(row);
+        accountService.toOperations(put, user, User.ALL_FIELDS);
+
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (List<KeyValue> family : put.getFamilyMap().values())
+            kvs.addAll(family);
+        keyValues = kvs.toArray(new KeyValue[kvs.size()]);
+        // a Result from the server is sorted, getValue relies on it.
+        Arrays.sort(keyValues, KeyValue.COMPARATOR);
+    }
+
+    @Benchmark
+    public User<UUID> resultToUser() {
+        // Result caches the family map it builds on first access, so a fresh one each time, like a real Get.
+        return AccountService.resultToUser(new Result(keyValues));
+    }
+
+    @Benchmark
+    public void toOperations(Blackhole blackhole) {
+        Put put = new Put(row);
+        accountService.toOperations(put, user, User.ALL_FIELDS);
+        blackhole.consume(put);
+    }
+
+}
@@ -4,6 +4,9 @@
 
 package com.andrewmccall.accounts.core;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Provides all the required methods for managing accounts, user and persisting them.
  */
@@ -33,6 +36,24 @@ public interface AccountService<T> {
      */
     User<T> getUser (String idString) throws AccountsException;
 
+    /**
+     * Gets a user based on the id of the user as a String, fetching only as much of it as the view needs.
+     * @param idString the User's id as a string
+     * @param view the fields needed, any others may be left null.
+     * @return a user if one exists, null if one can't be found.
+     * @throws AccountsException to wrap any underlying exception thrown.
+     */
+    User<T> getUser (String idString, UserView view) throws AccountsException;
+
+    /**
+     * Gets several users at once, implementations fetch them in as few round trips to the store as they can. Unlike
+     * getUser a missing id is not an error, it's simply left out of the returned map.
+     * @param ids the ids of the Users to get, duplicates are ignored.
+     * @return a map of id to User, iterating in the order the ids were given. Never null.
+     * @throws AccountsException to wrap any underlying exception thrown.
+     */
+    Map<T, User<T>> getUsers (Collection<T> ids) throws AccountsException;
+
     /**
      * checks to see if a user exists for the given twitterId. Will return true if a user with the given oauth ID has
      * ever logged in (or hasn't subsequently deleted their account).
@@ -57,4 +78,15 @@ public interface AccountService<T> {
      * @throws AccountsException to wrap any underlying exception thrown.
      */
     User<T> getUserForTwitterId(long twitterId) throws AccountsException;
+
+    /**
+     * finds the user with the profile's twitterId and copies the profile onto it, writing it back only if something
+     * changed. If no user has the twitterId a new one is created from the profile. This is what a login does, and
+     * implementations should do it in a single lookup plus at most one write.
+     *
+     * @param profile a user holding the twitterId and the profile to store, its id is ignored.
+     * @return the stored user and whether it was created or changed.
+     * @throws AccountsException to wrap any underlying exception thrown.
+     */
+    UpsertResult<T> upsertForTwitterId(User<T> profile) throws AccountsException;
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.core;
+
+/**
+ * The outcome of {@link AccountService#upsertForTwitterId(User)}, the stored user and what had to be done to it.
+ */
+public class UpsertResult<T> {
+
+    private final User<T> user;
+    private final boolean created;
+    private final boolean changed;
+
+    public UpsertResult(User<T> user, boolean created, boolean changed) {
+        this.user = user;
+        this.created = created;
+        this.changed = changed;
+    }
+
+    /**
+     * @return the stored user, with its id set.
+     */
+    public User<T> getUser() {
+        return user;
+    }
+
+    /**
+     * @return true if no user had the twitterId and a new one was created.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * @return true if an existing user's profile was changed and written back.
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return "UpsertResult{" +
+                "user=" + user +
+                ", created=" + created +
+                ", changed=" + changed +
+                '}';
+    }
+}
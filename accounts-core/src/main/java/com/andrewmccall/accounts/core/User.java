@@ -23,6 +23,20 @@ public class User<T> implements Serializable {
     private static final long serialVersionUID = -3847458699405927276L;
     private static final Log log = LogFactory.getLog(User.class);
 
+    /*
+     * The bits getDirtyFields uses for each field.
+     */
+    public static final int FIELD_USERNAME = 1;
+    public static final int FIELD_TWITTER_ID = 1 << 1;
+    public static final int FIELD_NAME = 1 << 2;
+    public static final int FIELD_BIO = 1 << 3;
+    public static final int FIELD_WEBSITE = 1 << 4;
+    public static final int FIELD_LOCATION = 1 << 5;
+    public static final int FIELD_FOLLOWERS = 1 << 6;
+    public static final int FIELD_FRIENDS = 1 << 7;
+    public static final int FIELD_TIME_ZONE = 1 << 8;
+    public static final int ALL_FIELDS = (1 << 9) - 1;
+
     /**
      * The user ID for this user, used to identify the user and it's realtionship database,
      * filesystem and other forms of storage.
@@ -76,6 +90,13 @@ public class User<T> implements Serializable {
      */
     private transient TimeZone timeZone = null;
 
+    /**
+     * The fields changed since the user was loaded. A user that wasn't loaded from a store has no idea what's stored,
+     * so it starts with every field dirty, stores clear it when they load or write the user. It isn't serialized, a
+     * deserialized user starts clean.
+     */
+    private transient int dirty = ALL_FIELDS;
+
     public User() {
         if (log.isTraceEnabled())
             log.trace("Creating new instance of " + this.getClass().getName());
@@ -96,6 +117,8 @@ public class User<T> implements Serializable {
     }
 
     public void setUsername(String username) {
+        if (!equal(this.username, username))
+            dirty |= FIELD_USERNAME;
         this.username = username;
     }
 
@@ -104,6 +127,8 @@ public class User<T> implements Serializable {
     }
 
     public void setTwitterId(long twitterId) {
+        if (this.twitterId != twitterId)
+            dirty |= FIELD_TWITTER_ID;
         this.twitterId = twitterId;
     }
 
@@ -114,6 +139,8 @@ public class User<T> implements Serializable {
     }
 
     public void setName(String name) {
+        if (!equal(this.name, name))
+            dirty |= FIELD_NAME;
         this.name = name;
     }
 
@@ -123,6 +150,8 @@ public class User<T> implements Serializable {
     }
 
     public void setBio(String bio) {
+        if (!equal(this.bio, bio))
+            dirty |= FIELD_BIO;
         this.bio = bio;
     }
 
@@ -132,6 +161,8 @@ public class User<T> implements Serializable {
     }
 
     public void setWebsite(String website) {
+        if (!equal(this.website, website))
+            dirty |= FIELD_WEBSITE;
         this.website = website;
     }
 
@@ -141,6 +172,8 @@ public class User<T> implements Serializable {
     }
 
     public void setLocation(String location) {
+        if (!equal(this.location, location))
+            dirty |= FIELD_LOCATION;
         this.location = location;
     }
 
@@ -149,6 +182,8 @@ public class User<T> implements Serializable {
     }
 
     public void setFollowers(int followers) {
+        if (this.followers != followers)
+            dirty |= FIELD_FOLLOWERS;
         this.followers = followers;
     }
 
@@ -157,6 +192,8 @@ public class User<T> implements Serializable {
     }
 
     public void setFriends(int friends) {
+        if (this.friends != friends)
+            dirty |= FIELD_FRIENDS;
         this.friends = friends;
     }
 
@@ -167,15 +204,110 @@ public class User<T> implements Serializable {
     }
 
     public void setTimeZoneId(String timeZoneId) {
+        TimeZone previous = this.timeZone;
         if (timeZoneId != null)
             this.timeZone = TimeZone.getTimeZone(timeZoneId);
         else this.timeZone = null;
+        if (!equal(previous != null ? previous.getID() : null, this.timeZone != null ? this.timeZone.getID() : null))
+            dirty |= FIELD_TIME_ZONE;
     }
 
     public String getTimeZoneId() {
         return getTimeZone().getID();
     }
 
+    /**
+     * Copies the profile, everything except the id and twitterId, from another user onto this one.
+     *
+     * @param from the user to copy from.
+     * @return true if any field on this user changed.
+     */
+    public boolean copyProfile(User<?> from) {
+        String timeZoneId = from.timeZone != null ? from.timeZone.getID() : null;
+        boolean changed = !equal(username, from.username)
+                || !equal(name, from.name)
+                || !equal(bio, from.bio)
+                || !equal(website, from.website)
+                || !equal(location, from.location)
+                || followers != from.followers
+                || friends != from.friends
+                || !equal(timeZone != null ? timeZone.getID() : null, timeZoneId);
+
+        if (changed) {
+            setUsername(from.username);
+            setName(from.name);
+            setBio(from.bio);
+            setWebsite(from.website);
+            setLocation(from.location);
+            setFollowers(from.followers);
+            setFriends(from.friends);
+            setTimeZoneId(timeZoneId);
+        }
+        return changed;
+    }
+
+    /**
+     * Copies some of the fields from another user onto this one, the stores use it to apply a user's changes to the
+     * stored copy without touching the rest.
+     *
+     * @param from the user to copy from.
+     * @param fields the FIELD_ bits of the fields to copy.
+     */
+    public void copyFields(User<?> from, int fields) {
+        if ((fields & FIELD_USERNAME) != 0)
+            setUsername(from.username);
+        if ((fields & FIELD_TWITTER_ID) != 0)
+            setTwitterId(from.twitterId);
+        if ((fields & FIELD_NAME) != 0)
+            setName(from.name);
+        if ((fields & FIELD_BIO) != 0)
+            setBio(from.bio);
+        if ((fields & FIELD_WEBSITE) != 0)
+            setWebsite(from.website);
+        if ((fields & FIELD_LOCATION) != 0)
+            setLocation(from.location);
+        if ((fields & FIELD_FOLLOWERS) != 0)
+            setFollowers(from.followers);
+        if ((fields & FIELD_FRIENDS) != 0)
+            setFriends(from.friends);
+        if ((fields & FIELD_TIME_ZONE) != 0)
+            setTimeZoneId(from.timeZone != null ? from.timeZone.getID() : null);
+    }
+
+    /**
+     * @return the FIELD_ bits of every field changed since the user was loaded or written, ALL_FIELDS for a user that
+     *         didn't come from a store.
+     */
+    public int getDirtyFields() {
+        return dirty;
+    }
+
+    /**
+     * @return true if any field has changed, a store can skip writing a user that isn't dirty.
+     */
+    public boolean isDirty() {
+        return dirty != 0;
+    }
+
+    /**
+     * @param fields FIELD_ bits.
+     * @return true if any of the fields has changed.
+     */
+    public boolean isDirty(int fields) {
+        return (dirty & fields) != 0;
+    }
+
+    /**
+     * Marks the user as matching what's stored, called by the stores once they've loaded or written it.
+     */
+    public void clearDirty() {
+        dirty = 0;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
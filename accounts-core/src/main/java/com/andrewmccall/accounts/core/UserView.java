@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core;
+
+/**
+ * How much of a user a lookup needs, so stores that can fetch part of a user don't have to fetch all of it. A store
+ * is always free to return more than was asked for.
+ */
+public enum UserView {
+
+    /**
+     * Every field.
+     */
+    FULL,
+
+    /**
+     * What authentication needs: the id, twitterId, username and time zone. The rest of the profile may be null, so
+     * don't show or update a user loaded with it.
+     */
+    AUTH
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+
+import java.util.Iterator;
+
+/**
+ * Moves users in and out of a backend in bulk, bypassing the one user at a time checks of the AccountService. Both
+ * directions stream, implementations hold at most one batch of users in memory however many they're given.
+ * <p/>
+ * Ids aren't portable between backends so imported users are always given new ones, the twitterId is what ties an
+ * imported user to the one exported. Imports are meant for a store that doesn't have the twitterIds yet, they don't
+ * check for existing users the way createUser does.
+ */
+public interface BulkAccountStore<T> {
+
+    /**
+     * Writes every user, in batches.
+     *
+     * @param users the users to write, their ids are ignored.
+     * @return the number of users written.
+     * @throws AccountsException if a batch couldn't be written, the batches before it are kept.
+     */
+    long importUsers(Iterator<? extends User<?>> users) throws AccountsException;
+
+    /**
+     * Reads every user in the store.
+     *
+     * @param handler given each user in turn.
+     * @return the number of users read.
+     * @throws AccountsException if the store couldn't be read or the handler threw.
+     */
+    long exportUsers(UserHandler<T> handler) throws AccountsException;
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Streams users between a BulkAccountStore and the line format in {@link UserLines}. To move users from one backend
+ * to another export them from one and import the file into the other, ids are reassigned on import.
+ * <p/>
+ * Can be run from the command line with the backend's Spring config, which must define exactly one BulkAccountStore:
+ * <pre>
+ * BulkTool com/andrewmccall/accounts/accounts-services-config.xml export users.json
+ * BulkTool com/andrewmccall/accounts/accounts-services-config.xml import users.json
+ * </pre>
+ * Files are read and written as UTF-8.
+ */
+public class BulkTool {
+
+    public static final String CHARSET = "UTF-8";
+
+    private static final Logger log = LoggerFactory.getLogger(BulkTool.class);
+
+    private final BulkAccountStore<?> store;
+
+    public BulkTool(BulkAccountStore<?> store) {
+        this.store = store;
+    }
+
+    /**
+     * Writes every user in the store to out, one per line. out is flushed but not closed.
+     *
+     * @param out where to write the users.
+     * @return the number of users written.
+     * @throws AccountsException if the store couldn't be read or out couldn't be written.
+     */
+    public long exportUsers(Writer out) throws AccountsException {
+        return export(store, out);
+    }
+
+    private static <T> long export(BulkAccountStore<T> store, Writer out) throws AccountsException {
+        UserWriter<T> writer = new UserWriter<T>(out);
+        long count = store.exportUsers(writer);
+        writer.flush();
+        if (log.isInfoEnabled())
+            log.info("Exported " + count + " users.");
+        return count;
+    }
+
+    /**
+     * Reads users from in, one per line, and imports them into the store. in isn't closed.
+     *
+     * @param in where to read the users from.
+     * @return the number of users imported.
+     * @throws AccountsException if a line couldn't be read or parsed, or the store couldn't write a batch. The batches
+     *                           written before the failure are kept.
+     */
+    public long importUsers(Reader in) throws AccountsException {
+        UserReader reader = new UserReader(in);
+        long count;
+        try {
+            count = store.importUsers(reader);
+        } catch (IllegalStateException e) {
+            throw new AccountsException("Import failed at line " + reader.getLineNumber(), e);
+        }
+        if (log.isInfoEnabled())
+            log.info("Imported " + count + " users.");
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 || !("import".equals(args[1]) || "export".equals(args[1]))) {
+            System.err.println("Usage: BulkTool <spring config> import|export <file>");
+            System.exit(1);
+        }
+
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(args[0]);
+        try {
+            Map stores = context.getBeansOfType(BulkAccountStore.class);
+            if (stores.size() != 1)
+                throw new IllegalStateException("Expected one BulkAccountStore in " + args[0] + " but found " + stores.keySet());
+            BulkTool tool = new BulkTool((BulkAccountStore<?>) stores.values().iterator().next());
+
+            if ("export".equals(args[1])) {
+                Writer out = new OutputStreamWriter(new FileOutputStream(args[2]), CHARSET);
+                try {
+                    tool.exportUsers(out);
+                } finally {
+                    out.close();
+                }
+            } else {
+                Reader in = new InputStreamReader(new FileInputStream(args[2]), CHARSET);
+                try {
+                    tool.importUsers(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            context.close();
+        }
+    }
+}
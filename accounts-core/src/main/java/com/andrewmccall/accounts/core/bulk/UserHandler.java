@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+
+/**
+ * Receives users one at a time as they're exported.
+ */
+public interface UserHandler<T> {
+
+    /**
+     * @param user the next user, only valid until this returns, a store may reuse or clear it afterwards.
+     * @throws AccountsException to stop the export.
+     */
+    void handle(User<T> user) throws AccountsException;
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.User;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The line format used by the bulk tools, one JSON object per user per line. Fields that are null are left out, and
+ * the id is written as a String so users from any backend can be written and read back.
+ */
+public final class UserLines {
+
+    public static final String ID = "id";
+    public static final String TWITTER_ID = "twitterId";
+    public static final String USERNAME = "username";
+    public static final String NAME = "name";
+    public static final String BIO = "bio";
+    public static final String WEBSITE = "website";
+    public static final String LOCATION = "location";
+    public static final String FOLLOWERS = "followers";
+    public static final String FRIENDS = "friends";
+    public static final String TIME_ZONE_ID = "timeZoneId";
+
+    private UserLines() {
+    }
+
+    /**
+     * @param user the user to write.
+     * @return the user as a single line, without the line separator.
+     */
+    public static String format(User<?> user) {
+        try {
+            JSONObject json = new JSONObject();
+            if (user.getId() != null)
+                json.put(ID, String.valueOf(user.getId()));
+            json.put(TWITTER_ID, user.getTwitterId());
+            json.put(USERNAME, user.getUsername());
+            json.put(NAME, user.getName());
+            json.put(BIO, user.getBio());
+            json.put(WEBSITE, user.getWebsite());
+            json.put(LOCATION, user.getLocation());
+            json.put(FOLLOWERS, user.getFollowers());
+            json.put(FRIENDS, user.getFriends());
+            json.put(TIME_ZONE_ID, user.getTimeZoneId());
+            return json.toString();
+        } catch (JSONException e) {
+            // only thrown for non-finite numbers, which a user doesn't have.
+            throw new IllegalStateException("Couldn't format user: " + user, e);
+        }
+    }
+
+    /**
+     * @param line a line written by format.
+     * @return the user, with the id it was exported with.
+     * @throws JSONException if the line isn't a JSON object or has no twitterId.
+     */
+    public static User<String> parse(String line) throws JSONException {
+        JSONObject json = new JSONObject(line);
+        User<String> user = new User<String>();
+        user.setId(json.optString(ID, null));
+        user.setTwitterId(json.getLong(TWITTER_ID));
+        user.setUsername(json.optString(USERNAME, null));
+        user.setName(json.optString(NAME, null));
+        user.setBio(json.optString(BIO, null));
+        user.setWebsite(json.optString(WEBSITE, null));
+        user.setLocation(json.optString(LOCATION, null));
+        user.setFollowers(json.optInt(FOLLOWERS));
+        user.setFriends(json.optInt(FRIENDS));
+        user.setTimeZoneId(json.optString(TIME_ZONE_ID, null));
+        return user;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.User;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the users in a reader, one line at a time, so only the current line is ever held in memory. Blank lines
+ * are skipped. Iterator can't throw checked exceptions, a line that can't be read or parsed is thrown as an
+ * IllegalStateException carrying the line number.
+ */
+public class UserReader implements Iterator<User<String>> {
+
+    private final BufferedReader reader;
+    private User<String> next;
+    private long lineNumber;
+
+    public UserReader(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        String line;
+        try {
+            do {
+                line = reader.readLine();
+                lineNumber++;
+            } while (line != null && line.trim().length() == 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed reading line " + lineNumber, e);
+        }
+        if (line == null)
+            return false;
+        try {
+            next = UserLines.parse(line);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Malformed user on line " + lineNumber, e);
+        }
+        return true;
+    }
+
+    public User<String> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        User<String> user = next;
+        next = null;
+        return user;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the number of the last line read.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+}
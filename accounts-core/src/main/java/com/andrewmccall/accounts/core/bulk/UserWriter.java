@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes each user it's handed as a line. Output is buffered, call flush once the export is done.
+ */
+public class UserWriter<T> implements UserHandler<T> {
+
+    private final BufferedWriter writer;
+
+    public UserWriter(Writer writer) {
+        this.writer = writer instanceof BufferedWriter ? (BufferedWriter) writer : new BufferedWriter(writer);
+    }
+
+    public void handle(User<T> user) throws AccountsException {
+        try {
+            writer.write(UserLines.format(user));
+            writer.newLine();
+        } catch (IOException e) {
+            throw new AccountsException("Failed writing user: " + user, e);
+        }
+    }
+
+    public void flush() throws AccountsException {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new AccountsException("Failed flushing users.", e);
+        }
+    }
+}
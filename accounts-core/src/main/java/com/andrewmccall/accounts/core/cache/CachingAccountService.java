@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.cache;
+
+import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UpsertResult;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache in front of another AccountService. Users are cached by id, and twitterIds are cached as a
+ * pointer to the user's id so both lookups share one copy of the user. Writes made through this service invalidate the
+ * entries they touch, writes made anywhere else (another node, a bulk import on another node) are only picked up when
+ * the entries expire, so keep timeToLiveSeconds short if that matters. Bulk imports on this node go through the cache
+ * or clear it.
+ * <p/>
+ * The cache holds its own copies of the users, callers are free to change the users they get back.
+ * <p/>
+ * Ids are cached under their String form so getUser(T) and getUser(String) share entries, both backends' ids parse
+ * from and print to the same String.
+ */
+public class CachingAccountService<T> implements AccountService<T> {
+
+    public static final int DEFAULT_MAX_ELEMENTS = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE = 300;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final AccountService<T> delegate;
+
+    private CacheManager cacheManager;
+    private String cacheName = "accounts";
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+    private long timeToLiveSeconds = DEFAULT_TIME_TO_LIVE;
+
+    private Ehcache users;
+    private Ehcache twitterIds;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public CachingAccountService(AccountService<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @PostConstruct
+    public void setup() {
+        if (cacheManager == null)
+            cacheManager = CacheManager.create();
+
+        users = createCache(cacheName + ".users");
+        twitterIds = createCache(cacheName + ".twitterIds");
+
+        if (log.isInfoEnabled())
+            log.info("Caching users from " + delegate.getClass().getName() + ", maxElements: " + maxElements + " timeToLiveSeconds: " + timeToLiveSeconds);
+    }
+
+    private Ehcache createCache(String name) {
+        if (cacheManager.cacheExists(name)) {
+            if (log.isWarnEnabled())
+                log.warn("Cache '" + name + "' already exists, replacing it.");
+            cacheManager.removeCache(name);
+        }
+        Cache cache = new Cache(name, maxElements, false, false, timeToLiveSeconds, 0);
+        cacheManager.addCache(cache);
+        cache.getCacheEventNotificationService().registerListener(new StatisticsListener());
+        return cache;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (cacheManager == null)
+            return;
+        cacheManager.removeCache(users.getName());
+        cacheManager.removeCache(twitterIds.getName());
+    }
+
+    public void createUser(User<T> user) throws AccountsException {
+        delegate.createUser(user);
+        // a backend may take a twitterId over from a stale user, don't leave the old pointer behind.
+        invalidateTwitterId(user.getTwitterId());
+    }
+
+    public User<T> getUser(T id) throws AccountsException {
+        if (id == null)
+            return delegate.getUser(id);
+        User<T> user = getCached(String.valueOf(id));
+        if (user != null)
+            return user;
+        return cache(delegate.getUser(id));
+    }
+
+    public User<T> getUser(String idString) throws AccountsException {
+        if (idString == null)
+            return delegate.getUser(idString);
+        User<T> user = getCached(idString);
+        if (user != null)
+            return user;
+        return cache(delegate.getUser(idString));
+    }
+
+    /**
+     * The cache only holds full users, so a miss loads the full user whatever the view. Any view is then a hit.
+     */
+    public User<T> getUser(String idString, UserView view) throws AccountsException {
+        return getUser(idString);
+    }
+
+    public Map<T, User<T>> getUsers(Collection<T> ids) throws AccountsException {
+        Map<T, User<T>> found = new HashMap<T, User<T>>();
+        List<T> missing = new ArrayList<T>();
+        for (T id : ids) {
+            if (id == null || found.containsKey(id))
+                continue;
+            User<T> user = getCached(String.valueOf(id));
+            if (user != null)
+                found.put(id, user);
+            else
+                missing.add(id);
+        }
+
+        if (!missing.isEmpty()) {
+            for (Map.Entry<T, User<T>> entry : delegate.getUsers(missing).entrySet())
+                found.put(entry.getKey(), cache(entry.getValue()));
+        }
+
+        Map<T, User<T>> result = new LinkedHashMap<T, User<T>>();
+        for (T id : ids) {
+            User<T> user = found.get(id);
+            if (user != null)
+                result.put(id, user);
+        }
+        return result;
+    }
+
+    public boolean twitterIdExists(long twitterId) throws AccountsException {
+        if (twitterIds.get(twitterId) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return delegate.twitterIdExists(twitterId);
+    }
+
+    public void update(User<T> user) throws AccountsException {
+        try {
+            delegate.update(user);
+        } finally {
+            invalidate(user);
+        }
+    }
+
+    public User<T> getUserForTwitterId(long twitterId) throws AccountsException {
+        Element element = twitterIds.get(twitterId);
+        if (element != null) {
+            User<T> user = getCached((String) element.getObjectValue());
+            if (user != null && user.getTwitterId() == twitterId)
+                return user;
+        } else {
+            misses.incrementAndGet();
+        }
+        return cache(delegate.getUserForTwitterId(twitterId));
+    }
+
+    public UpsertResult<T> upsertForTwitterId(User<T> profile) throws AccountsException {
+        UpsertResult<T> result = delegate.upsertForTwitterId(profile);
+        if (result.isCreated() || result.isChanged())
+            invalidate(result.getUser());
+        return result;
+    }
+
+    /**
+     * Drops everything cached for a user, use it when the user has been changed behind this service's back.
+     *
+     * @param user the user to forget.
+     */
+    public void invalidate(User<T> user) {
+        if (user.getId() != null) {
+            String key = String.valueOf(user.getId());
+            // the twitterId may have changed, drop the pointer for the old one too.
+            Element element = users.get(key);
+            if (element != null)
+                invalidateTwitterId(((User) element.getObjectValue()).getTwitterId());
+            if (users.removeQuiet(key))
+                invalidations.incrementAndGet();
+        }
+        invalidateTwitterId(user.getTwitterId());
+    }
+
+    private void invalidateTwitterId(long twitterId) {
+        if (twitterIds.removeQuiet(twitterId))
+            invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops every cached user.
+     */
+    public void clear() {
+        users.removeAll();
+        twitterIds.removeAll();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private User<T> getCached(String key) {
+        Element element = users.get(key);
+        if (element == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy((User<T>) element.getObjectValue());
+    }
+
+    private User<T> cache(User<T> user) {
+        if (user == null || user.getId() == null)
+            return user;
+        String key = String.valueOf(user.getId());
+        users.put(new Element(key, copy(user)));
+        if (user.getTwitterId() != 0)
+            twitterIds.put(new Element(user.getTwitterId(), key));
+        return user;
+    }
+
+    private User<T> copy(User<T> user) {
+        User<T> copy = new User<T>();
+        copy.setId(user.getId());
+        copy.setTwitterId(user.getTwitterId());
+        copy.copyProfile(user);
+        copy.clearDirty();
+        return copy;
+    }
+
+    public AccountService<T> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @param cacheManager the CacheManager to create the caches in, defaults to the shared singleton.
+     */
+    public void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * @param cacheName the prefix for the cache names, change it if more than one of these shares a CacheManager.
+     */
+    public void setCacheName(String cacheName) {
+        this.cacheName = cacheName;
+    }
+
+    /**
+     * @param maxElements the maximum number of users, and of twitterIds, held in memory.
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    /**
+     * @param timeToLiveSeconds how long a user is served from the cache before it's read from the delegate again.
+     */
+    public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that went to the delegate.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the number of entries dropped because a write went through this service.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the number of entries ehcache removed to make room.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries that outlived timeToLiveSeconds.
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of users currently cached.
+     */
+    public int getSize() {
+        return users.getSize();
+    }
+
+    /**
+     * Counts what ehcache does to the entries on its own, invalidations use removeQuiet so they never get here.
+     */
+    private class StatisticsListener implements CacheEventListener {
+
+        public void notifyElementRemoved(Ehcache cache, Element element) {
+            evictions.incrementAndGet();
+        }
+
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            evictions.incrementAndGet();
+        }
+
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            expirations.incrementAndGet();
+        }
+
+        public void notifyElementPut(Ehcache cache, Element element) {
+        }
+
+        public void notifyElementUpdated(Ehcache cache, Element element) {
+        }
+
+        public void notifyRemoveAll(Ehcache cache) {
+        }
+
+        public void dispose() {
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            return super.clone();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.cache;
+
+import com.andrewmccall.accounts.core.AccountService;
+import net.sf.ehcache.CacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * Wraps the accountService bean, whichever backend provided it, in a CachingAccountService so everything that has it
+ * injected goes through the cache. Importing accounts-cache-config.xml alongside a backend's config is all it takes.
+ */
+public class CachingAccountServicePostProcessor implements BeanPostProcessor {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private String beanName = "accountService";
+
+    private CacheManager cacheManager;
+    private int maxElements = CachingAccountService.DEFAULT_MAX_ELEMENTS;
+    private long timeToLiveSeconds = CachingAccountService.DEFAULT_TIME_TO_LIVE;
+
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!this.beanName.equals(beanName) || !(bean instanceof AccountService) || bean instanceof CachingAccountService)
+            return bean;
+
+        if (log.isInfoEnabled())
+            log.info("Wrapping bean '" + beanName + "' in a CachingAccountService.");
+
+        CachingAccountService caching = new CachingAccountService((AccountService) bean);
+        caching.setCacheManager(cacheManager);
+        caching.setCacheName(beanName);
+        caching.setMaxElements(maxElements);
+        caching.setTimeToLiveSeconds(timeToLiveSeconds);
+        caching.setup();
+        return caching;
+    }
+
+    /**
+     * @param beanName the name of the AccountService bean to wrap, defaults to accountService.
+     */
+    public void setBeanName(String beanName) {
+        this.beanName = beanName;
+    }
+
+    public void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+}
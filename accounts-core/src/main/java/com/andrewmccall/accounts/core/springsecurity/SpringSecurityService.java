@@ -32,6 +32,7 @@ import com.andrewmccall.accounts.core.SecurityService;
 import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.AccountsException;
 import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
 
 /**
  * Exposes the the accounts services to the spring-security framework
@@ -50,6 +51,7 @@ public class SpringSecurityService implements SecurityService, UserDetailsServic
     }
     public static final List<GrantedAuthority> AUTHORITIES = Collections.unmodifiableList(AUTHORITIES_TEMP);
 
+    private UserView userView = UserView.FULL;
 
     public SpringSecurityService() {
         log = LogFactory.getLog(this.getClass());
@@ -65,7 +67,7 @@ public class SpringSecurityService implements SecurityService, UserDetailsServic
 
         User user = null;
         try {
-            user = accountService.getUser(id);
+            user = accountService.getUser(id, userView);
         } catch (AccountsException e) {
             if (log.isWarnEnabled())
                 log.warn("Cannot load user for id: " + id, e);
@@ -77,12 +79,23 @@ public class SpringSecurityService implements SecurityService, UserDetailsServic
             throw new UsernameNotFoundException("No such user could be found.");
         }
 
-        UserDetails userDetails = new UserDetailsImpl(user, AUTHORITIES);
+        UserDetails userDetails = createUserDetails(user);
         if (log.isInfoEnabled())
             log.info("found user and created UserDetails: " + userDetails);
         return userDetails;
     }
 
+    /**
+     * Creates the UserDetails for a user that's already been loaded, for the remember-me services which get the user
+     * along with the token and shouldn't read it again.
+     *
+     * @param user the user, loaded with getUserView.
+     * @return the UserDetails loadUserByUsername would return for the user.
+     */
+    public UserDetails createUserDetails(User user) {
+        return new UserDetailsImpl(user, AUTHORITIES);
+    }
+
     /**
      * Gets the User from the current SecurityContext.
      *
@@ -111,4 +124,19 @@ public class SpringSecurityService implements SecurityService, UserDetailsServic
         }
         return ((com.andrewmccall.accounts.core.springsecurity.Authentication)auth).getUser();
     }
+
+    public UserView getUserView() {
+        return userView;
+    }
+
+    /**
+     * Sets how much of the user loadUserByUsername fetches, defaults to {@link UserView#FULL}. The user ends up on the
+     * UserDetails and is what getUser returns, so only set it to AUTH if the application never shows or updates that
+     * user and goes to the AccountService for the rest of the profile.
+     *
+     * @param userView the view to load users with.
+     */
+    public void setUserView(UserView userView) {
+        this.userView = userView;
+    }
 }
\ No newline at end of file
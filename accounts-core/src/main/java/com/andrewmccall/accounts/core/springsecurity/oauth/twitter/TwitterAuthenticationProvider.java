@@ -20,16 +20,18 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.authentication.AuthenticationServiceException;
-import org.json.JSONObject;
 import org.json.JSONException;
 import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UpsertResult;
 
 import javax.annotation.Resource;
 import java.io.*;
 
-import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class TwitterAuthenticationProvider extends OAuthAuthenticationProvider {
 
@@ -44,6 +46,8 @@ public class TwitterAuthenticationProvider extends OAuthAuthenticationProvider {
 
     private String url = "http://twitter.com/account/verify_credentials.json";
 
+    private VerifyCredentialsClient verifyCredentialsClient;
+
     public TwitterAuthenticationProvider() {
         if (log.isInfoEnabled())
             log.info("Creating new instance of: " + this.getClass().getName());
@@ -57,6 +61,11 @@ public class TwitterAuthenticationProvider extends OAuthAuthenticationProvider {
         if (log.isDebugEnabled())
             log.debug("Authenticating: " + oAuthAuthentication);
 
+        if (verifyCredentialsClient != null) {
+            oAuthAuthentication.setUser(verifyCredentials(token));
+            return;
+        }
+
         HttpGet get = new HttpGet(url);
         try {
             service.prepare(get, token);
@@ -71,27 +80,9 @@ public class TwitterAuthenticationProvider extends OAuthAuthenticationProvider {
             throw new OAuthAuthenticationException("IOException with twitter get.", e);
         }
 
-        if (log.isInfoEnabled())
-            log.info(new StringBuffer().append("verify_credentials response: ").append(response.getStatusLine().getStatusCode()).append(" message: ").append(response.getStatusLine().getReasonPhrase()).toString());
-
-        InputStream is;
-        BufferedReader br;
         try {
 
-            is = response.getEntity().getContent();
-            br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-            StringBuffer buf = new StringBuffer();
-            String line;
-            while (null != (line = br.readLine())) {
-                buf.append(line).append("\n");
-            }
-            is.close();
-            response.getEntity().consumeContent();
-
-            String json = buf.toString();
-            if (log.isTraceEnabled())
-                log.trace("JSON returned: " + json);
-            User user = getAndUpdateUser(new JSONObject(json));
+            User user = getAndUpdateUser(VerifyCredentialsClient.readProfile(response));
             oAuthAuthentication.setUser(user);
 
         } catch (JSONException e) {
@@ -106,51 +97,66 @@ public class TwitterAuthenticationProvider extends OAuthAuthenticationProvider {
 
     }
 
-    private User getAndUpdateUser(JSONObject json) throws JSONException, AccountsException {
-
-        User<Long> user;
-        long twitterId = json.getLong("id");
-
-        if (log.isInfoEnabled())
-            log.info("getting and updating user for oauth id: " + twitterId + " from accountService: " + accountService.getClass());
-
-        if (accountService.twitterIdExists(twitterId)) {
-            user = accountService.getUserForTwitterId(twitterId);
-            if (log.isDebugEnabled())
-                log.debug("Twitter ID exists, user: " + user);
-        } else {
-            if (log.isDebugEnabled())
-                log.debug("Twitter ID doesn't exist, creating new user.");
-            user = new User<Long>();
-            user.setTwitterId(twitterId);
+    /**
+     * Calls verify_credentials through the VerifyCredentialsClient, failing fast if it's got too many calls in flight
+     * or Twitter takes too long, then stores the user on this thread. Only the call is bounded by the timeout, a store
+     * that's started is left to finish.
+     */
+    private User verifyCredentials(AccessToken token) throws AuthenticationException {
+        User<Long> profile;
+        try {
+            profile = verifyCredentialsClient.await(verifyCredentialsClient.verify(token));
+        } catch (RejectedExecutionException e) {
+            throw new AuthenticationServiceException("Too many logins in progress, try again.", e);
+        } catch (TimeoutException e) {
+            throw new AuthenticationServiceException("Twitter didn't answer in time.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException("Interrupted waiting for twitter.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JSONException)
+                throw new AuthenticationServiceException("There was an error parsing the JSON output.", cause);
+            if (cause instanceof IOException)
+                throw new OAuthAuthenticationException("IOException with twitter get.", cause);
+            throw new OAuthAuthenticationException("verify_credentials failed, signing the request or running it.", cause);
         }
-        int hashCode = user.toString().hashCode();
-
-        user.setName(json.getString("name"));
-
-        user.setUsername(json.getString("screen_name"));
-        user.setLocation(json.getString("location"));
-        user.setBio(json.getString("description"));
 
-        user.setWebsite(json.getString("url"));
+        try {
+            return getAndUpdateUser(profile);
+        } catch (AccountsException e) {
+            if (log.isInfoEnabled())
+                log.info("Authentication failed - AccountsException - " + e.getMessage(), e);
+            throw new AuthenticationServiceException("There was an AccountsException", e);
+        }
+    }
 
-        user.setFollowers(json.getInt("followers_count"));
-        user.setFriends(json.getInt("friends_count"));
+    /**
+     * Stores the profile verify_credentials returned, creating the user if the twitterId is new.
+     */
+    protected User getAndUpdateUser(User<Long> profile) throws AccountsException {
 
-        TimeZone tz = TimeZone.getTimeZone(json.getString("time_zone"));
-        user.setTimeZoneId(tz.getID());
+        if (log.isInfoEnabled())
+            log.info("getting and updating user for oauth id: " + profile.getTwitterId() + " from accountService: " + accountService.getClass());
+
+        UpsertResult<Long> result = accountService.upsertForTwitterId(profile);
+        if (log.isDebugEnabled()) {
+            if (result.isCreated())
+                log.debug("Twitter ID didn't exist, created new user: " + result.getUser());
+            else if (result.isChanged())
+                log.debug("Twitter ID exists, updated user: " + result.getUser());
+            else log.debug("Twitter ID exists, user unchanged: " + result.getUser());
+        }
 
-        if (user.getId() == null) {
-            if (log.isTraceEnabled())
-                log.trace("Creating new user: " + user);
-            accountService.createUser(user);
-        } else if (hashCode != user.toString().hashCode()) {
-            if (log.isTraceEnabled())
-                log.trace("Updating user: " + user);
-            accountService.update(user);
-        } else if (log.isTraceEnabled()) log.trace("User unchanged. No update required.");
+        return result.getUser();
+    }
 
-        return user;
+    /**
+     * @param verifyCredentialsClient calls Twitter off the request thread with bounded concurrency and a timeout,
+     *                                without it verify_credentials is called on the request thread.
+     */
+    public void setVerifyCredentialsClient(VerifyCredentialsClient verifyCredentialsClient) {
+        this.verifyCredentialsClient = verifyCredentialsClient;
     }
 
 }
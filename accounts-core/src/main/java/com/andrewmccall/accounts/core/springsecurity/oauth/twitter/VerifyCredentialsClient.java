@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.oauth.AccessToken;
+import com.andrewmccall.oauth.Service;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls verify_credentials off the caller's thread, on a pool of at most maxInFlight threads. When they're all busy
+ * a call is rejected straight away instead of queueing, so a login storm fails fast rather than tying up every
+ * request thread in the container waiting on Twitter. Each call is bounded by timeoutMillis, a call that overruns it
+ * has its connection aborted. The pool thread is never interrupted, aborting the connection is enough to free it.
+ * <p/>
+ * Only the HTTP call and parsing the profile run on the pool, the work that follows (storing the user) is left to the
+ * caller's thread, so a timeout can't leave a write half done. The caller waits in await for the call, so a login
+ * holds two threads while Twitter's answering: its own and one of the pool's.
+ */
+public class VerifyCredentialsClient {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 50;
+    public static final int DEFAULT_TIMEOUT = 10000;
+
+    private static final Logger log = LoggerFactory.getLogger(VerifyCredentialsClient.class);
+
+    private HttpClient httpClient;
+    private Service service;
+
+    private String url = "http://twitter.com/account/verify_credentials.json";
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int timeoutMillis = DEFAULT_TIMEOUT;
+
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        // no queue, a call either gets a thread or it's rejected.
+        executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new VerifyThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        if (log.isInfoEnabled())
+            log.info("Calling " + url + " with maxInFlight: " + maxInFlight + " timeoutMillis: " + timeoutMillis);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Starts a verify_credentials call.
+     *
+     * @param token the token to sign the call with.
+     * @return the pending profile, signing, IO and JSON failures are thrown from it wrapped in an ExecutionException.
+     * @throws RejectedExecutionException if maxInFlight calls are already running.
+     */
+    public Future<User<Long>> verify(AccessToken token) throws RejectedExecutionException {
+        HttpGet get = new HttpGet(url);
+        HttpConnectionParams.setConnectionTimeout(get.getParams(), timeoutMillis);
+        HttpConnectionParams.setSoTimeout(get.getParams(), timeoutMillis);
+
+        Call call = new Call(get, token);
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            if (log.isWarnEnabled())
+                log.warn("Rejected verify_credentials call, " + maxInFlight + " already in flight.");
+            throw e;
+        }
+        return call;
+    }
+
+    /**
+     * Waits up to timeoutMillis for a call started by verify, aborting its connection if it takes longer.
+     *
+     * @param future the call.
+     * @return the profile.
+     * @throws TimeoutException if the call took too long.
+     * @throws ExecutionException wrapping whatever the call threw.
+     */
+    public User<Long> await(Future<User<Long>> future) throws TimeoutException, ExecutionException, InterruptedException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a verify_credentials response, used by TwitterAuthenticationProvider when it calls Twitter itself too.
+     */
+    static User<Long> readProfile(HttpResponse response) throws IOException, JSONException {
+        if (log.isInfoEnabled())
+            log.info(new StringBuffer().append("verify_credentials response: ").append(response.getStatusLine().getStatusCode()).append(" message: ").append(response.getStatusLine().getReasonPhrase()).toString());
+
+        InputStream is = response.getEntity().getContent();
+        try {
+            User<Long> profile = VerifyCredentialsParser.parse(is);
+            if (log.isTraceEnabled())
+                log.trace("Profile returned: " + profile);
+            return profile;
+        } finally {
+            is.close();
+            response.getEntity().consumeContent();
+        }
+    }
+
+    /**
+     * A single call, cancelling it aborts the request so the pool thread isn't left blocked on the socket. The thread
+     * isn't interrupted, the abort is all it needs.
+     */
+    private class Call extends FutureTask<User<Long>> {
+
+        private final HttpGet get;
+
+        private Call(final HttpGet get, final AccessToken token) {
+            super(new Callable<User<Long>>() {
+                public User<Long> call() throws Exception {
+                    service.prepare(get, token);
+                    return readProfile(httpClient.execute(get));
+                }
+            });
+            this.get = get;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            get.abort();
+            return super.cancel(false);
+        }
+    }
+
+    private static class VerifyThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threads = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "verify-credentials-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * @param httpClient the client to call Twitter with, it has to be safe for maxInFlight threads to share.
+     */
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @param service signs the calls.
+     */
+    public void setService(Service service) {
+        this.service = service;
+    }
+
+    /**
+     * @param url the verify_credentials url.
+     */
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @param maxInFlight the most calls running at once, set before start. Each one also holds the request thread
+     *                    waiting for it.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param timeoutMillis how long a call may take, connecting and between reads as well as overall.
+     */
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the number of calls running now.
+     */
+    public int getInFlight() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of calls rejected because maxInFlight were already running.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of calls that took longer than timeoutMillis.
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+}
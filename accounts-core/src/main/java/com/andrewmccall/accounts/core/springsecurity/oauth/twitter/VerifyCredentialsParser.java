@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.core.User;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.TimeZone;
+
+/**
+ * Reads a verify_credentials response straight into a User, one pass over the stream. Only the top level fields we
+ * store are turned into values, everything else, the latest status included, is stepped over without being copied
+ * anywhere. The only strings built are the top level keys and the fields we keep.
+ * <p/>
+ * Only id is required, a field that's missing or null is left unset.
+ */
+public class VerifyCredentialsParser {
+
+    private final Reader in;
+    private final char[] buf = new char[2048];
+    private int pos;
+    private int limit;
+    private long offset;
+
+    private final StringBuilder sb = new StringBuilder(64);
+
+    private VerifyCredentialsParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @param in the UTF-8 response body, it's read to the end of the object but not closed.
+     * @return a profile holding the twitterId and the profile fields.
+     * @throws JSONException if the body isn't a JSON object or has no id.
+     */
+    public static User<Long> parse(InputStream in) throws IOException, JSONException {
+        return parse(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /**
+     * @param in the response body, it's read to the end of the object but not closed.
+     * @return a profile holding the twitterId and the profile fields.
+     * @throws JSONException if the body isn't a JSON object or has no id.
+     */
+    public static User<Long> parse(Reader in) throws IOException, JSONException {
+        return new VerifyCredentialsParser(in).parseProfile();
+    }
+
+    private User<Long> parseProfile() throws IOException, JSONException {
+        User<Long> profile = new User<Long>();
+        boolean hasId = false;
+
+        expect('{');
+        if (peek() == '}') {
+            next();
+        } else {
+            char c;
+            do {
+                expect('"');
+                String key = readString();
+                expect(':');
+
+                if ("id".equals(key)) {
+                    profile.setTwitterId(readLong());
+                    hasId = true;
+                } else if ("name".equals(key)) {
+                    profile.setName(readNullableString());
+                } else if ("screen_name".equals(key)) {
+                    profile.setUsername(readNullableString());
+                } else if ("location".equals(key)) {
+                    profile.setLocation(readNullableString());
+                } else if ("description".equals(key)) {
+                    profile.setBio(readNullableString());
+                } else if ("url".equals(key)) {
+                    profile.setWebsite(readNullableString());
+                } else if ("followers_count".equals(key)) {
+                    profile.setFollowers((int) readLong());
+                } else if ("friends_count".equals(key)) {
+                    profile.setFriends((int) readLong());
+                } else if ("time_zone".equals(key)) {
+                    String timeZone = readNullableString();
+                    if (timeZone != null)
+                        profile.setTimeZoneId(TimeZone.getTimeZone(timeZone).getID());
+                } else {
+                    skipValue();
+                }
+
+                c = next();
+                if (c != ',' && c != '}')
+                    throw syntaxError("Expected ',' or '}' but found '" + c + "'");
+            } while (c == ',');
+        }
+
+        if (!hasId)
+            throw new JSONException("verify_credentials response has no id.");
+        return profile;
+    }
+
+    /**
+     * @return the string value, or null for a JSON null.
+     */
+    private String readNullableString() throws IOException, JSONException {
+        char c = next();
+        if (c == '"')
+            return readString();
+        if (c == 'n') {
+            expectLiteral("ull");
+            return null;
+        }
+        throw syntaxError("Expected a string but found '" + c + "'");
+    }
+
+    /**
+     * Reads the rest of a string, the opening quote has been read.
+     */
+    private String readString() throws IOException, JSONException {
+        sb.setLength(0);
+        while (true) {
+            char c = nextRaw();
+            if (c == '"')
+                return sb.toString();
+            if (c == '\\')
+                sb.append(readEscape());
+            else
+                sb.append(c);
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        char c = nextRaw();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'f':
+                return '\f';
+            case 'r':
+                return '\r';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextRaw(), 16);
+                    if (digit < 0)
+                        throw syntaxError("Bad \\u escape");
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            default:
+                throw syntaxError("Bad escape '\\" + c + "'");
+        }
+    }
+
+    /**
+     * Reads an integer, a JSON null reads as 0.
+     */
+    private long readLong() throws IOException, JSONException {
+        char c = next();
+        if (c == 'n') {
+            expectLiteral("ull");
+            return 0;
+        }
+        boolean negative = c == '-';
+        if (negative)
+            c = nextRaw();
+        if (c < '0' || c > '9')
+            throw syntaxError("Expected a number but found '" + c + "'");
+
+        long value = 0;
+        while (true) {
+            value = value * 10 + (c - '0');
+            if (!fill() || buf[pos] < '0' || buf[pos] > '9')
+                break;
+            c = buf[pos++];
+        }
+        if (fill() && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E'))
+            throw syntaxError("Expected an integer");
+        return negative ? -value : value;
+    }
+
+    /**
+     * Steps over a value of any type without keeping it.
+     */
+    private void skipValue() throws IOException, JSONException {
+        char c = next();
+        switch (c) {
+            case '"':
+                skipString();
+                return;
+            case '{':
+            case '[':
+                skipContainer();
+                return;
+            default:
+                // a number or a literal, runs up to the next delimiter.
+                while (fill()) {
+                    c = buf[pos];
+                    if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c))
+                        return;
+                    pos++;
+                }
+        }
+    }
+
+    private void skipString() throws IOException, JSONException {
+        while (true) {
+            char c = nextRaw();
+            if (c == '"')
+                return;
+            if (c == '\\')
+                nextRaw();
+        }
+    }
+
+    /**
+     * Skips to the end of an object or array, the opening bracket has been read. Only the brackets and strings need
+     * following, anything else between them can be ignored.
+     */
+    private void skipContainer() throws IOException, JSONException {
+        int depth = 1;
+        while (depth > 0) {
+            char c = nextRaw();
+            if (c == '"')
+                skipString();
+            else if (c == '{' || c == '[')
+                depth++;
+            else if (c == '}' || c == ']')
+                depth--;
+        }
+    }
+
+    private void expectLiteral(String rest) throws IOException, JSONException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (nextRaw() != rest.charAt(i))
+                throw syntaxError("Bad literal");
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        char c = next();
+        if (c != expected)
+            throw syntaxError("Expected '" + expected + "' but found '" + c + "'");
+    }
+
+    /**
+     * @return the next character that isn't whitespace, without consuming it.
+     */
+    private char peek() throws IOException, JSONException {
+        char c = next();
+        pos--;
+        return c;
+    }
+
+    /**
+     * @return the next character that isn't whitespace.
+     */
+    private char next() throws IOException, JSONException {
+        char c;
+        do {
+            c = nextRaw();
+        } while (Character.isWhitespace(c));
+        return c;
+    }
+
+    private char nextRaw() throws IOException, JSONException {
+        if (!fill())
+            throw syntaxError("Unexpected end of input");
+        return buf[pos++];
+    }
+
+    /**
+     * @return true if there's a character at pos, reading more if needed.
+     */
+    private boolean fill() throws IOException {
+        if (pos < limit)
+            return true;
+        offset += limit;
+        pos = 0;
+        limit = in.read(buf, 0, buf.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + (offset + pos));
+    }
+}
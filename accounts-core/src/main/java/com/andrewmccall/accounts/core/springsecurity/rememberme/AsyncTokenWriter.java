@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes rotated remember-me tokens to the TokenRepository from a background thread, so a cookie login doesn't wait
+ * for the store. Declare one as a bean and the RememberMeService picks it up.
+ * <p/>
+ * Writes are coalesced per series: if a series is rotated again before its last write ran only the newest token is
+ * written. The queue is bounded, when it's full the token is written by the thread that submitted it, so a slow
+ * store slows logins down rather than letting the backlog grow without limit.
+ * <p/>
+ * Until a token is written the store still has the old value. The RememberMeService reads tokens through getPending
+ * first so this node sees its own rotations, other nodes don't, see RememberMeService.setPreviousTokenGraceSeconds.
+ */
+public class AsyncTokenWriter {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final Log log = LogFactory.getLog(this.getClass());
+
+    @Resource
+    private TokenRepository tokenRepository;
+
+    private int capacity = DEFAULT_CAPACITY;
+    private long shutdownTimeout = 10000;
+
+    private BlockingQueue<String> queue;
+    private final ConcurrentMap<String, RememberMeToken> pending = new ConcurrentHashMap<String, RememberMeToken>();
+
+    private Thread worker;
+    private volatile boolean running;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public AsyncTokenWriter() {
+    }
+
+    public AsyncTokenWriter(TokenRepository tokenRepository) {
+        this.tokenRepository = tokenRepository;
+    }
+
+    /**
+     * Queues a token to be written with TokenRepository.update. If the queue is full the token is written by the
+     * calling thread instead.
+     *
+     * @param token the token, it mustn't be changed after it's been submitted.
+     * @throws AccountsException if the queue was full and writing the token failed.
+     */
+    public void submit(RememberMeToken token) throws AccountsException {
+        String key = key(token.getSeries(), token.getUser());
+        submitted.incrementAndGet();
+        if (pending.put(key, token) != null) {
+            // a write for the series is already queued or running, it'll pick up this token instead.
+            coalesced.incrementAndGet();
+            return;
+        }
+        if (queue().offer(key))
+            return;
+
+        rejected.incrementAndGet();
+        if (log.isDebugEnabled())
+            log.debug("Token write queue is full, writing series '" + token.getSeries() + "' synchronously.");
+        write(key);
+    }
+
+    /**
+     * @param series the series.
+     * @param user   the user.
+     * @return the token waiting to be written for the series, null if there isn't one.
+     */
+    public RememberMeToken getPending(String series, User user) {
+        return pending.get(key(series, user));
+    }
+
+    /**
+     * Drops any writes waiting for the user's tokens, call it before removing the user's tokens from the store so a
+     * queued write can't bring one back.
+     *
+     * @param user the user.
+     */
+    public void cancel(User user) {
+        String prefix = user.getId() + ":";
+        for (Iterator<String> i = pending.keySet().iterator(); i.hasNext();) {
+            if (i.next().startsWith(prefix))
+                i.remove();
+        }
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, "accounts-token-writer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the writer once everything queued has been written, or shutdownTimeout has passed.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        if (!running)
+            return;
+        running = false;
+        try {
+            worker.join(shutdownTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            worker.interrupt();
+            if (log.isWarnEnabled())
+                log.warn("Token writer stopped with " + pending.size() + " tokens unwritten.");
+        }
+    }
+
+    private void work() {
+        while (running || !queue().isEmpty()) {
+            String key;
+            try {
+                key = queue().poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (key == null)
+                continue;
+            try {
+                write(key);
+            } catch (AccountsException e) {
+                // same as a failed synchronous write, the user will have to log in again.
+                if (log.isWarnEnabled())
+                    log.warn("Error writing token for key '" + key + "'.", e);
+            } catch (RuntimeException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Error writing token for key '" + key + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending token for a key, and then any newer one that was coalesced onto it while it was written, until
+     * nothing is left for the key. Only one thread writes a key at a time, whoever queued it or the one that found the
+     * queue full.
+     */
+    private void write(String key) throws AccountsException {
+        RememberMeToken token;
+        while ((token = pending.get(key)) != null) {
+            try {
+                tokenRepository.update(token);
+                written.incrementAndGet();
+            } catch (AccountsException e) {
+                failed.incrementAndGet();
+                pending.remove(key, token);
+                throw e;
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                pending.remove(key, token);
+                throw e;
+            }
+            if (pending.remove(key, token))
+                return;
+            if (!pending.containsKey(key)) {
+                // cancelled while we were writing, don't leave the token we just wrote behind.
+                tokenRepository.removeUserTokens(token.getUser());
+                return;
+            }
+        }
+    }
+
+    private synchronized BlockingQueue<String> queue() {
+        if (queue == null)
+            queue = new ArrayBlockingQueue<String>(capacity);
+        return queue;
+    }
+
+    private static String key(String series, User user) {
+        return user.getId() + ":" + series;
+    }
+
+    public void setTokenRepository(TokenRepository tokenRepository) {
+        this.tokenRepository = tokenRepository;
+    }
+
+    /**
+     * @param capacity the number of series that can be waiting to be written, must be set before the first submit.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param shutdownTimeout how long in milliseconds close waits for the queue to drain.
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * @return the number of series waiting to be written.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of tokens that replaced one already waiting for the same series.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of tokens refused because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
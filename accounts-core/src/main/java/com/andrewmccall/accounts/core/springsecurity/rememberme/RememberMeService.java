@@ -19,20 +19,25 @@ import org.springframework.security.web.authentication.rememberme.RememberMeAuth
 import org.springframework.security.web.authentication.rememberme.CookieTheftException;
 import org.springframework.security.web.authentication.rememberme.InvalidCookieException;
 import org.springframework.stereotype.Service;
-import org.apache.commons.codec.binary.Base64;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.annotation.Resource;
-import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.AccountsException;
 import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
 
 /**
  * A secure RememberMeService implementation. The one from Spring Security has two problems. First it doesn't support
@@ -44,11 +49,24 @@ import com.andrewmccall.accounts.core.User;
 @Service("rememberMeService")
 public class RememberMeService extends AbstractRememberMeServices {
 
-    private SecureRandom random;
+    private TokenGenerator tokenGenerator;
+
+    private AsyncTokenWriter tokenWriter;
+
+    private int previousTokenGraceSeconds = 0;
+    private int minRotationIntervalSeconds = 0;
+    private final ConcurrentMap<String, RememberMeToken> previousTokens = new ConcurrentHashMap<String, RememberMeToken>();
+    private final AtomicInteger rotations = new AtomicInteger();
 
     public static final int DEFAULT_SERIES_LENGTH = 16;
     public static final int DEFAULT_TOKEN_LENGTH = 16;
 
+    /**
+     * The series a login tries before giving up. A random series clashing even once is rare, every one of them
+     * clashing means the series are too short or the store turns every token away.
+     */
+    static final int MAX_SERIES_ATTEMPTS = 5;
+
     private int seriesLength = DEFAULT_SERIES_LENGTH;
     private int tokenLength = DEFAULT_TOKEN_LENGTH;
 
@@ -65,7 +83,7 @@ public class RememberMeService extends AbstractRememberMeServices {
     private AccountService accountService;
 
     public RememberMeService() throws Exception {
-        random = SecureRandom.getInstance("SHA1PRNG");
+        tokenGenerator = new SecureRandomTokenGenerator();
         setKey(DEFAULT_KEY);
         setParameter(DEFAULT_PARAMETER);
         setCookieName(DEFAULT_COOKIE);
@@ -94,25 +112,46 @@ public class RememberMeService extends AbstractRememberMeServices {
         }
 
         User user;
-        try {
-            user = accountService.getUser(presentedId);
-        } catch (AccountsException e) {
-            if (log.isWarnEnabled())
-                log.warn("Could not load user, AccountsException thrown.", e);
-            throw new RememberMeAuthenticationException("Exception loading user.");
-        }
-        if (user == null) {
-            if (log.isDebugEnabled())
-                log.debug("A user for the id provided does not exist.");
-            throw new RememberMeAuthenticationException("No user could be loaded for presentedId: " + presentedId);
+        RememberMeToken token = null;
+        if (tokenRepository instanceof UserTokenRepository) {
+            // the store can load both in one go.
+            try {
+                token = ((UserTokenRepository) tokenRepository).getTokenWithUser(presentedId, presentedSeries);
+            } catch (AccountsException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Could not load user and token, AccountsException thrown.", e);
+                throw new RememberMeAuthenticationException("Exception loading user.");
+            }
+            if (token == null)
+                throw new RememberMeAuthenticationException("No user and persistent token found for presentedId: " + presentedId + " series id: " + presentedSeries);
+            user = token.getUser();
+        } else {
+            try {
+                user = accountService.getUser(presentedId, getUserView());
+            } catch (AccountsException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Could not load user, AccountsException thrown.", e);
+                throw new RememberMeAuthenticationException("Exception loading user.");
+            }
+            if (user == null) {
+                if (log.isDebugEnabled())
+                    log.debug("A user for the id provided does not exist.");
+                throw new RememberMeAuthenticationException("No user could be loaded for presentedId: " + presentedId);
+            }
         }
 
-        RememberMeToken token = null;
-        try {
-            token = tokenRepository.getToken(presentedSeries, user);
-        } catch (AccountsException e) {
-            if (log.isWarnEnabled())
-                log.warn("Exception getting RememberMeToken, treating as invalid.", e);
+        if (tokenWriter != null) {
+            RememberMeToken pending = tokenWriter.getPending(presentedSeries, user);
+            if (pending != null)
+                token = pending;
+        }
+        if (token == null) {
+            try {
+                token = tokenRepository.getToken(presentedSeries, user);
+            } catch (AccountsException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Exception getting RememberMeToken, treating as invalid.", e);
+            }
         }
         if (token == null) {
             // No series match, so we can't authenticate using this cookie
@@ -121,7 +160,16 @@ public class RememberMeService extends AbstractRememberMeServices {
 
         // We have a match for this user/series combination
         if (!presentedToken.equals(token.getValue())) {
+            if (isPreviousToken(token, presentedToken)) {
+                // a request that raced the last rotation, send it the current cookie without rotating again.
+                if (log.isDebugEnabled())
+                    log.debug("Previous token presented for series '" + token.getSeries() + "' within the grace period.");
+                addCookie(token, request, response);
+                return createUserDetails(user);
+            }
             // Token doesn't match series value. Delete all logins for this user and throw an exception to warn them.
+            if (tokenWriter != null)
+                tokenWriter.cancel(user);
             tokenRepository.removeUserTokens(user);
             throw new CookieTheftException(messages.getMessage("PersistentTokenBasedRememberMeServices.cookieStolen",
                     "Invalid remember-me token (Series/token) mismatch. Implies previous cookie theft attack."));
@@ -136,6 +184,13 @@ public class RememberMeService extends AbstractRememberMeServices {
             throw new RememberMeAuthenticationException("Remember-me getUserForLogin has expired");
         }
 
+        if (token.getDate().getTime() + minRotationIntervalSeconds * 1000l > System.currentTimeMillis()) {
+            // rotated recently enough, the browser already holds the current cookie so there's nothing to write.
+            if (log.isDebugEnabled())
+                log.debug("Token for series '" + token.getSeries() + "' rotated less than " + minRotationIntervalSeconds + "s ago, reusing it.");
+            return createUserDetails(user);
+        }
+
         // Token also matches, so getUserForLogin is valid. Update the token value, keeping the *same* series number.
         if (log.isDebugEnabled()) {
             log.debug("Refreshing persistent login token for user '" + token.getUser() + "', series '" +
@@ -143,9 +198,17 @@ public class RememberMeService extends AbstractRememberMeServices {
         }
 
         try {
-            token.setDate(new Date());
-            token.setValue(generateTokenData());
-            tokenRepository.update(token);
+            String previousValue = token.getValue();
+            if (tokenWriter != null) {
+                // the pending token is handed out by getPending, so it's never changed once submitted.
+                token = new RememberMeToken(token.getSeries(), token.getUser(), generateTokenData(), new Date());
+                tokenWriter.submit(token);
+            } else {
+                token.setDate(new Date());
+                token.setValue(generateTokenData());
+                tokenRepository.update(token);
+            }
+            rememberPrevious(token, previousValue);
 
             addCookie(token, request, response);
         } catch (AccountsException e) {
@@ -154,7 +217,7 @@ public class RememberMeService extends AbstractRememberMeServices {
             if (log.isWarnEnabled())
                 log.warn("Error processing login success. The user will have to enter their password again when they next login.", e);
         }
-        return getUserDetailsService().loadUserByUsername(user.getId().toString());
+        return createUserDetails(user);
     }
 
     /**
@@ -164,7 +227,7 @@ public class RememberMeService extends AbstractRememberMeServices {
     protected void onLoginSuccess(HttpServletRequest request, HttpServletResponse response, Authentication successfulAuthentication) {
         User user;
         try {
-            user = accountService.getUser(successfulAuthentication.getName());
+            user = accountService.getUser(successfulAuthentication.getName(), UserView.AUTH);
         } catch (AccountsException e) {
             log.error("Exception thrown getting user. Cannot process login, no cookies or tokens will be stored.", e);
             return;
@@ -173,15 +236,17 @@ public class RememberMeService extends AbstractRememberMeServices {
         if (log.isDebugEnabled())
             log.debug("Creating new persistent getUserForLogin for user " + user);
 
-        String series = generateSeriesData();
         try {
-            while (tokenRepository.exists(series, user)) {
+            RememberMeToken persistentToken = new RememberMeToken(generateSeriesData(), user, generateTokenData(), new Date());
+            // a single write, the series is only claimed if it's free.
+            int attempts = 1;
+            while (!tokenRepository.createIfAbsent(persistentToken)) {
+                if (attempts++ == MAX_SERIES_ATTEMPTS)
+                    throw new AccountsException("No free series after " + MAX_SERIES_ATTEMPTS + " attempts for user: " + user.getId());
                 if (log.isTraceEnabled())
                     log.trace("The series was in use - generating a new one.");
-                series = generateSeriesData();
+                persistentToken = new RememberMeToken(generateSeriesData(), user, persistentToken.getValue(), persistentToken.getDate());
             }
-            RememberMeToken persistentToken = new RememberMeToken(series, user, generateTokenData(), new Date());
-            tokenRepository.create(persistentToken);
             addCookie(persistentToken, request, response);
         } catch (AccountsException e) {
             // failure to store the token because of an exception is an issue, not one to show the user though. Worst
@@ -192,20 +257,131 @@ public class RememberMeService extends AbstractRememberMeServices {
 
     }
 
+    /**
+     * Keeps the value a token had before it was rotated, for previousTokenGraceSeconds.
+     */
+    private void rememberPrevious(RememberMeToken token, String previousValue) {
+        if (previousTokenGraceSeconds <= 0)
+            return;
+        String key = token.getUser().getId() + ":" + token.getSeries();
+        previousTokens.put(key, new RememberMeToken(token.getSeries(), token.getUser(), previousValue, new Date()));
+
+        // drop the expired ones every so often so the map doesn't grow with every series ever rotated.
+        if (rotations.incrementAndGet() % 1024 == 0) {
+            long oldest = System.currentTimeMillis() - previousTokenGraceSeconds * 1000l;
+            for (Iterator<RememberMeToken> i = previousTokens.values().iterator(); i.hasNext();) {
+                if (i.next().getDate().getTime() < oldest)
+                    i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if value is the value the token had before this node last rotated it, and that was within
+     *         previousTokenGraceSeconds.
+     */
+    private boolean isPreviousToken(RememberMeToken token, String value) {
+        if (previousTokenGraceSeconds <= 0)
+            return false;
+        RememberMeToken previous = previousTokens.get(token.getUser().getId() + ":" + token.getSeries());
+        return previous != null
+                && previous.getValue().equals(value)
+                && previous.getDate().getTime() + previousTokenGraceSeconds * 1000l >= System.currentTimeMillis();
+    }
+
+    /**
+     * Creates the UserDetails for the user loaded with the token, with SpringSecurityService that's done without going
+     * back to the AccountService. Any other UserDetailsService is asked to load the user by id.
+     */
+    protected UserDetails createUserDetails(User user) {
+        UserDetailsService userDetailsService = getUserDetailsService();
+        if (userDetailsService instanceof SpringSecurityService)
+            return ((SpringSecurityService) userDetailsService).createUserDetails(user);
+        return userDetailsService.loadUserByUsername(user.getId().toString());
+    }
+
+    /**
+     * @return the view SpringSecurityService loads users with, the user loaded here ends up on the UserDetails in its
+     *         place. AUTH for any other UserDetailsService, which loads the user again itself.
+     */
+    private UserView getUserView() {
+        UserDetailsService userDetailsService = getUserDetailsService();
+        return userDetailsService instanceof SpringSecurityService ? ((SpringSecurityService) userDetailsService).getUserView() : UserView.AUTH;
+    }
+
     protected void addCookie(RememberMeToken token, HttpServletRequest request, HttpServletResponse response) {
         setCookie(new String[]{token.getUser().getId().toString(), token.getSeries(), token.getValue()}, getTokenValiditySeconds(), request, response);
     }
 
     protected String generateSeriesData() {
-        byte[] newSeries = new byte[seriesLength];
-        random.nextBytes(newSeries);
-        return new String(Base64.encodeBase64(newSeries));
+        return tokenGenerator.generate(seriesLength);
     }
 
     protected String generateTokenData() {
-        byte[] newToken = new byte[tokenLength];
-        random.nextBytes(newToken);
-        return new String(Base64.encodeBase64(newToken));
+        return tokenGenerator.generate(tokenLength);
+    }
+
+    public AsyncTokenWriter getTokenWriter() {
+        return tokenWriter;
+    }
+
+    /**
+     * Rotated tokens are written by the writer in the background rather than before the login returns. Other nodes
+     * read the old value until the write lands, so a browser that switches node in that window is treated as a stolen
+     * cookie, use it with sticky sessions or a single node.
+     *
+     * @param tokenWriter the writer, null writes tokens synchronously.
+     */
+    @Autowired(required = false)
+    public void setTokenWriter(AsyncTokenWriter tokenWriter) {
+        this.tokenWriter = tokenWriter;
+    }
+
+    public int getPreviousTokenGraceSeconds() {
+        return previousTokenGraceSeconds;
+    }
+
+    /**
+     * A browser that fires several requests at once presents the same token on each, only the first wins the rotation
+     * and the rest would look like a stolen cookie. For this many seconds after a rotation the value it replaced is
+     * still accepted, the request is logged in and given the current cookie but the token isn't rotated again. Any
+     * other value is still treated as theft. Only rotations made on this node are remembered.
+     *
+     * @param previousTokenGraceSeconds the grace period, 0 (the default) turns it off.
+     */
+    public void setPreviousTokenGraceSeconds(int previousTokenGraceSeconds) {
+        this.previousTokenGraceSeconds = previousTokenGraceSeconds;
+    }
+
+    public int getMinRotationIntervalSeconds() {
+        return minRotationIntervalSeconds;
+    }
+
+    /**
+     * A token is only rotated when it's older than this, until then the cookie is accepted as it is and nothing is
+     * written, so an active user costs one write per interval rather than one per request.
+     * <p/>
+     * Theft is still detected the same way, by a stale value being presented after a rotation, but only once a
+     * rotation happens: for up to this many seconds a stolen cookie and the real one carry the same value and both are
+     * accepted. The first rotation after that locks out whichever side didn't get the new value, and the next request
+     * from the other side is treated as theft and removes all the user's tokens. Keep it well below the token validity,
+     * the expiry is measured from the last rotation.
+     *
+     * @param minRotationIntervalSeconds the interval, 0 (the default) rotates on every request.
+     */
+    public void setMinRotationIntervalSeconds(int minRotationIntervalSeconds) {
+        this.minRotationIntervalSeconds = minRotationIntervalSeconds;
+    }
+
+    public TokenGenerator getTokenGenerator() {
+        return tokenGenerator;
+    }
+
+    /**
+     * @param tokenGenerator generates the series and token values, defaults to a SecureRandomTokenGenerator.
+     */
+    public void setTokenGenerator(TokenGenerator tokenGenerator) {
+        this.tokenGenerator = tokenGenerator;
     }
 
     public int getSeriesLength() {
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * A TokenGenerator that gives each thread its own SecureRandom. SecureRandom.nextBytes is synchronized, so a single
+ * shared instance makes every request generating a token queue up behind the others. Each thread's instance is
+ * replaced with a freshly seeded one after reseedInterval values, so a long lived thread doesn't keep producing values
+ * from the one seed forever.
+ * <p/>
+ * Values are encoded straight into a char[] with the standard Base64 alphabet, padded, exactly as commons-codec's
+ * Base64.encodeBase64 would but without the intermediate byte arrays.
+ */
+public class SecureRandomTokenGenerator implements TokenGenerator {
+
+    public static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+    public static final int DEFAULT_RESEED_INTERVAL = 100000;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final Log log = LogFactory.getLog(this.getClass());
+
+    private final String algorithm;
+    private volatile int reseedInterval = DEFAULT_RESEED_INTERVAL;
+
+    private final ThreadLocal<Source> sources = new ThreadLocal<Source>() {
+        @Override
+        protected Source initialValue() {
+            return new Source();
+        }
+    };
+
+    public SecureRandomTokenGenerator() throws NoSuchAlgorithmException {
+        this(DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * @param algorithm the SecureRandom algorithm to use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't available, checked up front so a typo fails at startup.
+     */
+    public SecureRandomTokenGenerator(String algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        SecureRandom.getInstance(algorithm);
+    }
+
+    public String generate(int length) {
+        byte[] bytes = new byte[length];
+        sources.get().nextBytes(bytes);
+        return encode(bytes);
+    }
+
+    /**
+     * Base64 encodes bytes with the standard alphabet and padding.
+     *
+     * @param bytes the bytes to encode.
+     * @return the encoded bytes.
+     */
+    static String encode(byte[] bytes) {
+        char[] out = new char[((bytes.length + 2) / 3) * 4];
+        int o = 0;
+        int i = 0;
+        int whole = bytes.length - bytes.length % 3;
+        while (i < whole) {
+            int b = (bytes[i++] & 0xff) << 16 | (bytes[i++] & 0xff) << 8 | (bytes[i++] & 0xff);
+            out[o++] = ALPHABET[b >>> 18];
+            out[o++] = ALPHABET[(b >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(b >>> 6) & 0x3f];
+            out[o++] = ALPHABET[b & 0x3f];
+        }
+        int remaining = bytes.length - whole;
+        if (remaining > 0) {
+            int b = (bytes[i] & 0xff) << 16 | (remaining == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[b >>> 18];
+            out[o++] = ALPHABET[(b >>> 12) & 0x3f];
+            out[o++] = remaining == 2 ? ALPHABET[(b >>> 6) & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getReseedInterval() {
+        return reseedInterval;
+    }
+
+    /**
+     * @param reseedInterval the number of values a thread's SecureRandom generates before it's replaced.
+     */
+    public void setReseedInterval(int reseedInterval) {
+        this.reseedInterval = reseedInterval;
+    }
+
+    /**
+     * Creates the SecureRandom a thread uses until it's next reseeded. A new SHA1PRNG seeds itself from the system's
+     * entropy source on first use.
+     *
+     * @return an unseeded SecureRandom of the algorithm.
+     * @throws NoSuchAlgorithmException if the algorithm isn't available.
+     */
+    protected SecureRandom newRandom() throws NoSuchAlgorithmException {
+        return SecureRandom.getInstance(algorithm);
+    }
+
+    /**
+     * One thread's SecureRandom, never shared so the lock inside nextBytes is never contended.
+     */
+    private class Source {
+
+        private SecureRandom random;
+        private int uses;
+
+        void nextBytes(byte[] bytes) {
+            if (random == null || uses >= reseedInterval) {
+                if (random != null && log.isDebugEnabled())
+                    log.debug("Reseeding SecureRandom for thread " + Thread.currentThread().getName() + " after " + uses + " values.");
+                try {
+                    random = newRandom();
+                } catch (NoSuchAlgorithmException e) {
+                    // checked in the constructor.
+                    throw new IllegalStateException(e);
+                }
+                uses = 0;
+            }
+            uses++;
+            random.nextBytes(bytes);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
+import org.springframework.security.web.authentication.rememberme.InvalidCookieException;
+import org.springframework.security.web.authentication.rememberme.RememberMeAuthenticationException;
+
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A stateless alternative to RememberMeService. The cookie carries the user id, a series and the time it was issued,
+ * signed with an HMAC of the key, so it's checked without reading the user or a token. Cookies aren't rotated and
+ * nothing is written at login, the cookie is valid until tokenValiditySeconds after it was issued.
+ * <p/>
+ * A cookie login doesn't read the user either, the UserDetails is built from the cookie: the username is the user's id,
+ * as it is for SpringSecurityService, with SpringSecurityService's authorities. The UserDetailsService is never asked,
+ * load the user from the AccountService when it's needed.
+ * <p/>
+ * Without a stored token there's no theft detection, a copied cookie works until it expires unless it's revoked. A
+ * logout revokes the cookie's series and {@link #revoke(User)} revokes every cookie issued to a user so far, do that
+ * for a user that's removed too. The revocations go to the TokenRepository, each node keeps the ones still in force in
+ * memory and a daemon thread fetches the new ones every refreshIntervalSeconds, so a revocation made on another node
+ * takes up to that long to apply. Until the first fetch succeeds every cookie is refused.
+ * <p/>
+ * The key has to be set, keep it secret and the same on every node. Changing it invalidates every cookie.
+ */
+public class SignedRememberMeService extends AbstractRememberMeServices implements DisposableBean {
+
+    public static final String ALGORITHM = "HmacSHA256";
+    public static final int DEFAULT_SERIES_LENGTH = 16;
+    public static final int DEFAULT_REFRESH_INTERVAL = 30;
+
+    private static final String DEFAULT_COOKIE = "cookieName";
+    private static final String DEFAULT_PARAMETER = "_remember_me";
+
+    /**
+     * Revocations are fetched from a little before the last fetch, so one stamped by a node with a slow clock isn't
+     * missed.
+     */
+    private static final long REFRESH_OVERLAP = 60 * 1000;
+
+    private final Log log = LogFactory.getLog(this.getClass());
+
+    @Resource
+    private TokenRepository tokenRepository;
+
+    @Resource
+    private AccountService accountService;
+
+    private TokenGenerator tokenGenerator;
+    private int seriesLength = DEFAULT_SERIES_LENGTH;
+    private int refreshIntervalSeconds = DEFAULT_REFRESH_INTERVAL;
+
+    private SecretKeySpec secret;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(secret);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Couldn't create a " + ALGORITHM + " mac.", e);
+            }
+        }
+    };
+
+    /**
+     * user id:series to the time the series was revoked.
+     */
+    private final ConcurrentMap<String, Long> revokedSeries = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * user id to the time of the latest revocation of all the user's cookies.
+     */
+    private final ConcurrentMap<String, Long> revokedUsers = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile boolean loaded;
+    private volatile long loadedUpTo;
+
+    private ScheduledExecutorService scheduler;
+
+    public SignedRememberMeService() throws Exception {
+        tokenGenerator = new SecureRandomTokenGenerator();
+        setParameter(DEFAULT_PARAMETER);
+        setCookieName(DEFAULT_COOKIE);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        secret = new SecretKeySpec(getKey().getBytes("UTF-8"), ALGORITHM);
+        // fail at startup rather than on the first login.
+        macs.get();
+        refresh();
+
+        if (refreshIntervalSeconds <= 0)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rememberme-revocations");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    // don't let one failure cancel every later refresh.
+                    if (log.isWarnEnabled())
+                        log.warn("Refreshing remember me revocations failed.", e);
+                }
+            }
+        }, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the refresh thread.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    public UserDetails processAutoLoginCookie(String[] cookieTokens, HttpServletRequest request, HttpServletResponse response) throws RememberMeAuthenticationException, UsernameNotFoundException {
+
+        if (cookieTokens.length != 4) {
+            if (log.isDebugEnabled())
+                log.debug("Cookie token did not contain 4 tokens, it contained '" + Arrays.asList(cookieTokens) + "'");
+            throw new InvalidCookieException("Cookie token did not contain 4 tokens, it contained '" + cookieTokens.length + "'");
+        }
+
+        final String presentedId = cookieTokens[0];
+        final String presentedSeries = cookieTokens[1];
+        final long issued;
+        try {
+            issued = Long.parseLong(cookieTokens[2]);
+        } catch (NumberFormatException e) {
+            throw new InvalidCookieException("Cookie issue time was not a number, it was '" + cookieTokens[2] + "'");
+        }
+
+        if (!isSigned(presentedId, presentedSeries, issued, cookieTokens[3])) {
+            if (log.isInfoEnabled())
+                log.info("Invalid signature on remember me cookie for id: " + presentedId + " series: " + presentedSeries);
+            throw new InvalidCookieException("Cookie signature did not match.");
+        }
+
+        if (issued + getTokenValiditySeconds() * 1000l < System.currentTimeMillis()) {
+            if (log.isInfoEnabled())
+                log.info("The cookie has expired.");
+            throw new RememberMeAuthenticationException("Remember-me cookie has expired");
+        }
+
+        if (!loaded)
+            throw new RememberMeAuthenticationException("Revocations haven't been loaded, can't check the cookie.");
+
+        if (isRevoked(presentedId, presentedSeries, issued)) {
+            if (log.isInfoEnabled())
+                log.info("Revoked remember me cookie presented for id: " + presentedId + " series: " + presentedSeries);
+            throw new RememberMeAuthenticationException("Remember-me cookie has been revoked");
+        }
+
+        // the signature vouches for the id, there's nothing to read.
+        return new org.springframework.security.core.userdetails.User(presentedId, "", true, true, true, true, SpringSecurityService.AUTHORITIES);
+    }
+
+    /**
+     * Issues a signed cookie with a new series, nothing is stored.
+     */
+    protected void onLoginSuccess(HttpServletRequest request, HttpServletResponse response, Authentication successfulAuthentication) {
+        User user;
+        try {
+            user = accountService.getUser(successfulAuthentication.getName(), UserView.AUTH);
+        } catch (AccountsException e) {
+            log.error("Exception thrown getting user. Cannot process login, no cookie will be set.", e);
+            return;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Issuing signed remember me cookie for user " + user);
+
+        String id = user.getId().toString();
+        String series = tokenGenerator.generate(seriesLength);
+        long issued = System.currentTimeMillis();
+        setCookie(new String[]{id, series, Long.toString(issued), sign(id, series, issued)}, getTokenValiditySeconds(), request, response);
+    }
+
+    /**
+     * Revokes the series of the cookie presented, if it's one of ours, then cancels it.
+     */
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        String cookie = extractRememberMeCookie(request);
+        if (cookie != null) {
+            try {
+                String[] cookieTokens = decodeCookie(cookie);
+                // only a signed cookie, otherwise anyone could fill the revocations.
+                if (cookieTokens.length == 4 && isSigned(cookieTokens[0], cookieTokens[1], Long.parseLong(cookieTokens[2]), cookieTokens[3])) {
+                    User user = accountService.getUser(cookieTokens[0], UserView.AUTH);
+                    if (user != null) {
+                        tokenRepository.revoke(cookieTokens[1], user);
+                        apply(revokedSeries, cookieTokens[0] + ":" + cookieTokens[1], System.currentTimeMillis());
+                    }
+                }
+            } catch (InvalidCookieException e) {
+                if (log.isDebugEnabled())
+                    log.debug("Invalid remember me cookie at logout, nothing to revoke.", e);
+            } catch (NumberFormatException e) {
+                if (log.isDebugEnabled())
+                    log.debug("Invalid remember me cookie at logout, nothing to revoke.", e);
+            } catch (AccountsException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Couldn't revoke the remember me cookie at logout, it stays valid until it expires.", e);
+            }
+        }
+        super.logout(request, response, authentication);
+    }
+
+    /**
+     * Revokes every cookie issued to the user so far, on every node once they've refreshed.
+     *
+     * @param user the user
+     */
+    public void revoke(User user) throws AccountsException {
+        tokenRepository.revoke(null, user);
+        apply(revokedUsers, user.getId().toString(), System.currentTimeMillis());
+    }
+
+    /**
+     * Fetches the revocations made since the last fetch, called at startup and then every refreshIntervalSeconds. Only
+     * one thread fetches at a time, a call while another is fetching returns straight away.
+     */
+    public void refresh() {
+        if (!refreshing.compareAndSet(false, true))
+            return;
+        try {
+            long now = System.currentTimeMillis();
+            long oldest = now - getTokenValiditySeconds() * 1000l;
+            Date since = new Date(Math.max(loadedUpTo - REFRESH_OVERLAP, oldest));
+            try {
+                List<RememberMeToken> revocations = tokenRepository.getRevocations(since);
+                for (RememberMeToken revocation : revocations) {
+                    String id = revocation.getUser().getId().toString();
+                    if (revocation.getSeries() == null)
+                        apply(revokedUsers, id, revocation.getDate().getTime());
+                    else
+                        apply(revokedSeries, id + ":" + revocation.getSeries(), revocation.getDate().getTime());
+                }
+                loadedUpTo = now;
+                loaded = true;
+
+                // a revocation older than the validity only covers cookies that have expired anyway.
+                prune(revokedSeries, oldest);
+                prune(revokedUsers, oldest);
+
+                if (log.isDebugEnabled())
+                    log.debug("Loaded " + revocations.size() + " revocations since " + since + ", " + revokedSeries.size() + " series and " + revokedUsers.size() + " users revoked.");
+            } catch (AccountsException e) {
+                if (log.isWarnEnabled())
+                    log.warn("Couldn't load remember me revocations, will retry in " + refreshIntervalSeconds + "s.", e);
+            }
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    private boolean isRevoked(String id, String series, long issued) {
+        if (revokedSeries.containsKey(id + ":" + series))
+            return true;
+        Long revoked = revokedUsers.get(id);
+        return revoked != null && issued <= revoked;
+    }
+
+    /**
+     * Keeps the latest revocation time for the key.
+     */
+    private static void apply(ConcurrentMap<String, Long> revoked, String key, long time) {
+        Long current = revoked.putIfAbsent(key, time);
+        while (current != null && current < time && !revoked.replace(key, current, time))
+            current = revoked.putIfAbsent(key, time);
+    }
+
+    private static void prune(ConcurrentMap<String, Long> revoked, long oldest) {
+        for (Iterator<Long> i = revoked.values().iterator(); i.hasNext();) {
+            if (i.next() < oldest)
+                i.remove();
+        }
+    }
+
+    String sign(String id, String series, long issued) {
+        try {
+            byte[] signature = macs.get().doFinal((id + ":" + series + ":" + issued).getBytes("UTF-8"));
+            return new String(Hex.encodeHex(signature));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 isn't supported.", e);
+        }
+    }
+
+    /**
+     * Compares every character whatever the result, so the time taken doesn't give away how much of a forged
+     * signature was right.
+     */
+    private boolean isSigned(String id, String series, long issued, String signature) {
+        String expected = sign(id, series, issued);
+        if (signature.length() != expected.length())
+            return false;
+        int diff = 0;
+        for (int i = 0; i < expected.length(); i++)
+            diff |= expected.charAt(i) ^ signature.charAt(i);
+        return diff == 0;
+    }
+
+    public TokenGenerator getTokenGenerator() {
+        return tokenGenerator;
+    }
+
+    /**
+     * @param tokenGenerator generates the series, defaults to a SecureRandomTokenGenerator.
+     */
+    public void setTokenGenerator(TokenGenerator tokenGenerator) {
+        this.tokenGenerator = tokenGenerator;
+    }
+
+    public int getSeriesLength() {
+        return seriesLength;
+    }
+
+    public void setSeriesLength(int seriesLength) {
+        this.seriesLength = seriesLength;
+    }
+
+    public int getRefreshIntervalSeconds() {
+        return refreshIntervalSeconds;
+    }
+
+    /**
+     * @param refreshIntervalSeconds how often new revocations are fetched, 0 or less only fetches them at startup and
+     *                               when refresh is called. Set before afterPropertiesSet.
+     */
+    public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    @Override
+    public int getTokenValiditySeconds() {
+        return super.getTokenValiditySeconds();
+    }
+}
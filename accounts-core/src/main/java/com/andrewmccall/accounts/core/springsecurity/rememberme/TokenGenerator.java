@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+/**
+ * Generates the random series and token values for remember-me cookies. Implementations are called from every request
+ * thread and must be safe for concurrent use.
+ */
+public interface TokenGenerator {
+
+    /**
+     * Generates a new random value.
+     *
+     * @param length the number of random bytes in the value.
+     * @return the random bytes, Base64 encoded.
+     */
+    String generate(int length);
+
+}
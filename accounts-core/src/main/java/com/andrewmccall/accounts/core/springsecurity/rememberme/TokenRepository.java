@@ -13,6 +13,9 @@ package com.andrewmccall.accounts.core.springsecurity.rememberme;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
 
+import java.util.Date;
+import java.util.List;
+
 /**
  * Used to store tokens
  */
@@ -25,6 +28,13 @@ public interface TokenRepository {
      */
     void create (RememberMeToken rememberMeToken) throws AccountsException;
 
+    /**
+     * Stores a new RememberMeToken unless the user already has a token with its series, as a single atomic write.
+     * @param rememberMeToken the token to store.
+     * @return true if the token was stored, false if the series was already in use.
+     */
+    boolean createIfAbsent (RememberMeToken rememberMeToken) throws AccountsException;
+
     /**
      * Checks to see if we already have an existing token with the same series for a user. This should be exceedingly
      * rare, but it can cause some issues if we're warning a user that their cookie has been hijacked.
@@ -50,9 +60,29 @@ public interface TokenRepository {
     void removeUserTokens(User user);
 
     /**
-     * updates a token. 
+     * updates a token, replacing the value and date of the user's token for its series. A token is picked by user and
+     * series together, a token for another user with the same series is a different token. If the user has no token
+     * for the series it's stored as a new one, HBase can't tell the difference in a single write so no store does.
      * @param token the token to update
      */
     void update(RememberMeToken token) throws AccountsException;
 
+    /**
+     * Records that the user's cookies for a series, or every cookie issued to the user up to now when the series is
+     * null, are no longer valid. Only needed where the cookies aren't checked against a stored token, see
+     * SignedRememberMeService.
+     * @param series the series, null for all the user's series.
+     * @param user the user
+     */
+    void revoke(String series, User user) throws AccountsException;
+
+    /**
+     * gets the revocations recorded after a given time, as tokens holding the series (null for all the user's series),
+     * the user, with only the id set, and the time of the revocation. A store may drop a revocation once the cookies it
+     * revokes have expired.
+     * @param since the time of the last revocation already seen
+     * @return the revocations after since, in no particular order.
+     */
+    List<RememberMeToken> getRevocations(Date since) throws AccountsException;
+
 }
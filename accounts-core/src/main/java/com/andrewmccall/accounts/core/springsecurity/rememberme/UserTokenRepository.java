@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountsException;
+
+/**
+ * Implemented by TokenRepositories that can load a token together with its user more cheaply than loading the user
+ * from the AccountService and then the token, e.g. because they live in the same row. A cookie login uses it when the
+ * repository offers it.
+ */
+public interface UserTokenRepository extends TokenRepository {
+
+    /**
+     * gets the current token for a series along with the user it belongs to.
+     *
+     * @param userId the user's id as a String, as it's stored in the cookie.
+     * @param series the series.
+     * @return the token, with getUser() returning the fully loaded user, or null if either the user or the token
+     *         doesn't exist.
+     * @throws AccountsException to wrap any underlying exception thrown.
+     */
+    RememberMeToken getTokenWithUser(String userId, String series) throws AccountsException;
+
+}
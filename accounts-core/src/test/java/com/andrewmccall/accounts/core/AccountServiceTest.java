@@ -16,6 +16,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.springframework.transaction.annotation.Transactional;
 
@@ -82,6 +86,144 @@ public abstract class AccountServiceTest<T> {
 
     }
 
+    @Test
+    @Transactional
+    public void testGetUsers() throws AccountsException {
+        User<T> second = new User<T>();
+        RandomTestUtils.generateUser(second);
+
+        accountService.createUser(second);
+        accountService.createUser(user);
+
+        T missing = getId();
+        List<T> ids = Arrays.asList(user.getId(), missing, second.getId(), user.getId());
+        Map<T, User<T>> users = accountService.getUsers(ids);
+
+        assertEquals("Missing and duplicate ids should be left out.", 2, users.size());
+        assertFalse("The missing id shouldn't be in the map.", users.containsKey(missing));
+        assertEquals("The users should be returned in the order asked for.", Arrays.asList(user.getId(), second.getId()), new ArrayList<T>(users.keySet()));
+        assertEquals(user, users.get(user.getId()));
+        assertEquals(second, users.get(second.getId()));
+
+        assertTrue("No ids should give an empty map.", accountService.getUsers(new ArrayList<T>()).isEmpty());
+    }
+
+    @Test
+    @Transactional
+    public void testGetUserView() throws AccountsException {
+        accountService.createUser(user);
+
+        User<T> ret = accountService.getUser(user.getId().toString(), UserView.AUTH);
+        assertEquals("The id should always be loaded.", user.getId(), ret.getId());
+        assertEquals("The twitterId should always be loaded.", user.getTwitterId(), ret.getTwitterId());
+        assertEquals("The username is part of the auth view.", user.getUsername(), ret.getUsername());
+        assertEquals("The time zone is part of the auth view.", user.getTimeZoneId(), ret.getTimeZoneId());
+
+        ret = accountService.getUser(user.getId().toString(), UserView.FULL);
+        assertEquals("The full view should have everything.", user.getBio(), ret.getBio());
+    }
+
+    @Test
+    @Transactional
+    public void testDirtyTracking() throws AccountsException {
+        accountService.createUser(user);
+        assertFalse("A created user matches what's stored.", user.isDirty());
+
+        User<T> ret = accountService.getUser(user.getId());
+        assertFalse("A loaded user matches what's stored.", ret.isDirty());
+        // nothing to write.
+        accountService.update(ret);
+
+        ret.setBio("changed");
+        assertEquals(User.FIELD_BIO, ret.getDirtyFields());
+        accountService.update(ret);
+        assertFalse("An updated user matches what's stored.", ret.isDirty());
+        assertEquals("changed", accountService.getUser(user.getId()).getBio());
+        assertEquals("Fields that weren't changed should be left alone.", user.getName(), accountService.getUser(user.getId()).getName());
+    }
+
+    @Test
+    @Transactional
+    public void testUpdatePartialUser() throws AccountsException {
+        accountService.createUser(user);
+
+        // all an update has to go on for a user loaded with the AUTH view, or one built from its id.
+        User<T> partial = new User<T>();
+        partial.setId(user.getId());
+        partial.setTwitterId(user.getTwitterId());
+        partial.clearDirty();
+        partial.setName("changed");
+        accountService.update(partial);
+        assertFalse(partial.isDirty());
+
+        User<T> ret = accountService.getUser(user.getId());
+        assertEquals("changed", ret.getName());
+        assertEquals("Fields that weren't changed should survive.", user.getBio(), ret.getBio());
+        assertEquals(user.getUsername(), ret.getUsername());
+        assertEquals(user.getWebsite(), ret.getWebsite());
+        assertEquals(user.getLocation(), ret.getLocation());
+    }
+
+    @Test
+    @Transactional
+    public void testUpsertForTwitterId() throws AccountsException {
+        UpsertResult<T> result = accountService.upsertForTwitterId(user);
+        assertTrue("The user should have been created.", result.isCreated());
+        assertNotNull("The user should have an ID! ", result.getUser().getId());
+        T id = result.getUser().getId();
+
+        User<T> profile = new User<T>();
+        profile.setTwitterId(user.getTwitterId());
+        profile.copyProfile(user);
+
+        result = accountService.upsertForTwitterId(profile);
+        assertFalse("The user exists, it shouldn't be created again.", result.isCreated());
+        assertFalse("Nothing changed.", result.isChanged());
+        assertEquals(id, result.getUser().getId());
+
+        profile = new User<T>();
+        RandomTestUtils.generateUser(profile);
+        profile.setTwitterId(user.getTwitterId());
+
+        result = accountService.upsertForTwitterId(profile);
+        assertFalse("The user exists, it shouldn't be created again.", result.isCreated());
+        assertTrue("The profile changed.", result.isChanged());
+        assertEquals(id, result.getUser().getId());
+
+        User<T> ret = accountService.getUser(id);
+        assertEquals("The update should have been stored.", profile.getName(), ret.getName());
+        assertEquals("The update should have been stored.", profile.getBio(), ret.getBio());
+    }
+
+    @Test(expected = AccountsException.class)
+    @Transactional
+    public void testDuplicateTwitterId() throws AccountsException {
+        accountService.createUser(user);
+
+        User<T> duplicate = new User<T>();
+        RandomTestUtils.generateUser(duplicate);
+        duplicate.setTwitterId(user.getTwitterId());
+        accountService.createUser(duplicate);
+    }
+
+    /**
+     * usernames aren't unique in any store, twitter hands a username on once it's given up and the user that gave it up
+     * keeps it until they next log in.
+     */
+    @Test
+    @Transactional
+    public void testSharedUsername() throws AccountsException {
+        accountService.createUser(user);
+
+        User<T> other = new User<T>();
+        RandomTestUtils.generateUser(other);
+        other.setUsername(user.getUsername());
+        accountService.createUser(other);
+
+        assertEquals(user.getUsername(), accountService.getUser(user.getId()).getUsername());
+        assertEquals(user.getUsername(), accountService.getUser(other.getId()).getUsername());
+    }
+
     @Test(expected = AccountsException.class)
     @Transactional
     public void testNoUserReturnsNull() throws AccountsException {
@@ -14,6 +14,8 @@ package com.andrewmccall.accounts.core;
 import java.util.TimeZone;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -36,4 +38,25 @@ public class UserTest {
 
     }
 
+    @Test
+    public void testDirtyFields() {
+        User andrew = new User();
+        assertEquals("A new user doesn't know what's stored.", User.ALL_FIELDS, andrew.getDirtyFields());
+
+        andrew.setName("Andrew");
+        andrew.setTimeZoneId("GMT");
+        andrew.clearDirty();
+        assertFalse(andrew.isDirty());
+
+        andrew.setName("Andrew");
+        andrew.setTimeZoneId("GMT");
+        assertFalse("Setting the same values shouldn't dirty the user.", andrew.isDirty());
+
+        andrew.setBio("bio");
+        andrew.setTimeZoneId("PST");
+        assertEquals(User.FIELD_BIO | User.FIELD_TIME_ZONE, andrew.getDirtyFields());
+        assertTrue(andrew.isDirty(User.FIELD_BIO));
+        assertFalse(andrew.isDirty(User.FIELD_NAME));
+    }
+
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.bulk;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips users through the line format using a list backed store.
+ */
+public class BulkToolTest {
+
+    @Test
+    public void testFormatAndParse() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        user.setId(42l);
+        user.setBio("Line one\nline two, \"quoted\" é");
+        user.setWebsite(null);
+
+        User<String> parsed = UserLines.parse(UserLines.format(user));
+        assertEquals("42", parsed.getId());
+        assertEquals(user.getTwitterId(), parsed.getTwitterId());
+        assertEquals(user.getBio(), parsed.getBio());
+        assertNull("Null fields should stay null.", parsed.getWebsite());
+        assertFalse("Nothing else should differ.", parsed.copyProfile(user));
+    }
+
+    @Test
+    public void testExportThenImport() throws Exception {
+        ListStore from = new ListStore();
+        for (int i = 0; i < 3; i++) {
+            User<Long> user = new User<Long>();
+            RandomTestUtils.generateUser(user);
+            user.setId((long) i);
+            from.users.add(user);
+        }
+
+        StringWriter out = new StringWriter();
+        assertEquals(3, new BulkTool(from).exportUsers(out));
+        assertEquals("One line per user.", 3, out.toString().split("\n").length);
+
+        ListStore to = new ListStore();
+        assertEquals(3, new BulkTool(to).importUsers(new StringReader(out.toString() + "\n\n")));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(from.users.get(i).getTwitterId(), to.users.get(i).getTwitterId());
+            assertEquals(from.users.get(i).getName(), to.users.get(i).getName());
+        }
+    }
+
+    @Test
+    public void testMalformedLine() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        String input = UserLines.format(user) + "\n{not json\n";
+
+        ListStore to = new ListStore();
+        try {
+            new BulkTool(to).importUsers(new StringReader(input));
+            fail("The second line should fail the import.");
+        } catch (AccountsException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+        }
+        assertEquals("The users before the bad line are kept.", 1, to.users.size());
+    }
+
+    private static class ListStore implements BulkAccountStore<Long> {
+
+        private final List<User<Long>> users = new ArrayList<User<Long>>();
+
+        public long importUsers(Iterator<? extends User<?>> iterator) throws AccountsException {
+            long count = 0;
+            while (iterator.hasNext()) {
+                User<?> from = iterator.next();
+                User<Long> user = new User<Long>();
+                user.setId((long) users.size());
+                user.setTwitterId(from.getTwitterId());
+                user.copyProfile(from);
+                users.add(user);
+                count++;
+            }
+            return count;
+        }
+
+        public long exportUsers(UserHandler<Long> handler) throws AccountsException {
+            for (User<Long> user : users)
+                handler.handle(user);
+            return users.size();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.cache;
+
+import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.UpsertResult;
+import com.andrewmccall.accounts.core.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the CachingAccountService against a mocked backend.
+ */
+public class CachingAccountServiceTest {
+
+    private AccountService<Long> delegate;
+    private CachingAccountService<Long> accountService;
+    private User<Long> user;
+
+    @Before
+    @SuppressWarnings({"unchecked"})
+    public void setup() {
+        delegate = mock(AccountService.class);
+        accountService = new CachingAccountService<Long>(delegate);
+        accountService.setCacheName("test");
+        accountService.setup();
+
+        user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        user.setId(1l);
+    }
+
+    @After
+    public void close() {
+        accountService.close();
+    }
+
+    @Test
+    public void testGetUserIsCached() throws AccountsException {
+        when(delegate.getUser(1l)).thenReturn(user);
+
+        assertEquals(user.getName(), accountService.getUser(1l).getName());
+        assertEquals(user.getName(), accountService.getUser(1l).getName());
+        assertEquals(user.getName(), accountService.getUser("1").getName());
+
+        verify(delegate, times(1)).getUser(1l);
+        verify(delegate, never()).getUser("1");
+        assertEquals(2, accountService.getHitCount());
+        assertEquals(1, accountService.getMissCount());
+    }
+
+    @Test
+    public void testCachedUserIsACopy() throws AccountsException {
+        when(delegate.getUser(1l)).thenReturn(user);
+
+        accountService.getUser(1l).setName("changed");
+        assertEquals(user.getName(), accountService.getUser(1l).getName());
+    }
+
+    @Test
+    public void testMissingUserIsNotCached() throws AccountsException {
+        assertNull(accountService.getUser(1l));
+        assertNull(accountService.getUser(1l));
+        verify(delegate, times(2)).getUser(1l);
+    }
+
+    @Test
+    public void testGetUserForTwitterIdIsCached() throws AccountsException {
+        when(delegate.getUserForTwitterId(user.getTwitterId())).thenReturn(user);
+
+        assertEquals(user.getId(), accountService.getUserForTwitterId(user.getTwitterId()).getId());
+        assertEquals(user.getId(), accountService.getUserForTwitterId(user.getTwitterId()).getId());
+        assertEquals(user.getId(), accountService.getUser(1l).getId());
+        assertTrue(accountService.twitterIdExists(user.getTwitterId()));
+
+        verify(delegate, times(1)).getUserForTwitterId(user.getTwitterId());
+        verify(delegate, never()).getUser(1l);
+        verify(delegate, never()).twitterIdExists(anyLong());
+    }
+
+    @Test
+    public void testUpdateInvalidates() throws AccountsException {
+        when(delegate.getUser(1l)).thenReturn(user);
+        when(delegate.getUserForTwitterId(user.getTwitterId())).thenReturn(user);
+        accountService.getUser(1l);
+
+        accountService.update(user);
+        accountService.getUser(1l);
+        accountService.getUserForTwitterId(user.getTwitterId());
+
+        verify(delegate, times(2)).getUser(1l);
+        verify(delegate, times(1)).getUserForTwitterId(user.getTwitterId());
+        assertTrue(accountService.getInvalidationCount() > 0);
+    }
+
+    @Test
+    public void testUpdateChangingTwitterIdInvalidatesTheOldOne() throws AccountsException {
+        long oldTwitterId = user.getTwitterId();
+        when(delegate.getUserForTwitterId(oldTwitterId)).thenReturn(user);
+        accountService.getUserForTwitterId(oldTwitterId);
+
+        User<Long> changed = new User<Long>();
+        changed.setId(1l);
+        changed.setTwitterId(oldTwitterId + 1);
+        changed.copyProfile(user);
+        accountService.update(changed);
+
+        when(delegate.getUserForTwitterId(oldTwitterId)).thenReturn(null);
+        assertNull(accountService.getUserForTwitterId(oldTwitterId));
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testUpsertInvalidatesOnlyWhenChanged() throws AccountsException {
+        when(delegate.getUser(1l)).thenReturn(user);
+        accountService.getUser(1l);
+
+        when(delegate.upsertForTwitterId(user)).thenReturn(new UpsertResult<Long>(user, false, false));
+        accountService.upsertForTwitterId(user);
+        accountService.getUser(1l);
+        verify(delegate, times(1)).getUser(1l);
+
+        when(delegate.upsertForTwitterId(user)).thenReturn(new UpsertResult<Long>(user, false, true));
+        accountService.upsertForTwitterId(user);
+        accountService.getUser(1l);
+        verify(delegate, times(2)).getUser(1l);
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testGetUsersOnlyFetchesMisses() throws AccountsException {
+        User<Long> other = new User<Long>();
+        RandomTestUtils.generateUser(other);
+        other.setId(2l);
+
+        when(delegate.getUser(1l)).thenReturn(user);
+        accountService.getUser(1l);
+
+        Map<Long, User<Long>> fetched = new LinkedHashMap<Long, User<Long>>();
+        fetched.put(2l, other);
+        when(delegate.getUsers(Arrays.asList(2l, 3l))).thenReturn(fetched);
+
+        Map<Long, User<Long>> users = accountService.getUsers(Arrays.asList(2l, 1l, 3l));
+        assertEquals(Arrays.asList(2l, 1l), Arrays.asList(users.keySet().toArray()));
+        verify(delegate).getUsers(Arrays.asList(2l, 3l));
+    }
+
+}
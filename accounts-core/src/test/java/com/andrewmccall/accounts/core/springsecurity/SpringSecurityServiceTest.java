@@ -29,6 +29,7 @@ import javax.annotation.Resource;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.RandomTestUtils;
 import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.UserView;
 
 import java.util.UUID;
 
@@ -55,7 +56,7 @@ public class SpringSecurityServiceTest {
         user = new User<UUID>();
         RandomTestUtils.generateUser(user);
         user.setId(UUID.randomUUID());
-        when(accountService.getUser(user.getId().toString())).thenReturn(user);
+        when(accountService.getUser(user.getId().toString(), UserView.FULL)).thenReturn(user);
 
     }
 
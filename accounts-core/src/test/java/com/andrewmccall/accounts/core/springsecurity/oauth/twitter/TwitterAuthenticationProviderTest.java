@@ -44,6 +44,7 @@ import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
 import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.UpsertResult;
 
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
@@ -114,7 +115,8 @@ public class TwitterAuthenticationProviderTest {
         HttpGet request = new HttpGet(url);
         service.prepare(cap.capture(), eq(token));
 
-        when(accountService.twitterIdExists(user.getTwitterId())).thenReturn(false);
+        ArgumentCaptor<User> profile = ArgumentCaptor.forClass(User.class);
+        when(accountService.upsertForTwitterId(profile.capture())).thenReturn(new UpsertResult(user, true, false));
 
         when(httpClient.execute(cap.capture())).thenReturn(response);
         when(response.getStatusLine()).thenReturn(statusLine);
@@ -125,12 +127,14 @@ public class TwitterAuthenticationProviderTest {
         when(entity.getContent()).thenReturn(userAsStream(user));
         entity.consumeContent();
 
-        doNothing().when(accountService).createUser(eq(user));
-
-
         authenticationProvider.authenticate(auth);
 
         assertEquals(request.getURI(), cap.getValue().getURI());
+        assertEquals(user.getTwitterId(), profile.getValue().getTwitterId());
+        assertEquals(user.getUsername(), profile.getValue().getUsername());
+        assertEquals(user.getTimeZoneId(), profile.getValue().getTimeZoneId());
+        assertEquals(user, auth.getUser());
+        verify(accountService, never()).twitterIdExists(anyLong());
 
     }
 
@@ -140,7 +144,6 @@ public class TwitterAuthenticationProviderTest {
         RandomTestUtils.setId(user);
 
         HttpGet request = new HttpGet(url);
-        when(accountService.twitterIdExists(user.getTwitterId())).thenReturn(true);
 
         when(httpClient.execute(cap.capture())).thenReturn(response);
         when(response.getStatusLine()).thenReturn(statusLine);
@@ -150,7 +153,7 @@ public class TwitterAuthenticationProviderTest {
         when(entity.getContent()).thenReturn(userAsStream(user));
         entity.consumeContent();
 
-        when(accountService.getUserForTwitterId(user.getTwitterId())).thenReturn(user);
+        when(accountService.upsertForTwitterId(isA(User.class))).thenReturn(new UpsertResult(user, false, false));
         ArgumentCaptor<AccessToken> tc = ArgumentCaptor.forClass(AccessToken.class);
 
         authenticationProvider.authenticate((Authentication) auth);
@@ -172,8 +175,6 @@ public class TwitterAuthenticationProviderTest {
         HttpGet request = new HttpGet(url);
         service.prepare(cap.capture(), eq(token));
 
-        when(accountService.twitterIdExists(user.getTwitterId())).thenReturn(true);
-
         when(httpClient.execute(cap.capture())).thenReturn(response);
         when(response.getStatusLine()).thenReturn(statusLine);
         when(statusLine.getStatusCode()).thenReturn(200);
@@ -188,12 +189,15 @@ public class TwitterAuthenticationProviderTest {
 
         entity.consumeContent();
 
-        when(accountService.getUserForTwitterId(user.getTwitterId())).thenReturn(user);
-
-        accountService.update(nuser);
+        ArgumentCaptor<User> profile = ArgumentCaptor.forClass(User.class);
+        when(accountService.upsertForTwitterId(profile.capture())).thenReturn(new UpsertResult(nuser, false, true));
 
         authenticationProvider.authenticate(auth);
 
+        assertEquals(nuser.getName(), profile.getValue().getName());
+        assertEquals(nuser.getBio(), profile.getValue().getBio());
+        assertEquals(nuser, auth.getUser());
+
     }
 
     private InputStream userAsStream(final User user) throws JSONException, UnsupportedEncodingException {
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.oauth.AccessToken;
+import com.andrewmccall.oauth.oauth_1_0.Service;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the client against a stub verify_credentials on localhost.
+ */
+public class VerifyCredentialsClientTest {
+
+    private HttpServer server;
+    private VerifyCredentialsClient client;
+    private DefaultHttpClient httpClient;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/verify_credentials.json", new Respond("{\"id\": 42}"));
+        server.createContext("/slow.json", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                new Respond("{\"id\": 1}").handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, 10);
+        httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+
+        client = new VerifyCredentialsClient();
+        client.setHttpClient(httpClient);
+        client.setService(mock(Service.class));
+        client.setUrl(url("/verify_credentials.json"));
+    }
+
+    @After
+    public void teardown() {
+        release.countDown();
+        client.stop();
+        server.stop(0);
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        client.start();
+        Future<User<Long>> future = client.verify(new AccessToken() {});
+        assertEquals(42, client.await(future).getTwitterId());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        client.setUrl(url("/slow.json"));
+        client.setTimeoutMillis(200);
+        client.start();
+
+        try {
+            client.await(client.verify(new AccessToken() {}));
+            fail("The stub doesn't answer until it's released.");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertEquals(1, client.getTimeoutCount());
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        client.setUrl(url("/slow.json"));
+        client.setMaxInFlight(1);
+        client.start();
+
+        Future<User<Long>> first = client.verify(new AccessToken() {});
+        try {
+            client.verify(new AccessToken() {});
+            fail("Only one call should be allowed in flight.");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, client.getRejectedCount());
+
+        release.countDown();
+        assertEquals(1, client.await(first).getTwitterId());
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static class Respond implements HttpHandler {
+
+        private final byte[] body;
+
+        private Respond(String body) {
+            this.body = body.getBytes();
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.oauth.twitter;
+
+import com.andrewmccall.accounts.core.User;
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerifyCredentialsParserTest {
+
+    private static final String RESPONSE = "{\"profile_background_tile\":false,\"id\":14184588," +
+            "\"name\":\"Andrew \\\"Drew\\\" McCall\\u00e9\"," +
+            "\"screen_name\":\"andrewmccall\"," +
+            "\"location\":\"London, UK\"," +
+            "\"description\":\"Line one\\nLine two {not an object}\"," +
+            "\"url\":\"http:\\/\\/www.andrewmccall.com\"," +
+            "\"followers_count\":1024," +
+            "\"friends_count\":512," +
+            "\"utc_offset\":-18000," +
+            "\"geo_enabled\":null," +
+            "\"status\":{\"id\":99,\"text\":\"a \\\"quoted\\\" ] status }\",\"coordinates\":[1.5,-2e3],\"user\":{}}," +
+            "\"time_zone\":\"GMT\"," +
+            "\"created_at\":\"Wed Mar 19 13:16:47 +0000 2008\"}";
+
+    @Test
+    public void testParse() throws Exception {
+        User<Long> profile = VerifyCredentialsParser.parse(new StringReader(RESPONSE));
+
+        assertEquals("The nested status id shouldn't be read.", 14184588l, profile.getTwitterId());
+        assertEquals("Andrew \"Drew\" McCall\u00e9", profile.getName());
+        assertEquals("andrewmccall", profile.getUsername());
+        assertEquals("London, UK", profile.getLocation());
+        assertEquals("Line one\nLine two {not an object}", profile.getBio());
+        assertEquals("http://www.andrewmccall.com", profile.getWebsite());
+        assertEquals(1024, profile.getFollowers());
+        assertEquals(512, profile.getFriends());
+        assertEquals(TimeZone.getTimeZone("GMT").getID(), profile.getTimeZoneId());
+    }
+
+    @Test
+    public void testNulls() throws Exception {
+        User<Long> profile = VerifyCredentialsParser.parse(new StringReader(" { \"id\" : 1 , \"url\" : null , \"time_zone\" : null , \"followers_count\" : null } "));
+
+        assertEquals(1, profile.getTwitterId());
+        assertNull(profile.getWebsite());
+        assertEquals("A null time_zone should leave the default.", TimeZone.getDefault().getID(), profile.getTimeZoneId());
+        assertEquals(0, profile.getFollowers());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testNoId() throws Exception {
+        VerifyCredentialsParser.parse(new StringReader("{\"name\":\"Andrew\"}"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testTruncated() throws Exception {
+        VerifyCredentialsParser.parse(new StringReader("{\"id\":1,\"name\":\"And"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the AsyncTokenWriter against a mocked TokenRepository.
+ */
+public class AsyncTokenWriterTest {
+
+    private TokenRepository tokenRepository;
+    private AsyncTokenWriter writer;
+    private User user;
+
+    @Before
+    public void setup() {
+        tokenRepository = mock(TokenRepository.class);
+        writer = new AsyncTokenWriter(tokenRepository);
+
+        user = new User();
+        RandomTestUtils.generateUser(user);
+        user = RandomTestUtils.setId(user);
+    }
+
+    @Test
+    public void testWrite() throws AccountsException {
+        RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+        writer.start();
+        writer.submit(token);
+        writer.close();
+
+        verify(tokenRepository).update(token);
+        assertEquals(0, writer.getPendingCount());
+        assertEquals(1, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testPendingIsVisible() throws AccountsException {
+        RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+        writer.submit(token);
+
+        assertSame(token, writer.getPending("series", user));
+        assertNull(writer.getPending("other", user));
+        verify(tokenRepository, never()).update(any(RememberMeToken.class));
+    }
+
+    @Test
+    public void testCoalesce() throws AccountsException {
+        ArgumentCaptor<RememberMeToken> written = ArgumentCaptor.forClass(RememberMeToken.class);
+        doNothing().when(tokenRepository).update(written.capture());
+
+        // nothing's written until the writer starts, so these all pile up on the one series.
+        for (int i = 0; i < 10; i++)
+            writer.submit(new RememberMeToken("series", user, "value" + i, new Date()));
+        writer.start();
+        writer.close();
+
+        verify(tokenRepository, times(1)).update(any(RememberMeToken.class));
+        assertEquals("value9", written.getValue().getValue());
+        assertEquals(9, writer.getCoalescedCount());
+    }
+
+    @Test
+    public void testFullQueueWritesSynchronously() throws AccountsException {
+        writer.setCapacity(1);
+        RememberMeToken first = new RememberMeToken("first", user, "value", new Date());
+        RememberMeToken second = new RememberMeToken("second", user, "value", new Date());
+
+        writer.submit(first);
+        writer.submit(second);
+
+        verify(tokenRepository, never()).update(first);
+        verify(tokenRepository).update(second);
+        assertEquals(1, writer.getRejectedCount());
+    }
+
+    @Test
+    public void testCancel() throws AccountsException {
+        writer.submit(new RememberMeToken("series", user, "value", new Date()));
+        writer.cancel(user);
+        writer.start();
+        writer.close();
+
+        assertNull(writer.getPending("series", user));
+        verify(tokenRepository, never()).update(any(RememberMeToken.class));
+    }
+
+}
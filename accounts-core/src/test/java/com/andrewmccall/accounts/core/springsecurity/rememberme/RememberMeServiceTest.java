@@ -15,6 +15,7 @@ import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.web.authentication.rememberme.InvalidCookieException;
 import org.springframework.security.web.authentication.rememberme.RememberMeAuthenticationException;
@@ -23,6 +24,7 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.LogFactory;
@@ -36,6 +38,8 @@ import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.RandomTestUtils;
 import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UserView;
+import com.andrewmccall.accounts.core.springsecurity.UserDetailsImpl;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*; 
@@ -63,7 +67,6 @@ public class RememberMeServiceTest {
 
     private User user;
     ArgumentCaptor<RememberMeToken> capturedToken = ArgumentCaptor.forClass(RememberMeToken.class);
-    ArgumentCaptor<String> capturedSeries = ArgumentCaptor.forClass(String.class);
 
 
     @Before
@@ -72,7 +75,7 @@ public class RememberMeServiceTest {
         RandomTestUtils.generateUser(user);
         user = RandomTestUtils.setId(user);
         reset(tokenRepository, accountService);
-        when(accountService.getUser(user.getId().toString())).thenReturn(user);
+        when(accountService.getUser(eq(user.getId().toString()), any(UserView.class))).thenReturn(user);
     }
 
     @Test
@@ -81,8 +84,7 @@ public class RememberMeServiceTest {
         rememberMeService.setSeriesLength(random.nextInt(100));
         rememberMeService.setTokenLength(random.nextInt(100));
 
-        when(tokenRepository.exists(capturedSeries.capture(), isA(User.class))).thenReturn(true).thenReturn(false);
-        doNothing().when(tokenRepository).create(capturedToken.capture());
+        when(tokenRepository.createIfAbsent(capturedToken.capture())).thenReturn(false).thenReturn(true);
 
 
         MockHttpServletRequest request = new MockHttpServletRequest();
@@ -94,7 +96,7 @@ public class RememberMeServiceTest {
         // make sure we've set a token cookie for the user
 
         RememberMeToken token = capturedToken.getValue();
-        String series = capturedSeries.getValue();
+        String series = token.getSeries();
 
 
         reset(tokenRepository);
@@ -182,6 +184,17 @@ public class RememberMeServiceTest {
         rememberMeService.processAutoLoginCookie(new String[i], request, response);
     }
 
+    @Test
+    public void testSeriesAttemptsBounded() throws AccountsException {
+        when(tokenRepository.createIfAbsent(any(RememberMeToken.class))).thenReturn(false);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rememberMeService.onLoginSuccess(new MockHttpServletRequest(), response, new TestingAuthenticationToken(user.getId().toString(), ""));
+
+        verify(tokenRepository, times(RememberMeService.MAX_SERIES_ATTEMPTS)).createIfAbsent(any(RememberMeToken.class));
+        assertEquals("No series was claimed, there's no cookie to set.", 0, response.getCookies().length);
+    }
+
     @Test(expected = RememberMeAuthenticationException.class)
     public void testInvalidUser() throws AccountsException {
         testSuccess();
@@ -191,7 +204,7 @@ public class RememberMeServiceTest {
 
         String id = "test";
 
-        when(accountService.getUser(id)).thenReturn(null);
+        when(accountService.getUser(eq(id), any(UserView.class))).thenReturn(null);
 
         rememberMeService.processAutoLoginCookie(new String[]{id, "", ""}, request, response);
     }
@@ -224,7 +237,7 @@ public class RememberMeServiceTest {
         MockHttpServletResponse response = new MockHttpServletResponse();
 
         RememberMeToken token = capturedToken.getValue();
-        String series = capturedSeries.getValue();
+        String series = token.getSeries();
 
         reset(tokenRepository);
         when(tokenRepository.getToken(series, user)).thenReturn(token);
@@ -271,4 +284,181 @@ public class RememberMeServiceTest {
         );
     }
 
+    @Test
+    public void testPreviousTokenWithinGrace() throws AccountsException {
+        rememberMeService.setPreviousTokenGraceSeconds(60);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+            String[] cookieData = new String[]{user.getId().toString(), "series", "value"};
+            rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            assertFalse("The token should have been rotated.", "value".equals(token.getValue()));
+
+            // a second request sent before the browser saw the new cookie.
+            String rotated = token.getValue();
+            rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            assertEquals("The token shouldn't be rotated again.", rotated, token.getValue());
+            verify(tokenRepository, times(1)).update(token);
+            verify(tokenRepository, never()).removeUserTokens(user);
+        } finally {
+            rememberMeService.setPreviousTokenGraceSeconds(0);
+        }
+    }
+
+    /**
+     * A cookie login reads the user once and the token once, the UserDetails are made from the user already loaded.
+     */
+    @Test
+    public void testOneReadPerLogin() throws AccountsException {
+        rememberMeService.setPreviousTokenGraceSeconds(60);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+            String[] cookieData = new String[]{user.getId().toString(), "series", "value"};
+
+            UserDetails userDetails = rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            assertSame(user, ((UserDetailsImpl) userDetails).getUser());
+            verify(accountService, times(1)).getUser(eq(user.getId().toString()), any(UserView.class));
+            verify(tokenRepository, times(1)).getToken("series", user);
+
+            // within the grace period, answered without rotating.
+            userDetails = rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            assertSame(user, ((UserDetailsImpl) userDetails).getUser());
+            verify(accountService, times(2)).getUser(eq(user.getId().toString()), any(UserView.class));
+            verify(tokenRepository, times(2)).getToken("series", user);
+
+            verifyNoMoreInteractions(accountService);
+        } finally {
+            rememberMeService.setPreviousTokenGraceSeconds(0);
+        }
+    }
+
+    @Test(expected = CookieTheftException.class)
+    public void testPreviousTokenWithoutGrace() throws AccountsException {
+        RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+        when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+        String[] cookieData = new String[]{user.getId().toString(), "series", "value"};
+        rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+        rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testRotationThrottled() throws AccountsException {
+        rememberMeService.setMinRotationIntervalSeconds(300);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+            String[] cookieData = new String[]{user.getId().toString(), "series", "value"};
+            rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            assertEquals("A recently rotated token should be reused.", "value", token.getValue());
+            verify(tokenRepository, never()).update(any(RememberMeToken.class));
+        } finally {
+            rememberMeService.setMinRotationIntervalSeconds(0);
+        }
+    }
+
+    @Test
+    public void testRotationAfterInterval() throws AccountsException {
+        rememberMeService.setMinRotationIntervalSeconds(300);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date(System.currentTimeMillis() - 301 * 1000l));
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+            rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", "value"}, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            assertFalse("The token is older than the interval, it should have been rotated.", "value".equals(token.getValue()));
+            verify(tokenRepository, times(1)).update(token);
+        } finally {
+            rememberMeService.setMinRotationIntervalSeconds(0);
+        }
+    }
+
+    /**
+     * Throttling delays theft detection to the next rotation, it doesn't lose it: once the token has rotated the stale
+     * value is still theft.
+     */
+    @Test(expected = CookieTheftException.class)
+    public void testTheftDetectedAfterThrottledRotation() throws AccountsException {
+        rememberMeService.setMinRotationIntervalSeconds(300);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date(System.currentTimeMillis() - 301 * 1000l));
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+            String[] cookieData = new String[]{user.getId().toString(), "series", "value"};
+            rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            try {
+                rememberMeService.processAutoLoginCookie(cookieData, new MockHttpServletRequest(), new MockHttpServletResponse());
+            } finally {
+                verify(tokenRepository).removeUserTokens(user);
+            }
+        } finally {
+            rememberMeService.setMinRotationIntervalSeconds(0);
+        }
+    }
+
+    @Test
+    public void testAsyncRotation() throws AccountsException {
+        AsyncTokenWriter writer = new AsyncTokenWriter(tokenRepository);
+        rememberMeService.setTokenWriter(writer);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+            when(tokenRepository.getToken("series", user)).thenReturn(token);
+
+            rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", "value"}, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            // the writer hasn't started, so the rotated token is only pending but this node must already see it.
+            RememberMeToken pending = writer.getPending("series", user);
+            assertNotNull(pending);
+            verify(tokenRepository, never()).update(any(RememberMeToken.class));
+
+            rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", pending.getValue()}, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            writer.start();
+            writer.close();
+            ArgumentCaptor<RememberMeToken> written = ArgumentCaptor.forClass(RememberMeToken.class);
+            verify(tokenRepository, times(1)).update(written.capture());
+            assertFalse(pending.getValue().equals(written.getValue().getValue()));
+        } finally {
+            rememberMeService.setTokenWriter(null);
+        }
+    }
+
+    @Test
+    public void testUserTokenRepository() throws AccountsException {
+        UserTokenRepository userTokenRepository = mock(UserTokenRepository.class);
+        ReflectionTestUtils.setField(rememberMeService, "tokenRepository", userTokenRepository);
+        try {
+            RememberMeToken token = new RememberMeToken("series", user, "value", new Date());
+            when(userTokenRepository.getTokenWithUser(user.getId().toString(), "series")).thenReturn(token);
+
+            UserDetails userDetails = rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", "value"}, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+            // the user came with the token, the UserDetails are made from it.
+            assertSame(user, ((UserDetailsImpl) userDetails).getUser());
+            verifyZeroInteractions(accountService);
+            verify(userTokenRepository, times(1)).getTokenWithUser(user.getId().toString(), "series");
+            verify(userTokenRepository, never()).getToken(anyString(), any(User.class));
+            verify(userTokenRepository).update(token);
+        } finally {
+            ReflectionTestUtils.setField(rememberMeService, "tokenRepository", tokenRepository);
+        }
+    }
+
+    @Test(expected = RememberMeAuthenticationException.class)
+    public void testUserTokenRepositoryNoToken() throws AccountsException {
+        UserTokenRepository userTokenRepository = mock(UserTokenRepository.class);
+        ReflectionTestUtils.setField(rememberMeService, "tokenRepository", userTokenRepository);
+        try {
+            rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", "value"}, new MockHttpServletRequest(), new MockHttpServletResponse());
+        } finally {
+            ReflectionTestUtils.setField(rememberMeService, "tokenRepository", tokenRepository);
+        }
+    }
+
 }
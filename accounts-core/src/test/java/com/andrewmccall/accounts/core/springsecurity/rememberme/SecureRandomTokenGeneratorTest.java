@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the SecureRandomTokenGenerator.
+ */
+public class SecureRandomTokenGeneratorTest {
+
+    @Test
+    public void testEncodeMatchesCommonsCodec() {
+        Random random = new Random();
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertEquals("Length " + length, new String(Base64.encodeBase64(bytes)), SecureRandomTokenGenerator.encode(bytes));
+        }
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        SecureRandomTokenGenerator generator = new SecureRandomTokenGenerator();
+        String value = generator.generate(RememberMeService.DEFAULT_TOKEN_LENGTH);
+        assertEquals(RememberMeService.DEFAULT_TOKEN_LENGTH, Base64.decodeBase64(value.getBytes()).length);
+        assertFalse(value.equals(generator.generate(RememberMeService.DEFAULT_TOKEN_LENGTH)));
+    }
+
+    @Test
+    public void testReseed() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        SecureRandomTokenGenerator generator = new SecureRandomTokenGenerator() {
+            @Override
+            protected SecureRandom newRandom() throws NoSuchAlgorithmException {
+                created.incrementAndGet();
+                // seeded before first use a SHA1PRNG gives the same sequence every time.
+                SecureRandom random = super.newRandom();
+                random.setSeed(42l);
+                return random;
+            }
+        };
+        generator.setReseedInterval(2);
+
+        String first = generator.generate(16);
+        String second = generator.generate(16);
+        assertFalse(first.equals(second));
+        assertEquals(1, created.get());
+
+        assertEquals("After reseedInterval values a new SecureRandom should be used.", first, generator.generate(16));
+        assertEquals(2, created.get());
+        assertEquals(second, generator.generate(16));
+        assertEquals(first, generator.generate(16));
+        assertEquals(3, created.get());
+    }
+
+    @Test
+    public void testNoReseed() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        SecureRandomTokenGenerator generator = new SecureRandomTokenGenerator() {
+            @Override
+            protected SecureRandom newRandom() throws NoSuchAlgorithmException {
+                created.incrementAndGet();
+                return super.newRandom();
+            }
+        };
+        Set<String> values = new HashSet<String>();
+        for (int i = 0; i < 100; i++)
+            assertTrue("Duplicate value generated.", values.add(generator.generate(16)));
+        assertEquals("A thread should keep its SecureRandom until reseedInterval values.", 1, created.get());
+    }
+
+    @Test
+    public void testConcurrentUniqueness() throws Exception {
+        final SecureRandomTokenGenerator generator = new SecureRandomTokenGenerator();
+        final Set<String> values = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            Future[] futures = new Future[8];
+            for (int t = 0; t < futures.length; t++) {
+                futures[t] = executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        start.await();
+                        int duplicates = 0;
+                        for (int i = 0; i < 1000; i++) {
+                            if (!values.add(generator.generate(16)))
+                                duplicates++;
+                        }
+                        return duplicates;
+                    }
+                });
+            }
+            start.countDown();
+            for (Future future : futures)
+                assertEquals("Duplicate value generated.", 0, future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(8000, values.size());
+    }
+
+}
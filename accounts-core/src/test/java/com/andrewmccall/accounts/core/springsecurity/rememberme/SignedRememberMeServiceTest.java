@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.core.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
+import com.andrewmccall.accounts.core.springsecurity.SpringSecurityService;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.web.authentication.rememberme.InvalidCookieException;
+import org.springframework.security.web.authentication.rememberme.RememberMeAuthenticationException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.http.Cookie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SignedRememberMeServiceTest {
+
+    private static final long HOUR = 60 * 60 * 1000l;
+    private static final String COOKIE = "remember";
+
+    private SignedRememberMeService rememberMeService;
+    private TokenRepository tokenRepository;
+    private AccountService accountService;
+    private User user;
+
+    @Before
+    public void setup() throws Exception {
+        user = new User();
+        RandomTestUtils.generateUser(user);
+        user = RandomTestUtils.setId(user);
+
+        tokenRepository = mock(TokenRepository.class);
+        accountService = mock(AccountService.class);
+        when(accountService.getUser(eq(user.getId().toString()), any(UserView.class))).thenReturn(user);
+        SpringSecurityService securityService = new SpringSecurityService();
+        ReflectionTestUtils.setField(securityService, "accountService", accountService);
+
+        rememberMeService = new SignedRememberMeService();
+        ReflectionTestUtils.setField(rememberMeService, "tokenRepository", tokenRepository);
+        ReflectionTestUtils.setField(rememberMeService, "accountService", accountService);
+        rememberMeService.setUserDetailsService(securityService);
+        rememberMeService.setKey("test-key");
+        rememberMeService.setCookieName(COOKIE);
+        rememberMeService.setRefreshIntervalSeconds(0);
+        rememberMeService.afterPropertiesSet();
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rememberMeService.onLoginSuccess(new MockHttpServletRequest(), response, new TestingAuthenticationToken(user.getId().toString(), ""));
+
+        String[] cookieTokens = cookieTokens(response);
+        assertEquals(user.getId().toString(), cookieTokens[0]);
+
+        assertLoggedIn(rememberMeService.processAutoLoginCookie(cookieTokens, new MockHttpServletRequest(), new MockHttpServletResponse()));
+        // the cookie isn't rotated, it should work again.
+        assertLoggedIn(rememberMeService.processAutoLoginCookie(cookieTokens, new MockHttpServletRequest(), new MockHttpServletResponse()));
+
+        verify(tokenRepository, never()).createIfAbsent(any(RememberMeToken.class));
+        verify(tokenRepository, never()).getToken(anyString(), any(User.class));
+    }
+
+    /**
+     * A real SpringSecurityService over the AccountService, the login should read neither the user nor a token.
+     */
+    @Test
+    public void testNoReads() throws Exception {
+        String[] cookieTokens = cookie("series", System.currentTimeMillis());
+        reset(accountService);
+
+        UserDetails userDetails = rememberMeService.processAutoLoginCookie(cookieTokens, new MockHttpServletRequest(), new MockHttpServletResponse());
+        assertLoggedIn(userDetails);
+        assertEquals(new HashSet<GrantedAuthority>(SpringSecurityService.AUTHORITIES), new HashSet<GrantedAuthority>(userDetails.getAuthorities()));
+
+        verifyZeroInteractions(accountService);
+        verify(tokenRepository, never()).getToken(anyString(), any(User.class));
+        verify(tokenRepository, times(1)).getRevocations(any(Date.class));
+    }
+
+    @Test(expected = InvalidCookieException.class)
+    public void testForged() throws Exception {
+        long issued = System.currentTimeMillis();
+        String signature = rememberMeService.sign(user.getId().toString(), "series", issued);
+        rememberMeService.processAutoLoginCookie(new String[]{user.getId().toString(), "series", Long.toString(issued + 1), signature}, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test(expected = InvalidCookieException.class)
+    public void testOtherKey() throws Exception {
+        SignedRememberMeService other = new SignedRememberMeService();
+        ReflectionTestUtils.setField(other, "tokenRepository", tokenRepository);
+        other.setUserDetailsService(mock(UserDetailsService.class));
+        other.setKey("other-key");
+        other.setRefreshIntervalSeconds(0);
+        other.afterPropertiesSet();
+        other.processAutoLoginCookie(cookie("series", System.currentTimeMillis()), new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test(expected = RememberMeAuthenticationException.class)
+    public void testExpired() throws Exception {
+        long issued = System.currentTimeMillis() - rememberMeService.getTokenValiditySeconds() * 1000l - HOUR;
+        rememberMeService.processAutoLoginCookie(cookie("series", issued), new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testRevokedSeries() throws Exception {
+        User revoked = new User();
+        revoked.setId(user.getId());
+        when(tokenRepository.getRevocations(any(Date.class))).thenReturn(Arrays.asList(new RememberMeToken("revoked", revoked, null, new Date())));
+        rememberMeService.refresh();
+
+        // another series is still valid.
+        assertLoggedIn(rememberMeService.processAutoLoginCookie(cookie("series", System.currentTimeMillis()), new MockHttpServletRequest(), new MockHttpServletResponse()));
+        try {
+            rememberMeService.processAutoLoginCookie(cookie("revoked", System.currentTimeMillis()), new MockHttpServletRequest(), new MockHttpServletResponse());
+            fail("The series was revoked on another node.");
+        } catch (RememberMeAuthenticationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRevokeUser() throws Exception {
+        String[] before = cookie("series", System.currentTimeMillis() - HOUR);
+        rememberMeService.revoke(user);
+        verify(tokenRepository).revoke(null, user);
+
+        try {
+            rememberMeService.processAutoLoginCookie(before, new MockHttpServletRequest(), new MockHttpServletResponse());
+            fail("Cookies issued before the revocation should be refused.");
+        } catch (RememberMeAuthenticationException e) {
+            // expected
+        }
+        // a cookie issued after the revocation is fine.
+        assertLoggedIn(rememberMeService.processAutoLoginCookie(cookie("series", System.currentTimeMillis() + 1000), new MockHttpServletRequest(), new MockHttpServletResponse()));
+    }
+
+    @Test(expected = RememberMeAuthenticationException.class)
+    public void testLogoutRevokesSeries() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rememberMeService.onLoginSuccess(new MockHttpServletRequest(), response, new TestingAuthenticationToken(user.getId().toString(), ""));
+        String[] cookieTokens = cookieTokens(response);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie[]{response.getCookie(COOKIE)});
+        rememberMeService.logout(request, new MockHttpServletResponse(), null);
+        verify(tokenRepository).revoke(cookieTokens[1], user);
+
+        rememberMeService.processAutoLoginCookie(cookieTokens, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test(expected = RememberMeAuthenticationException.class)
+    public void testRevocationsNotLoaded() throws Exception {
+        when(tokenRepository.getRevocations(any(Date.class))).thenThrow(new AccountsException("down"));
+        SignedRememberMeService service = new SignedRememberMeService();
+        ReflectionTestUtils.setField(service, "tokenRepository", tokenRepository);
+        service.setUserDetailsService(mock(UserDetailsService.class));
+        service.setKey("test-key");
+        service.setRefreshIntervalSeconds(0);
+        service.afterPropertiesSet();
+
+        service.processAutoLoginCookie(cookie("series", System.currentTimeMillis()), new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testRefreshScheduled() throws Exception {
+        final CountDownLatch refreshes = new CountDownLatch(3);
+        when(tokenRepository.getRevocations(any(Date.class))).thenAnswer(new Answer<List<RememberMeToken>>() {
+            public List<RememberMeToken> answer(InvocationOnMock invocation) {
+                refreshes.countDown();
+                return new ArrayList<RememberMeToken>();
+            }
+        });
+        SignedRememberMeService service = new SignedRememberMeService();
+        ReflectionTestUtils.setField(service, "tokenRepository", tokenRepository);
+        service.setUserDetailsService(mock(UserDetailsService.class));
+        service.setKey("test-key");
+        service.setRefreshIntervalSeconds(1);
+        service.afterPropertiesSet();
+        try {
+            // once at startup, then on the refresh thread with no cookie logins at all.
+            assertTrue("The revocations should be refreshed in the background.", refreshes.await(5, TimeUnit.SECONDS));
+        } finally {
+            service.destroy();
+        }
+    }
+
+    private void assertLoggedIn(UserDetails userDetails) {
+        assertNotNull(userDetails);
+        assertEquals("The username is the user's id.", user.getId().toString(), userDetails.getUsername());
+    }
+
+    private String[] cookie(String series, long issued) {
+        return new String[]{user.getId().toString(), series, Long.toString(issued), rememberMeService.sign(user.getId().toString(), series, issued)};
+    }
+
+    private String[] cookieTokens(MockHttpServletResponse response) {
+        Cookie cookie = response.getCookie(COOKIE);
+        assertNotNull("A cookie should have been set.", cookie);
+        return new String(Base64.decodeBase64(cookie.getValue().getBytes())).split(":");
+    }
+}
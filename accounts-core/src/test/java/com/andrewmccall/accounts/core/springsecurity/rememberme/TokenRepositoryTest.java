@@ -19,10 +19,18 @@ import com.andrewmccall.accounts.core.AccountService;
 import com.andrewmccall.accounts.core.*;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Random;
-
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -63,6 +71,174 @@ public abstract class TokenRepositoryTest {
 
     }
 
+    @Test
+    @Transactional
+    public void testCreateIfAbsent() throws AccountsException {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        RememberMeToken token = generateToken(user);
+        token.setDate(new Date());
+        assertTrue("The series is free, the token should be stored.", tokenRepository.createIfAbsent(token));
+        assertTrue("The token should exist. ", tokenRepository.exists(token.getSeries(), user));
+
+        RememberMeToken clash = new RememberMeToken(token.getSeries(), user, token.getValue() + "other", new Date());
+        assertFalse("The series is in use, the token shouldn't be stored.", tokenRepository.createIfAbsent(clash));
+        assertEquals("The original token should be left alone.", token.getValue(), tokenRepository.getToken(token.getSeries(), user).getValue());
+    }
+
+    /**
+     * Not transactional, each claim commits on its own as it does at login, so the losers are turned away by what's
+     * stored rather than by a shared session.
+     */
+    @Test
+    public void testCreateIfAbsentConcurrently() throws Exception {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        String series = RandomStringUtils.randomAlphanumeric(16);
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> claims = new ArrayList<Future<Boolean>>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                final RememberMeToken token = new RememberMeToken(series, user, "value" + i, new Date());
+                claims.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return tokenRepository.createIfAbsent(token);
+                    }
+                }));
+            }
+            start.countDown();
+
+            String winner = null;
+            for (int i = 0; i < threads; i++) {
+                if (claims.get(i).get(30, TimeUnit.SECONDS)) {
+                    assertNull("Only one claim for the series should succeed.", winner);
+                    winner = "value" + i;
+                }
+            }
+            assertNotNull("One claim for the series should succeed.", winner);
+            assertEquals("The stored token should be the one that claimed the series.", winner, tokenRepository.getToken(series, user).getValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @Transactional
+    public void testUpdate() throws AccountsException {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        RememberMeToken token = generateToken(user);
+        token.setDate(new Date());
+        tokenRepository.create(token);
+
+        RememberMeToken rotated = new RememberMeToken(token.getSeries(), user, token.getValue() + "rotated", new Date());
+        tokenRepository.update(rotated);
+        assertEquals(rotated.getValue(), tokenRepository.getToken(token.getSeries(), user).getValue());
+    }
+
+    /**
+     * Every store writes a token for a series the user doesn't have, HBase can't check for it in the same write.
+     */
+    @Test
+    @Transactional
+    public void testUpdateMissingSeries() throws AccountsException {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        RememberMeToken token = generateToken(user);
+        token.setDate(new Date());
+        tokenRepository.update(token);
+        assertEquals(token.getValue(), tokenRepository.getToken(token.getSeries(), user).getValue());
+    }
+
+    @Test
+    @Transactional
+    public void testUpdateOtherUser() throws AccountsException {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+        User other = new User();
+        RandomTestUtils.generateUser(other);
+        accountService.createUser(other);
+
+        RememberMeToken token = generateToken(user);
+        token.setDate(new Date());
+        tokenRepository.create(token);
+
+        // the same series for another user is another token.
+        RememberMeToken otherToken = new RememberMeToken(token.getSeries(), other, token.getValue() + "other", new Date());
+        tokenRepository.update(otherToken);
+        assertEquals(token.getValue(), tokenRepository.getToken(token.getSeries(), user).getValue());
+        assertEquals(otherToken.getValue(), tokenRepository.getToken(token.getSeries(), other).getValue());
+    }
+
+    @Test
+    @Transactional
+    public void testGetTokenWithUser() throws AccountsException {
+        if (!(tokenRepository instanceof UserTokenRepository))
+            return;
+        UserTokenRepository userTokenRepository = (UserTokenRepository) tokenRepository;
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        RememberMeToken token = generateToken(user);
+        token.setDate(new Date());
+        tokenRepository.create(token);
+
+        RememberMeToken ret = userTokenRepository.getTokenWithUser(user.getId().toString(), token.getSeries());
+        assertNotNull("The token should have been found.", ret);
+        assertEquals(token.getValue(), ret.getValue());
+        assertEquals("The token should come with its user.", user, ret.getUser());
+        assertEquals("The user should be fully loaded.", user.getName(), ret.getUser().getName());
+
+        assertNull("There's no token for the series.", userTokenRepository.getTokenWithUser(user.getId().toString(), token.getSeries() + "missing"));
+    }
+
+    @Test
+    @Transactional
+    public void testRevocations() throws AccountsException {
+
+        User user = new User();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        Date before = new Date(System.currentTimeMillis() - 1000);
+        tokenRepository.revoke("series", user);
+        tokenRepository.revoke(null, user);
+
+        boolean series = false, all = false;
+        List<RememberMeToken> revocations = tokenRepository.getRevocations(before);
+        for (RememberMeToken revocation : revocations) {
+            if (!user.getId().equals(revocation.getUser().getId()))
+                continue;
+            if (revocation.getSeries() == null)
+                all = true;
+            else if ("series".equals(revocation.getSeries()))
+                series = true;
+        }
+        assertTrue("The series should have been revoked.", series);
+        assertTrue("All the user's series should have been revoked.", all);
+
+        assertTrue("Nothing has been revoked since now.", tokenRepository.getRevocations(new Date(System.currentTimeMillis() + 60000)).isEmpty());
+    }
+
     /**
      * generates a new random token for a user.
      *
@@ -6,25 +6,38 @@ package com.andrewmccall.accounts.hbase;
 
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UpsertResult;
+import com.andrewmccall.accounts.core.UserView;
 import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.*;
-import org.apache.hadoop.hbase.client.idx.IdxScan;
-import org.apache.hadoop.hbase.client.idx.exp.Comparison;
-import org.apache.hadoop.hbase.client.idx.exp.Expression;
-import org.apache.hadoop.hbase.filter.CompareFilter;
-import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
 
 /**
  * Account service implemented using Hbase as the backing data store. This class is responsible for updating and
  * maintaining the relationships between objects since that is not provided by Hbase.
+ * <p/>
+ * Users are stored in rows keyed by their UUID. Each twitterId also has an index row, keyed by the big-endian
+ * twitterId, holding the UUID of the user it belongs to in the twitterIndex family. The index row doubles as the lock
+ * that stops two users claiming the same twitterId, it's written with checkAndPut after the user row. Index rows are
+ * only ever trusted once the user row they point at agrees, so a stale row left behind by an update is harmless and is
+ * taken over by the next user to claim the twitterId. {@link TwitterIndexTool} backfills the index for existing rows.
+ * <p/>
+ * The profile is stored either as a column per field or, with useCompactEncoding on, as a single {@link ProfileCodec}
+ * cell next to the twitterId. Every write puts the twitterId, so reads trust the profile cell only when it's at least
+ * as new as the twitterId and otherwise read the columns. That lets either layout be written at any time without
+ * deleting the other, {@link ProfileMigrationTool} converts existing rows and drops their columns.
  */
 @Service
 public class AccountService implements com.andrewmccall.accounts.core.AccountService<UUID> {
@@ -43,6 +56,12 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
     public static final byte[] TIMEZONE = Bytes.toBytes("timezone");
     public static final byte[] LANGUAGE = Bytes.toBytes("language");
     public static final byte[] COUNTRY = Bytes.toBytes("country");
+    public static final byte[] PROFILE = Bytes.toBytes("profile");
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public static final byte[] TWITTER_INDEX = Bytes.toBytes("twitterIndex");
+    public static final byte[] INDEXED_USER = Bytes.toBytes("user");
 
     private static final byte[][] BASE_COLUMNS;
 
@@ -59,6 +78,12 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         ALL_COLUMNS[BASE_COLUMNS.length + 1] = USERNAME;
     }
 
+    /**
+     * The columns fetched for {@link UserView#AUTH}. The profile cell is whole or nothing, so for rows in the compact
+     * layout only the columns are saved.
+     */
+    public static final byte[][] AUTH_COLUMNS = {ID, USERNAME, TIMEZONE, PROFILE};
+
     private static final byte[][] BY_USERNAME_COLUMNS;
 
     static {
@@ -79,6 +104,12 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
     @Resource
     private TableFactory tableFactory;
 
+    private int batchThreads = TableFactory.DEFAULT_POOL_SIZE;
+
+    private boolean useCompactEncoding = false;
+
+    private ExecutorService executor;
+
     private Logger log = LoggerFactory.getLogger(this.getClass());
 
     /**
@@ -92,30 +123,17 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         if (log.isDebugEnabled())
             log.debug("Creating user: " + user);
 
-        if (this.twitterIdExists(user.getTwitterId()))
-            throw new AccountsException("TwitterId '" + user.getTwitterId() + "' already in use");
-        
-        // we need to create a user Id for this user.. how do we want to do that?
-        try {
-            while (user.getId() == null || tableFactory.getTable().exists(new Get(Bytes.toBytes(user.getId().toString()))))
-                user.setId(UUID.randomUUID());
-        } catch (IOException e) {
-            throw new AccountsException("Couldn't determine if the ID existed.", e);
-        }
-
-        Put put = new Put(Bytes.toBytes(user.getId().toString()));
-        Delete delete = new Delete(Bytes.toBytes(user.getId().toString()));
-
-        toOperations(put, delete, user);
+        HTable table = null;
         try {
-            if (log.isTraceEnabled())
-                log.trace("Calling commit on PUT: " + put);
-            tableFactory.getTable().put(put);
-
+            table = tableFactory.getTable();
+            if (!create(table, user))
+                throw new AccountsException("TwitterId '" + user.getTwitterId() + "' already in use");
         } catch (IOException e) {
             if (log.isErrorEnabled())
                 log.error("IOException thrown creating user: " + user, e);
             throw new AccountsException("IOException thrown creating user: " + user, e);
+        } finally {
+            tableFactory.putTable(table);
         }
         if (log.isDebugEnabled())
             log.debug("Created user: " + user);
@@ -131,6 +149,18 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
      */
     @Override
     public User<UUID> getUser(UUID id) throws AccountsException {
+        return getUser(id, UserView.FULL);
+    }
+
+    /**
+     * Gets a user based on the id of the user, fetching only the columns the view needs.
+     *
+     * @param id the User's id.
+     * @param view the fields needed.
+     * @return the user.
+     * @throws AccountsException if the user can't be found or the get fails.
+     */
+    public User<UUID> getUser(UUID id, UserView view) throws AccountsException {
 
         Result result;
 
@@ -138,14 +168,14 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
             log.info("Getting user for id: " + id);
 
         Get get = new Get(Bytes.toBytes(id.toString()));
-        get.addFamily(FAMILY);
+        addColumns(get, view);
         
         try {
 
             if (log.isDebugEnabled())
                 log.debug("Calling get: " + get.toString());
 
-            result = tableFactory.getTable().get(get);
+            result = doGet(get);
         } catch (IOException e) {
             throw new AccountsException("Failed to get User for id: " + id, e);
         }
@@ -172,51 +202,159 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
      */
     @Override
     public User<UUID> getUser(final String id) throws AccountsException {
+        return getUser(id, UserView.FULL);
+    }
+
+    @Override
+    public User<UUID> getUser(String id, UserView view) throws AccountsException {
+        UUID uuid;
         try {
-            return getUser(UUID.fromString(id));
+            uuid = UUID.fromString(id);
         } catch (IllegalArgumentException e) {
             throw new AccountsException("Invalid ID", e);
         }
+        return getUser(uuid, view);
     }
 
 
+    /**
+     * Gets several users at once. HBase 0.20 has no multi-get, so the Gets are issued in parallel, each on its own
+     * table leased from the pool. The call costs roughly one round trip rather than one per id.
+     *
+     * @param ids the ids of the Users to get, duplicates are ignored.
+     * @return a map of id to User in the order the ids were given, missing ids are left out.
+     */
+    @Override
+    public Map<UUID, User<UUID>> getUsers(Collection<UUID> ids) throws AccountsException {
+        Map<UUID, User<UUID>> users = new LinkedHashMap<UUID, User<UUID>>();
+        List<UUID> unique = new ArrayList<UUID>(new LinkedHashSet<UUID>(ids));
+
+        if (log.isDebugEnabled())
+            log.debug("Getting " + unique.size() + " users.");
+
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(unique.size());
+        for (UUID id : unique) {
+            final Get get = new Get(Bytes.toBytes(id.toString()));
+            get.addFamily(FAMILY);
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws IOException {
+                    return doGet(get);
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < unique.size(); i++) {
+                Result result = futures.get(i).get();
+                if (!result.isEmpty())
+                    users.put(unique.get(i), resultToUser(result));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AccountsException("Interrupted getting users.", e);
+        } catch (ExecutionException e) {
+            throw new AccountsException("Failed to get users for ids: " + unique, e.getCause());
+        } finally {
+            for (Future<Result> future : futures)
+                future.cancel(true);
+        }
+
+        if (log.isTraceEnabled())
+            log.trace("Found " + users.size() + " of " + unique.size() + " users.");
+        return users;
+    }
+
+    /**
+     * gets a User object for a given twitterId. This is two point gets, one for the index row and one for the user row
+     * it points to.
+     *
+     * @param twitterId the twitterId for the user,
+     * @return a User if one exists with this twitterId, null if a user can't be found.
+     */
     @Override
     public User<UUID> getUserForTwitterId(long twitterId) throws AccountsException {
+        return getUserForTwitterId(twitterId, UserView.FULL);
+    }
+
+    /**
+     * gets a User object for a given twitterId, fetching only the columns the view needs.
+     *
+     * @param twitterId the twitterId for the user,
+     * @param view the fields needed.
+     * @return a User if one exists with this twitterId, null if a user can't be found.
+     */
+    public User<UUID> getUserForTwitterId(long twitterId, UserView view) throws AccountsException {
         if (log.isTraceEnabled())
             log.debug("Getting user for twitterId: " + twitterId);
         try {
-            IdxScan scan = new IdxScan();
-            scan.setExpression(Expression.comparison(FAMILY, ID, Comparison.Operator.EQ, Bytes.toBytes(twitterId)));
-            scan.setFilter(new SingleColumnValueFilter(FAMILY, ID, CompareFilter.CompareOp.EQUAL, Bytes.toBytes(twitterId)));
-            ResultScanner scanner = tableFactory.getTable().getScanner(scan);
-            Result row = scanner.next();
-            scanner.close();
-            if (row != null) {
-                User<UUID> user = resultToUser(row);
-                if (user != null) {
-                    if (log.isDebugEnabled())
-                        log.debug("Found user: " + user);
-                    if (twitterId == (user.getTwitterId()))
-                        return user;
-                    else if (log.isTraceEnabled())
-                        log.trace("That's not the user you're looking for expected: " + twitterId + " but was " + user.getTwitterId());
-                }
+            HTable table = tableFactory.getTable();
+            try {
+                return findByTwitterId(table, twitterId, view);
+            } finally {
+                tableFactory.putTable(table);
             }
-            if (log.isDebugEnabled())
-                log.debug("No user found, returning null.");
-            return null;
         } catch (IOException e) {
             throw new AccountsException("Failed to get User for twitterId: " + twitterId, e);
         }
     }
 
+    /**
+     * Looks the user up by twitterId and copies the profile onto it, in the common case of an existing user that's two
+     * point gets and, only if the profile changed, a put. A new user costs the gets plus the writes of createUser.
+     *
+     * @param profile a user holding the twitterId and the profile to store, its id is ignored.
+     * @return the stored user and whether it was created or changed.
+     */
+    @Override
+    public UpsertResult<UUID> upsertForTwitterId(User<UUID> profile) throws AccountsException {
+        long twitterId = profile.getTwitterId();
+        if (log.isDebugEnabled())
+            log.debug("Upserting user for twitterId: " + twitterId);
+
+        HTable table = null;
+        try {
+            table = tableFactory.getTable();
+            Result row = findRowByTwitterId(table, twitterId, UserView.FULL);
+            if (row == null) {
+                profile.setId(null);
+                if (create(table, profile))
+                    return new UpsertResult<UUID>(profile, true, false);
+
+                // lost a race with a concurrent login for the same twitterId, their user is the one to update.
+                if (log.isDebugEnabled())
+                    log.debug("TwitterId: " + twitterId + " was created concurrently, updating that user.");
+                row = findRowByTwitterId(table, twitterId, UserView.FULL);
+                if (row == null)
+                    throw new AccountsException("TwitterId '" + twitterId + "' is in use but the user couldn't be found");
+            }
+
+            User<UUID> user = resultToUser(row);
+            boolean changed = user.copyProfile(profile);
+            if (changed) {
+                // only the changed columns need writing, unless they're stale behind a profile cell.
+                int fields = isCurrent(row.getColumnLatest(FAMILY, PROFILE), row.getColumnLatest(FAMILY, ID)) ? User.ALL_FIELDS : user.getDirtyFields();
+                write(table, user, fields);
+            }
+            else if (log.isTraceEnabled())
+                log.trace("User unchanged. No update required.");
+            return new UpsertResult<UUID>(user, false, changed);
+
+        } catch (IOException e) {
+            throw new AccountsException("Upserting user failed for twitterId: " + twitterId, e);
+        } finally {
+            tableFactory.putTable(table);
+        }
+    }
+
     @Override
     public boolean twitterIdExists(long twitterId) throws AccountsException {
         return getUserForTwitterId(twitterId) != null;
     }
 
     /**
-     * updates a user.
+     * Writes the fields changed since the user was loaded, the rest of the stored row is left as it is. That's a get
+     * and a put, plus the index writes if the twitterId changed.
      *
      * @param user the user to update.
      */
@@ -224,64 +362,359 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
     public void update(User user) throws AccountsException {
         if (user.getId() == null)
             throw new AccountsException("User does not have an ID, has never been stored! user: " + user);
+        if (!user.isDirty()) {
+            if (log.isDebugEnabled())
+                log.debug("Nothing changed, not updating user: " + user.getId());
+            return;
+        }
+        HTable table = null;
         try {
-            Put put = new Put(Bytes.toBytes(user.getId().toString()));
-            Delete delete = new Delete(Bytes.toBytes(user.getId().toString()));
-            toOperations(put, delete, user);
+            table = tableFactory.getTable();
+
+            // only the twitterId and the profile cell are needed to tell whether the columns are current, unless the
+            // profile cell is going to be written, which needs the whole stored user.
+            Get get = new Get(Bytes.toBytes(user.getId().toString()));
+            if (useCompactEncoding)
+                get.addFamily(FAMILY);
+            else {
+                get.addColumn(FAMILY, ID);
+                get.addColumn(FAMILY, PROFILE);
+            }
+            Result row = table.get(get);
+            if (row.getValue(FAMILY, ID) == null)
+                throw new AccountsException("No user could be found for id: " + user.getId());
+
+            // a loaded user whose twitterId hasn't changed is already indexed.
+            if (user.isDirty(User.FIELD_TWITTER_ID)) {
+                // nearly always the index row already points at us, only try to claim it when it doesn't.
+                byte[] indexRow = twitterIndexRow(user.getTwitterId());
+                byte[] id = Bytes.toBytes(user.getId().toString());
+                if (!table.checkAndPut(indexRow, TWITTER_INDEX, INDEXED_USER, id, toIndexPut(indexRow, id)) && !claimTwitterId(table, user))
+                    throw new AccountsException("TwitterId '" + user.getTwitterId() + "' already in use");
+            }
 
-            tableFactory.getTable().put(put);
-
-            if (!delete.isEmpty()) {
-                if (log.isDebugEnabled())
-                    log.debug("Calling delete: " + delete);
-                tableFactory.getTable().delete(delete);
-            } else if (log.isDebugEnabled())
-                log.debug("Delete is empty - ignored.");
+            // only the changed columns are written, so a user loaded with the AUTH view doesn't blank the rest of the
+            // profile. The profile cell is written whole, and while it's current the columns behind it are stale, so
+            // then the changes are applied to the stored user and that's written out in full.
+            if (useCompactEncoding || isCurrent(row.getColumnLatest(FAMILY, PROFILE), row.getColumnLatest(FAMILY, ID))) {
+                User<UUID> stored = resultToUser(row);
+                stored.copyFields(user, user.getDirtyFields());
+                write(table, stored, User.ALL_FIELDS);
+                user.clearDirty();
+            } else
+                write(table, user, user.getDirtyFields());
 
         } catch (IOException e) {
             throw new AccountsException("Updating user failed: " + user, e);
+        } finally {
+            tableFactory.putTable(table);
+        }
+    }
+
+    /**
+     * Writes a new user, giving it an id if it doesn't have an unused one. The user row is written first, with a
+     * checkAndPut that only succeeds if the row has no twitterId, every write to a user row includes one so it doubles
+     * as the sentinel for an unused id. Only a collision costs a retry, with a new id. The index row is claimed once
+     * the user row is there, so an index row pointing at a row without the twitterId really is stale and can be taken
+     * over, a concurrent create for the same twitterId always finds the other user's row.
+     *
+     * @return false if another user already has the twitterId, the user row is removed again.
+     */
+    private boolean create(HTable table, User<UUID> user) throws IOException {
+        if (user.getId() == null)
+            user.setId(UUID.randomUUID());
+
+        while (true) {
+            Put put = new Put(Bytes.toBytes(user.getId().toString()));
+            toOperations(put, user, setFields(user));
+
+            if (log.isTraceEnabled())
+                log.trace("Calling checkAndPut on PUT: " + put);
+            if (table.checkAndPut(put.getRow(), FAMILY, ID, null, put))
+                break;
+
+            if (log.isWarnEnabled())
+                log.warn("User id: " + user.getId() + " is already in use, retrying with a new one.");
+            user.setId(UUID.randomUUID());
         }
+
+        // claiming the index row fails if another user already has this twitterId.
+        if (!claimTwitterId(table, user)) {
+            if (log.isDebugEnabled())
+                log.debug("TwitterId: " + user.getTwitterId() + " is in use, removing user row: " + user.getId());
+            // if this fails the row is left behind, but nothing points at it.
+            table.delete(new Delete(Bytes.toBytes(user.getId().toString())));
+            return false;
+        }
+        user.clearDirty();
+        return true;
+    }
+
+    /**
+     * Writes a user back in a single Put.
+     *
+     * @param fields the User.FIELD_ bits of the columns to write.
+     */
+    private void write(HTable table, User user, int fields) throws IOException {
+        Put put = new Put(Bytes.toBytes(user.getId().toString()));
+        toOperations(put, user, fields);
+
+        if (log.isDebugEnabled())
+            log.debug("Calling put: " + put);
+        table.put(put);
+        user.clearDirty();
+    }
+
+    private User<UUID> findByTwitterId(HTable table, long twitterId, UserView view) throws IOException {
+        Result row = findRowByTwitterId(table, twitterId, view);
+        if (row == null)
+            return null;
+        User<UUID> user = resultToUser(row);
+        if (log.isDebugEnabled())
+            log.debug("Found user: " + user);
+        return user;
+    }
+
+    private Result findRowByTwitterId(HTable table, long twitterId, UserView view) throws IOException {
+        byte[] id = getIndexedUser(table, twitterId);
+        if (id == null) {
+            if (log.isDebugEnabled())
+                log.debug("No index row for twitterId, returning null.");
+            return null;
+        }
+        Get get = new Get(id);
+        addColumns(get, view);
+        Result row = table.get(get);
+        byte[] rowTwitterId = row.getValue(FAMILY, ID);
+        if (rowTwitterId != null) {
+            if (twitterId == Bytes.toLong(rowTwitterId))
+                return row;
+            else if (log.isTraceEnabled())
+                log.trace("Stale index row, expected: " + twitterId + " but was " + Bytes.toLong(rowTwitterId));
+        }
+        if (log.isDebugEnabled())
+            log.debug("No user found, returning null.");
+        return null;
+    }
+
+    /**
+     * Limits a Get on a user row to what the view needs.
+     */
+    static void addColumns(Get get, UserView view) {
+        if (view == UserView.AUTH) {
+            for (byte[] column : AUTH_COLUMNS)
+                get.addColumn(FAMILY, column);
+        } else
+            get.addFamily(FAMILY);
+    }
+
+    /**
+     * The key of the index row for a twitterId.
+     *
+     * @param twitterId the twitterId
+     * @return the row key, the big-endian twitterId.
+     */
+    public static byte[] twitterIndexRow(long twitterId) {
+        return Bytes.toBytes(twitterId);
+    }
+
+    static Put toIndexPut(byte[] indexRow, byte[] id) {
+        Put put = new Put(indexRow);
+        put.add(TWITTER_INDEX, INDEXED_USER, id);
+        return put;
+    }
+
+    private static byte[] getIndexedUser(HTable table, long twitterId) throws IOException {
+        Get get = new Get(twitterIndexRow(twitterId));
+        get.addColumn(TWITTER_INDEX, INDEXED_USER);
+        return table.get(get).getValue(TWITTER_INDEX, INDEXED_USER);
+    }
+
+    /**
+     * Points the index row for the user's twitterId at the user. Succeeds if the row is free or the user it points to
+     * doesn't have the twitterId (a stale row).
+     *
+     * @return false if another user really is using the twitterId.
+     */
+    private boolean claimTwitterId(HTable table, User<UUID> user) throws IOException {
+        long twitterId = user.getTwitterId();
+        byte[] indexRow = twitterIndexRow(twitterId);
+        byte[] id = Bytes.toBytes(user.getId().toString());
+        Put put = toIndexPut(indexRow, id);
+
+        if (table.checkAndPut(indexRow, TWITTER_INDEX, INDEXED_USER, null, put))
+            return true;
+
+        byte[] owner = getIndexedUser(table, twitterId);
+        if (owner != null && !Bytes.equals(owner, id)) {
+            Get get = new Get(owner);
+            get.addColumn(FAMILY, ID);
+            byte[] ownerTwitterId = table.get(get).getValue(FAMILY, ID);
+            if (ownerTwitterId != null && Bytes.toLong(ownerTwitterId) == twitterId)
+                return false;
+
+            if (log.isInfoEnabled())
+                log.info("Taking over stale index row for twitterId: " + twitterId + " from " + Bytes.toString(owner));
+        }
+        // fails if someone else got there first.
+        return table.checkAndPut(indexRow, TWITTER_INDEX, INDEXED_USER, owner, put);
+    }
+
+    private Result doGet(Get get) throws IOException {
+        HTable table = tableFactory.getTable();
+        try {
+            return table.get(get);
+        } finally {
+            tableFactory.putTable(table);
+        }
+    }
+
+    @PostConstruct
+    public void setup() {
+        executor = Executors.newFixedThreadPool(batchThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "accounts-hbase-get-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public int getBatchThreads() {
+        return batchThreads;
+    }
+
+    /**
+     * Sets the number of threads used to issue the Gets for getUsers in parallel. There's no point setting this higher
+     * than the TableFactory's pool size. Must be set before the service is started.
+     *
+     * @param batchThreads the number of threads.
+     */
+    public void setBatchThreads(int batchThreads) {
+        this.batchThreads = batchThreads;
+    }
+
+    public boolean isUseCompactEncoding() {
+        return useCompactEncoding;
+    }
+
+    /**
+     * Writes the profile as a single cell instead of a column per field. Rows in either layout are read whatever this
+     * is set to, so it can be turned on, or back off, on a live table.
+     *
+     * @param useCompactEncoding true to write the compact profile cell.
+     */
+    public void setUseCompactEncoding(boolean useCompactEncoding) {
+        this.useCompactEncoding = useCompactEncoding;
     }
 
-    protected User<UUID> resultToUser(Result result) {
+    public static User<UUID> resultToUser(Result result) {
         User<UUID> user = new User<UUID>();
 
         user.setId(UUID.fromString(Bytes.toString(result.getRow())));
 
+        KeyValue profile = result.getColumnLatest(FAMILY, PROFILE);
+        if (isCurrent(profile, result.getColumnLatest(FAMILY, ID))) {
+            user.setTwitterId(Bytes.toLong(result.getValue(FAMILY, ID)));
+            ProfileCodec.decode(profile.getBuffer(), profile.getValueOffset(), profile.getValueLength(), user);
+            user.clearDirty();
+            return user;
+        }
+
         // set the fields
-        user.setName(Bytes.toString(result.getValue(FAMILY, NAME)));
-        user.setUsername(Bytes.toString(result.getValue(FAMILY, USERNAME)));
+        user.setName(toString(result.getValue(FAMILY, NAME)));
+        user.setUsername(toString(result.getValue(FAMILY, USERNAME)));
 
         user.setTwitterId(Bytes.toLong(result.getValue(FAMILY, ID)));
-        user.setBio(Bytes.toString(result.getValue(FAMILY, BIO)));
-        user.setWebsite(Bytes.toString(result.getValue(FAMILY, WEBSITE)));
-        user.setLocation(Bytes.toString(result.getValue(FAMILY, LOCATION)));
+        user.setBio(toString(result.getValue(FAMILY, BIO)));
+        user.setWebsite(toString(result.getValue(FAMILY, WEBSITE)));
+        user.setLocation(toString(result.getValue(FAMILY, LOCATION)));
 
-        user.setTimeZoneId(Bytes.toString(result.getValue(FAMILY, TIMEZONE)));
+        user.setTimeZoneId(toString(result.getValue(FAMILY, TIMEZONE)));
 
+        // what was read is what's stored.
+        user.clearDirty();
         return user;
     }
 
-    protected void toOperations(Put put, Delete delete, User user) {
+    /**
+     * @return the column's value, null for a missing column or an empty one, which is how null is written.
+     */
+    private static String toString(byte[] value) {
+        return value == null || value.length == 0 ? null : Bytes.toString(value);
+    }
+
+    /**
+     * @return the User.FIELD_ bits of the fields a new row needs, there's nothing to overwrite with an empty cell.
+     */
+    static int setFields(User user) {
+        int fields = User.FIELD_TIME_ZONE;
+        if (StringUtils.trimToNull(user.getName()) != null)
+            fields |= User.FIELD_NAME;
+        if (StringUtils.trimToNull(user.getUsername()) != null)
+            fields |= User.FIELD_USERNAME;
+        if (StringUtils.trimToNull(user.getBio()) != null)
+            fields |= User.FIELD_BIO;
+        if (StringUtils.trimToNull(user.getWebsite()) != null)
+            fields |= User.FIELD_WEBSITE;
+        if (StringUtils.trimToNull(user.getLocation()) != null)
+            fields |= User.FIELD_LOCATION;
+        return fields;
+    }
 
-        setField(put, delete, NAME, user.getName());
-        setField(put, delete, USERNAME, user.getUsername());
+    /**
+     * @param profile the profile cell, may be null.
+     * @param twitterId the twitterId cell written alongside it.
+     * @return true if the profile cell was written by the last write to the row, so the columns are out of date.
+     */
+    static boolean isCurrent(KeyValue profile, KeyValue twitterId) {
+        return profile != null && (twitterId == null || profile.getTimestamp() >= twitterId.getTimestamp());
+    }
 
-        setField(put, delete, BIO, user.getBio());
-        setField(put, delete, WEBSITE, user.getWebsite());
-        setField(put, delete, LOCATION, user.getLocation());
+    /**
+     * Adds a user to the Put for its row. A field that's null is written as an empty cell, which reads back as null,
+     * so a write is always a single Put: one round trip, and readers never see half of it. Only the columns for the
+     * given fields are written, normally the user's dirty fields. The twitterId is always written, reads compare the
+     * profile cell against it and createUser uses it as the sentinel.
+     *
+     * @param put the Put for the user's row.
+     * @param user the user to write.
+     * @param fields the User.FIELD_ bits of the columns to write, the compact profile cell is always written whole.
+     */
+    protected void toOperations(Put put, User user, int fields) {
         put.add(FAMILY, ID, Bytes.toBytes(user.getTwitterId()));
 
+        if (useCompactEncoding) {
+            // the columns are left behind, they're older than the twitterId so they'll never be read.
+            put.add(FAMILY, PROFILE, ProfileCodec.encode(user));
+            return;
+        }
+
+        setField(put, fields, User.FIELD_NAME, NAME, user.getName());
+        setField(put, fields, User.FIELD_USERNAME, USERNAME, user.getUsername());
+
+        setField(put, fields, User.FIELD_BIO, BIO, user.getBio());
+        setField(put, fields, User.FIELD_WEBSITE, WEBSITE, user.getWebsite());
+        setField(put, fields, User.FIELD_LOCATION, LOCATION, user.getLocation());
+
         // Timezone and Locale are transient, stored and rebuilt from components.
-        setField(put, delete, TIMEZONE, user.getTimeZoneId());
+        setField(put, fields, User.FIELD_TIME_ZONE, TIMEZONE, user.getTimeZoneId());
 
     }
 
-    protected void setField(Put put, Delete delete, byte[] column, String value) {
-        if (StringUtils.trimToNull(value) != null) {
-            put.add(FAMILY, column, Bytes.toBytes(value));
-        } else
-            delete.deleteColumn(FAMILY, column);
+    protected void setField(Put put, int fields, int field, byte[] column, String value) {
+        if ((fields & field) == 0)
+            return;
+        value = StringUtils.trimToNull(value);
+        put.add(FAMILY, column, value == null ? EMPTY : Bytes.toBytes(value));
     }
 
 }
\ No newline at end of file
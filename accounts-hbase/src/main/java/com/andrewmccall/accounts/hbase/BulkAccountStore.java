@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.bulk.UserHandler;
+import com.andrewmccall.accounts.core.cache.CachingAccountService;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bulk import and export for the HBase backend. Imports skip the checkAndPut claims createUser makes, the user row and
+ * the index row are queued as plain Puts and sent batchSize users at a time through the table's write buffer with
+ * autoflush off. A twitterId that already has an index row is taken over by the imported user, so import into a table
+ * that doesn't have the twitterIds. New UUIDs aren't checked for collisions either.
+ * <p/>
+ * The accountService bean may be wrapped in a CachingAccountService, the rows are built by the HBase service underneath
+ * it and the cache is cleared once an import is done, it may hold users the import took twitterIds from.
+ * <p/>
+ * Exports scan the user rows, fetching caching rows per scanner call.
+ */
+@Service
+public class BulkAccountStore implements com.andrewmccall.accounts.core.bulk.BulkAccountStore<UUID> {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_WRITE_BUFFER_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_CACHING = 500;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Resource
+    private TableFactory tableFactory;
+
+    @Resource
+    private com.andrewmccall.accounts.core.AccountService<UUID> accountService;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+    private int caching = DEFAULT_CACHING;
+
+    @Override
+    public long importUsers(Iterator<? extends User<?>> users) throws AccountsException {
+        AccountService backend = getAccountService();
+        long count = 0;
+        HTable table = null;
+        long previousBufferSize = 0;
+        try {
+            table = tableFactory.getTable();
+            previousBufferSize = table.getWriteBufferSize();
+            table.setAutoFlush(false);
+            table.setWriteBufferSize(writeBufferSize);
+
+            List<Put> puts = new ArrayList<Put>(batchSize * 2);
+            while (users.hasNext()) {
+                User<?> from = users.next();
+                User<UUID> user = new User<UUID>();
+                user.setId(UUID.randomUUID());
+                user.setTwitterId(from.getTwitterId());
+                user.copyProfile(from);
+
+                byte[] row = Bytes.toBytes(user.getId().toString());
+                Put put = new Put(row);
+                backend.toOperations(put, user, AccountService.setFields(user));
+                puts.add(put);
+                puts.add(AccountService.toIndexPut(AccountService.twitterIndexRow(user.getTwitterId()), row));
+
+                if (++count % batchSize == 0) {
+                    table.put(puts);
+                    puts.clear();
+                    if (log.isInfoEnabled())
+                        log.info("Imported " + count + " users.");
+                }
+            }
+            table.put(puts);
+            table.flushCommits();
+        } catch (IOException e) {
+            throw new AccountsException("Import failed after " + count + " users.", e);
+        } finally {
+            if (table != null) {
+                // a failed import can leave batches in the write buffer, they mustn't go out with the next lease's writes.
+                if (!table.getWriteBuffer().isEmpty()) {
+                    try {
+                        table.flushCommits();
+                    } catch (IOException e) {
+                        if (log.isWarnEnabled())
+                            log.warn("Failed to flush the write buffer, discarding " + table.getWriteBuffer().size() + " puts.", e);
+                        table.getWriteBuffer().clear();
+                    }
+                }
+                table.setAutoFlush(true);
+                try {
+                    table.setWriteBufferSize(previousBufferSize);
+                } catch (IOException e) {
+                    if (log.isWarnEnabled())
+                        log.warn("Failed to restore the write buffer size.", e);
+                }
+            }
+            tableFactory.putTable(table);
+            // even a failed import may have written some users.
+            if (accountService instanceof CachingAccountService)
+                ((CachingAccountService) accountService).clear();
+        }
+        return count;
+    }
+
+    @Override
+    public long exportUsers(UserHandler<UUID> handler) throws AccountsException {
+        Scan scan = new Scan();
+        scan.addFamily(AccountService.FAMILY);
+        scan.setCaching(caching);
+
+        long count = 0;
+        HTable table = null;
+        try {
+            table = tableFactory.getTable();
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    // rows without a twitterId are left over from a failed create.
+                    if (result.getValue(AccountService.FAMILY, AccountService.ID) == null)
+                        continue;
+                    handler.handle(AccountService.resultToUser(result));
+                    if (++count % batchSize == 0 && log.isInfoEnabled())
+                        log.info("Exported " + count + " users.");
+                }
+            } finally {
+                scanner.close();
+            }
+        } catch (IOException e) {
+            throw new AccountsException("Export failed after " + count + " users.", e);
+        } finally {
+            tableFactory.putTable(table);
+        }
+        return count;
+    }
+
+    /**
+     * @return the HBase AccountService, unwrapped from the cache if there is one.
+     */
+    private AccountService getAccountService() {
+        com.andrewmccall.accounts.core.AccountService<UUID> service = accountService;
+        if (service instanceof CachingAccountService)
+            service = ((CachingAccountService<UUID>) service).getDelegate();
+        return (AccountService) service;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of users sent to the table in each call.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * @param writeBufferSize the client side write buffer used during an import, in bytes.
+     */
+    public void setWriteBufferSize(long writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public int getCaching() {
+        return caching;
+    }
+
+    /**
+     * @param caching the number of rows fetched per scanner call during an export.
+     */
+    public void setCaching(int caching) {
+        this.caching = caching;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.core.User;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Encodes a user's profile into the single profile cell, in place of a column per field. The layout is a version byte
+ * followed by the fields in a fixed order:
+ * <pre>
+ * version (1)
+ * username, name, bio, website, location, timeZoneId - varint length + 1 (0 for null), then the UTF-8 bytes
+ * followers, friends - unsigned varint
+ * </pre>
+ * New fields are added by bumping the version, the decoder keeps reading every version it has ever written. The
+ * twitterId isn't in the cell, it stays in its own column for the index and the twitterId claims.
+ * <p/>
+ * Decoding reads straight out of the buffer the cell lives in, the only allocations are the Strings.
+ */
+public final class ProfileCodec {
+
+    public static final byte VERSION_1 = 1;
+
+    private ProfileCodec() {
+    }
+
+    /**
+     * @param user the user to encode.
+     * @return the encoded profile.
+     */
+    public static byte[] encode(User<?> user) {
+        byte[][] strings = {
+                toBytes(user.getUsername()),
+                toBytes(user.getName()),
+                toBytes(user.getBio()),
+                toBytes(user.getWebsite()),
+                toBytes(user.getLocation()),
+                toBytes(user.getTimeZoneId())
+        };
+
+        int size = 1 + varIntSize(user.getFollowers()) + varIntSize(user.getFriends());
+        for (byte[] s : strings)
+            size += s == null ? 1 : varIntSize(s.length + 1) + s.length;
+
+        byte[] bytes = new byte[size];
+        bytes[0] = VERSION_1;
+        int pos = 1;
+        for (byte[] s : strings) {
+            if (s == null) {
+                bytes[pos++] = 0;
+            } else {
+                pos = writeVarInt(bytes, pos, s.length + 1);
+                System.arraycopy(s, 0, bytes, pos, s.length);
+                pos += s.length;
+            }
+        }
+        pos = writeVarInt(bytes, pos, user.getFollowers());
+        writeVarInt(bytes, pos, user.getFriends());
+        return bytes;
+    }
+
+    /**
+     * Sets the profile fields on the user from an encoded profile.
+     *
+     * @param buffer the buffer holding the encoded profile.
+     * @param offset where the profile starts.
+     * @param length the length of the profile.
+     * @param user the user to set the fields on.
+     * @throws IllegalArgumentException if the version isn't one this codec knows, or the profile is truncated.
+     */
+    public static void decode(byte[] buffer, int offset, int length, User<?> user) {
+        if (length < 1)
+            throw new IllegalArgumentException("Empty profile.");
+        byte version = buffer[offset];
+        if (version != VERSION_1)
+            throw new IllegalArgumentException("Unknown profile version: " + version);
+
+        Reader reader = new Reader(buffer, offset + 1, offset + length);
+        user.setUsername(reader.readString());
+        user.setName(reader.readString());
+        user.setBio(reader.readString());
+        user.setWebsite(reader.readString());
+        user.setLocation(reader.readString());
+        user.setTimeZoneId(reader.readString());
+        user.setFollowers(reader.readVarInt());
+        user.setFriends(reader.readVarInt());
+    }
+
+    /**
+     * @param bytes an encoded profile.
+     * @param user the user to set the fields on.
+     */
+    public static void decode(byte[] bytes, User<?> user) {
+        decode(bytes, 0, bytes.length, user);
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null ? null : Bytes.toBytes(s);
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarInt(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static class Reader {
+
+        private final byte[] buffer;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] buffer, int pos, int end) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length == 0)
+                return null;
+            length--;
+            if (length > end - pos)
+                throw new IllegalArgumentException("Truncated profile.");
+            String s = Bytes.toString(buffer, pos, length);
+            pos += length;
+            return s;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (pos >= end)
+                    throw new IllegalArgumentException("Truncated profile.");
+                byte b = buffer[pos++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("Malformed varint in profile.");
+        }
+    }
+}
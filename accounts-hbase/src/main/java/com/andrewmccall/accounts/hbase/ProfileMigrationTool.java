@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Rewrites user rows stored a column per field into the compact profile cell and deletes the columns. Turn on
+ * useCompactEncoding before running it, rows written in the column layout afterwards would need migrating again.
+ * <p/>
+ * Safe to run against a live table. The profile cell is written with the timestamp of the twitterId it was read with,
+ * and only column versions up to that timestamp are deleted, so a write to the row while it's being migrated is newer
+ * than both and wins. Rows that are already compact are skipped so it's safe to run again. Can be run from the command
+ * line with no arguments, using the hbase-site.xml on the classpath.
+ */
+public class ProfileMigrationTool {
+
+    public static final int DEFAULT_CACHING = 500;
+
+    private static final byte[][] COLUMNS = {
+            AccountService.USERNAME,
+            AccountService.NAME,
+            AccountService.BIO,
+            AccountService.WEBSITE,
+            AccountService.LOCATION,
+            AccountService.TIMEZONE
+    };
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final TableFactory tableFactory;
+
+    private int caching = DEFAULT_CACHING;
+
+    public ProfileMigrationTool(TableFactory tableFactory) {
+        this.tableFactory = tableFactory;
+    }
+
+    /**
+     * Scans every user row and migrates the ones still in the column layout. Writes are buffered and flushed in
+     * batches.
+     *
+     * @return the number of rows migrated.
+     * @throws IOException if the scan or a write fails, the rows migrated so far are kept.
+     */
+    public long migrate() throws IOException {
+        if (log.isInfoEnabled())
+            log.info("Migrating user profiles to the compact encoding.");
+
+        Scan scan = new Scan();
+        scan.addFamily(AccountService.FAMILY);
+        scan.setCaching(caching);
+
+        long scanned = 0;
+        long count = 0;
+        ArrayList<Delete> deletes = new ArrayList<Delete>();
+        HTable table = tableFactory.getTable();
+        try {
+            table.setAutoFlush(false);
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    scanned++;
+                    KeyValue twitterId = result.getColumnLatest(AccountService.FAMILY, AccountService.ID);
+                    if (twitterId == null || AccountService.isCurrent(result.getColumnLatest(AccountService.FAMILY, AccountService.PROFILE), twitterId))
+                        continue;
+
+                    long timestamp = twitterId.getTimestamp();
+                    Put put = new Put(result.getRow());
+                    put.add(AccountService.FAMILY, AccountService.PROFILE, timestamp, ProfileCodec.encode(AccountService.resultToUser(result)));
+                    table.put(put);
+
+                    Delete delete = new Delete(result.getRow());
+                    for (byte[] column : COLUMNS)
+                        delete.deleteColumns(AccountService.FAMILY, column, timestamp);
+                    deletes.add(delete);
+
+                    if (++count % caching == 0) {
+                        flush(table, deletes);
+                        if (log.isInfoEnabled())
+                            log.info("Migrated " + count + " of " + scanned + " users.");
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            flush(table, deletes);
+        } finally {
+            table.setAutoFlush(true);
+            tableFactory.putTable(table);
+        }
+
+        if (log.isInfoEnabled())
+            log.info("Migrated " + count + " of " + scanned + " users.");
+        return count;
+    }
+
+    /**
+     * Deletes aren't buffered, they're held back until the puts ahead of them are written so a row always has either
+     * its profile cell or its columns.
+     */
+    private void flush(HTable table, ArrayList<Delete> deletes) throws IOException {
+        table.flushCommits();
+        if (!deletes.isEmpty())
+            table.delete(deletes);
+        deletes.clear();
+    }
+
+    public int getCaching() {
+        return caching;
+    }
+
+    /**
+     * @param caching the number of rows fetched per scanner call.
+     */
+    public void setCaching(int caching) {
+        this.caching = caching;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TableFactory tableFactory = new TableFactory();
+        tableFactory.setup();
+        try {
+            new ProfileMigrationTool(tableFactory).migrate();
+        } finally {
+            tableFactory.close();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.hbase.springsecurity.rememberme.TokenRepository;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings an existing table's schema up to the one TableFactory creates: adds the families it's missing and changes the
+ * remember-me family's TTL and versions. TableFactory refuses to start against a table without every family, and only
+ * warns about a remember-me TTL that doesn't match, run this once after upgrading and again whenever the TTL changes.
+ * Can be run from the command line using the hbase-site.xml on the classpath, the optional argument is the remember-me
+ * TTL in seconds which should match the RememberMeService's tokenValiditySeconds. A table written before the twitterId
+ * index existed needs {@link TwitterIndexTool} run afterwards to backfill it.
+ */
+public class SchemaUpdateTool {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final TableFactory tableFactory;
+
+    public SchemaUpdateTool(TableFactory tableFactory) {
+        this.tableFactory = tableFactory;
+    }
+
+    /**
+     * Adds the families TableFactory.describeTable has and the table doesn't, and changes the remember-me family's TTL
+     * and versions to TableFactory's. 0.20 can't alter an enabled table so it's disabled, for every node using it,
+     * while it's changed. Nothing is disabled if there's nothing to change.
+     *
+     * @param admin the admin for the cluster the table is on.
+     * @return true if the table was changed.
+     * @throws IOException if the table can't be altered, it's enabled again whatever happened.
+     */
+    public boolean updateSchema(HBaseAdmin admin) throws IOException {
+        HTableDescriptor existing = tableFactory.getTableDescriptor();
+
+        List<HColumnDescriptor> missing = new ArrayList<HColumnDescriptor>();
+        HColumnDescriptor rememberMe = null;
+        for (HColumnDescriptor family : tableFactory.describeTable().getFamilies()) {
+            HColumnDescriptor current = existing.getFamily(family.getName());
+            if (current == null)
+                missing.add(family);
+            else if (Bytes.equals(family.getName(), TokenRepository.REMEMBER_ME) && TableFactory.isChanged(current, family)) {
+                if (log.isWarnEnabled())
+                    log.warn("Changing family '" + TokenRepository.REMEMBER_ME_COLUMN_FAMILY + "' from ttl: " + current.getTimeToLive() + " versions: " + current.getMaxVersions() + " to ttl: " + family.getTimeToLive() + " versions: " + family.getMaxVersions());
+                rememberMe = family;
+            }
+        }
+
+        if (missing.isEmpty() && rememberMe == null) {
+            if (log.isInfoEnabled())
+                log.info("Table '" + existing.getNameAsString() + "' is up to date.");
+            return false;
+        }
+
+        // disable once for every change.
+        admin.disableTable(existing.getName());
+        try {
+            for (HColumnDescriptor family : missing) {
+                if (log.isWarnEnabled())
+                    log.warn("Adding family '" + family.getNameAsString() + "' to table '" + existing.getNameAsString() + "'.");
+                admin.addColumn(existing.getName(), family);
+            }
+            if (rememberMe != null)
+                admin.modifyColumn(existing.getName(), TokenRepository.REMEMBER_ME, rememberMe);
+        } finally {
+            admin.enableTable(existing.getName());
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TableFactory tableFactory = new TableFactory();
+        tableFactory.setVerifySchema(false);
+        if (args.length > 0)
+            tableFactory.setRememberMeTimeToLive(Integer.parseInt(args[0]));
+        tableFactory.setup();
+        try {
+            new SchemaUpdateTool(tableFactory).updateSchema(new HBaseAdmin(tableFactory.getConfiguration()));
+        } finally {
+            tableFactory.close();
+        }
+    }
+
+}
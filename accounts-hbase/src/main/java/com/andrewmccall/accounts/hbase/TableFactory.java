@@ -22,40 +22,165 @@ import org.apache.hadoop.hbase.regionserver.IdxRegion;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Used to create and get the table.
+ * Used to create and lease the table. HTable instances are not safe for concurrent use so the factory keeps a bounded
+ * pool of them, callers MUST hand a table back with {@link #putTable(HTable)} once they're done with it:
+ * <pre>
+ * HTable table = tableFactory.getTable();
+ * try {
+ *     table.get(get);
+ * } finally {
+ *     tableFactory.putTable(table);
+ * }
+ * </pre>
+ * Tables are created lazily up to poolSize, after that callers wait up to maxWait milliseconds for one to be returned
+ * before an IOException is thrown. close closes the idle tables, a table still leased is closed, and its write buffer
+ * flushed, when it's returned.
  */
 @Service
 public class TableFactory {
 
+    public static final int DEFAULT_POOL_SIZE = 10;
+    public static final long DEFAULT_MAX_WAIT = 5000;
+    public static final int DEFAULT_REMEMBER_ME_TTL = AbstractRememberMeServices.TWO_WEEKS_S;
+
     private String accountsTableName = "accounts";
 
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private int rememberMeTimeToLive = DEFAULT_REMEMBER_ME_TTL;
+    private boolean verifySchema = true;
+
     private Logger log = LoggerFactory.getLogger(this.getClass());
 
+    private HBaseConfiguration conf;
+    private byte[] tableName;
+
+    private BlockingQueue<HTable> pool;
+    private final Set<HTable> leased = Collections.newSetFromMap(new ConcurrentHashMap<HTable, Boolean>());
+    private final AtomicInteger created = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
     public TableFactory() throws MasterNotRunningException {
     }
 
-    private HTable table;
+    /**
+     * Leases a table from the pool. The table belongs to the caller until it's returned using putTable.
+     *
+     * @return a table no other thread is using.
+     * @throws IOException if a table couldn't be created or none was returned to the pool within maxWait.
+     */
+    public HTable getTable() throws IOException {
+        if (closed)
+            throw new IOException("Table pool is closed.");
+        HTable table = pool.poll();
+        if (table == null)
+            table = createTable();
 
-    public HTable getTable() {
+        if (table == null) {
+            long start = System.currentTimeMillis();
+            try {
+                table = pool.poll(maxWait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a table from the pool.");
+            } finally {
+                waitCount.incrementAndGet();
+                waitTime.addAndGet(System.currentTimeMillis() - start);
+            }
+            if (table == null) {
+                exhaustedCount.incrementAndGet();
+                if (log.isWarnEnabled())
+                    log.warn("Table pool exhausted, no table was returned within " + maxWait + "ms. Pool size: " + poolSize);
+                throw new IOException("Table pool exhausted, no table available after " + maxWait + "ms.");
+            }
+        }
+        leased.add(table);
+        leaseCount.incrementAndGet();
         return table;
     }
 
-    @PostConstruct
-    public void setup() throws IOException {
+    /**
+     * Returns a table leased with getTable to the pool.
+     *
+     * @param table the table to return, null is ignored so this can be called unconditionally from a finally block.
+     */
+    public void putTable(HTable table) {
+        if (table == null)
+            return;
+        leased.remove(table);
+        if (closed) {
+            closeTable(table);
+            return;
+        }
+        if (!pool.offer(table)) {
+            // should never happen, we never create more than the pool can hold.
+            if (log.isWarnEnabled())
+                log.warn("Table returned to a full pool, discarding it.");
+            created.decrementAndGet();
+        } else if (closed && pool.remove(table)) {
+            // close drained the pool between the check above and the offer.
+            closeTable(table);
+        }
+    }
 
+    private HTable createTable() throws IOException {
+        int count;
+        do {
+            count = created.get();
+            if (count >= poolSize)
+                return null;
+        } while (!created.compareAndSet(count, count + 1));
 
-        if (log.isWarnEnabled())
-            log.warn("Updating accounts schema.");
+        if (log.isDebugEnabled())
+            log.debug("Creating table " + (count + 1) + " of " + poolSize + " for the pool.");
+        try {
+            return newTable();
+        } catch (IOException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new table for the pool.
+     */
+    protected HTable newTable() throws IOException {
+        return new HTable(conf, tableName);
+    }
 
-        byte[] tableName = Bytes.toBytes(accountsTableName);
+    /**
+     * Creates the table if it doesn't exist, otherwise checks it has every family this version uses and fails if it
+     * doesn't. Changing an existing table means disabling it, which takes it offline for every node, so that's left to
+     * {@link SchemaUpdateTool} rather than done by whichever node starts first.
+     */
+    @PostConstruct
+    public void setup() throws IOException {
 
-        HBaseConfiguration conf = new HBaseConfiguration();
+        tableName = Bytes.toBytes(accountsTableName);
+
+        conf = new HBaseConfiguration();
         conf.setClass(HConstants.REGION_IMPL, IdxRegion.class, IdxRegion.class);
         HBaseAdmin admin = new HBaseAdmin(conf);
 
@@ -64,24 +189,211 @@ public class TableFactory {
             if (log.isWarnEnabled())
                 log.warn("Table '" + accountsTableName + "' does not exist creating.");
 
-            HTableDescriptor table = new HTableDescriptor(tableName);
+            admin.createTable(describeTable());
 
-            IdxColumnDescriptor col = new IdxColumnDescriptor(AccountService.FAMILY);
-            IdxIndexDescriptor index = new IdxIndexDescriptor(AccountService.ID, IdxQualifierType.LONG);
-            col.addIndexDescriptor(index);
+        } else if (log.isWarnEnabled())
+            log.warn("Table '" + this.accountsTableName + "' exists.");
 
-            table.addFamily(col);
+        startPool();
 
-            table.addFamily(new HColumnDescriptor(TokenRepository.REMEMBER_ME));
-            table.addFamily(new HColumnDescriptor(AccessTokenStore.OAUTH_TOKEN));
+        if (verifySchema) {
+            try {
+                verifySchema();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
 
-            admin.createTable(table);
+    /**
+     * @return the accounts table as it's created when it doesn't exist.
+     */
+    public HTableDescriptor describeTable() {
+        HTableDescriptor table = new HTableDescriptor(tableName == null ? Bytes.toBytes(accountsTableName) : tableName);
 
-        } else if (log.isWarnEnabled())
-            log.warn("Table '" + this.accountsTableName + "' exists.");
+        IdxColumnDescriptor col = new IdxColumnDescriptor(AccountService.FAMILY);
+        IdxIndexDescriptor index = new IdxIndexDescriptor(AccountService.ID, IdxQualifierType.LONG);
+        col.addIndexDescriptor(index);
+
+        table.addFamily(col);
+
+        table.addFamily(new HColumnDescriptor(AccountService.TWITTER_INDEX));
+        table.addFamily(rememberMeFamily());
+        table.addFamily(new HColumnDescriptor(AccessTokenStore.OAUTH_TOKEN));
+        return table;
+    }
+
+    /**
+     * @return the descriptor of the table as it is now.
+     */
+    public HTableDescriptor getTableDescriptor() throws IOException {
+        HTable table = getTable();
+        try {
+            return table.getTableDescriptor();
+        } finally {
+            putTable(table);
+        }
+    }
+
+    void verifySchema() throws IOException {
+        HTableDescriptor existing = getTableDescriptor();
+        for (HColumnDescriptor family : describeTable().getFamilies()) {
+            if (!existing.hasFamily(family.getName()))
+                throw new IOException("Table '" + accountsTableName + "' has no family '" + family.getNameAsString() + "', run SchemaUpdateTool to update the schema.");
+        }
+
+        // a stale TTL only keeps expired tokens around longer, it's not worth refusing to start over.
+        HColumnDescriptor rememberMe = existing.getFamily(TokenRepository.REMEMBER_ME);
+        if (isChanged(rememberMe, rememberMeFamily()) && log.isWarnEnabled())
+            log.warn("Family '" + TokenRepository.REMEMBER_ME_COLUMN_FAMILY + "' has ttl: " + rememberMe.getTimeToLive() + " versions: " + rememberMe.getMaxVersions() + " expected ttl: " + rememberMeFamily().getTimeToLive() + " versions: 1, run SchemaUpdateTool to update the schema.");
+    }
+
+    /**
+     * @return true if the TTL or versions of an existing family differ from the wanted ones.
+     */
+    static boolean isChanged(HColumnDescriptor existing, HColumnDescriptor wanted) {
+        return existing.getTimeToLive() != wanted.getTimeToLive() || existing.getMaxVersions() != wanted.getMaxVersions();
+    }
+
+    void startPool() throws IOException {
+        pool = new ArrayBlockingQueue<HTable>(poolSize);
+        // create the first table up front so a misconfiguration shows up at startup rather than on the first request.
+        putTable(createTable());
+    }
+
+    /**
+     * Remember-me cells are timestamped with the token's date, so a TTL of the token validity has compactions drop a
+     * token once RememberMeService would refuse it anyway. Only the latest value of a series is ever read.
+     */
+    private HColumnDescriptor rememberMeFamily() {
+        HColumnDescriptor family = new HColumnDescriptor(TokenRepository.REMEMBER_ME);
+        family.setTimeToLive(rememberMeTimeToLive > 0 ? rememberMeTimeToLive : HConstants.FOREVER);
+        family.setMaxVersions(1);
+        return family;
+    }
 
-        table = new HTable(conf, tableName);
+    /**
+     * Closes the idle tables. Leased tables are closed as they're returned, getTable fails from now on.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        HTable table;
+        while ((table = pool.poll()) != null)
+            closeTable(table);
+        if (!leased.isEmpty() && log.isInfoEnabled())
+            log.info("Closing table pool with " + leased.size() + " tables leased, they'll be closed when they're returned.");
+    }
+
+    private void closeTable(HTable table) {
+        try {
+            table.close();
+        } catch (IOException e) {
+            if (log.isWarnEnabled())
+                log.warn("Failed to close table.", e);
+        }
+    }
+
+    /**
+     * @return the seconds a remember-me token is kept, 0 or less to keep them until they're deleted.
+     */
+    public int getRememberMeTimeToLive() {
+        return rememberMeTimeToLive;
+    }
+
+    /**
+     * @param rememberMeTimeToLive the seconds to keep a remember-me token, set it to the RememberMeService's
+     * tokenValiditySeconds. An existing table keeps its TTL until SchemaUpdateTool changes it.
+     */
+    public void setRememberMeTimeToLive(int rememberMeTimeToLive) {
+        this.rememberMeTimeToLive = rememberMeTimeToLive;
+    }
+
+    public boolean isVerifySchema() {
+        return verifySchema;
+    }
+
+    /**
+     * @param verifySchema false to start against a table that's missing families, only for the tools that add them.
+     */
+    public void setVerifySchema(boolean verifySchema) {
+        this.verifySchema = verifySchema;
+    }
+
+    /**
+     * @return the configuration the tables are created with, set by setup.
+     */
+    public HBaseConfiguration getConfiguration() {
+        return conf;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @return the maximum time in milliseconds getTable will wait for a table when the pool is exhausted.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return the number of idle tables currently sitting in the pool.
+     */
+    public int getAvailable() {
+        return pool.size();
+    }
+
+    /**
+     * @return the number of tables currently leased.
+     */
+    public int getLeased() {
+        return leased.size();
+    }
+
+    /**
+     * @return the number of tables created so far, never more than poolSize.
+     */
+    public int getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return the total number of leases handed out by getTable.
+     */
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    /**
+     * @return the number of leases that had to wait for a table to be returned.
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * @return the total time in milliseconds callers have spent waiting for a table.
+     */
+    public long getWaitTime() {
+        return waitTime.get();
+    }
 
+    /**
+     * @return the number of times a caller gave up waiting because the pool was exhausted.
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
     }
 
 }
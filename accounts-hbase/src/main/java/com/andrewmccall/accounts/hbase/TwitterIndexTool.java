@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Rebuilds the twitterId index rows from the user rows. Run this once to upgrade a table written before the index
+ * existed, after {@link SchemaUpdateTool} has added the index family. It's safe to run again at any time since it only
+ * ever points index rows at users that have the twitterId. Can be run from the command line using the hbase-site.xml on
+ * the classpath.
+ */
+public class TwitterIndexTool {
+
+    public static final int DEFAULT_CACHING = 500;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final TableFactory tableFactory;
+
+    private int caching = DEFAULT_CACHING;
+
+    public TwitterIndexTool(TableFactory tableFactory) {
+        this.tableFactory = tableFactory;
+    }
+
+    /**
+     * Scans every user row and writes the index row for its twitterId. Index puts are buffered and flushed in batches.
+     *
+     * @return the number of index rows written.
+     * @throws IOException if the scan or a write fails, the index rows written so far are kept.
+     */
+    public long rebuild() throws IOException {
+        if (log.isInfoEnabled())
+            log.info("Rebuilding twitterId index.");
+
+        Scan scan = new Scan();
+        scan.addColumn(AccountService.FAMILY, AccountService.ID);
+        scan.setCaching(caching);
+
+        long count = 0;
+        HTable table = tableFactory.getTable();
+        try {
+            table.setAutoFlush(false);
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    byte[] twitterId = result.getValue(AccountService.FAMILY, AccountService.ID);
+                    if (twitterId == null)
+                        continue;
+                    table.put(AccountService.toIndexPut(AccountService.twitterIndexRow(Bytes.toLong(twitterId)), result.getRow()));
+
+                    if (++count % caching == 0 && log.isInfoEnabled())
+                        log.info("Indexed " + count + " users.");
+                }
+            } finally {
+                scanner.close();
+            }
+            table.flushCommits();
+        } finally {
+            table.setAutoFlush(true);
+            tableFactory.putTable(table);
+        }
+
+        if (log.isInfoEnabled())
+            log.info("Rebuilt twitterId index, " + count + " users indexed.");
+        return count;
+    }
+
+    public int getCaching() {
+        return caching;
+    }
+
+    /**
+     * @param caching the number of rows fetched per scanner call.
+     */
+    public void setCaching(int caching) {
+        this.caching = caching;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // fails if the index family is missing, SchemaUpdateTool adds it.
+        TableFactory tableFactory = new TableFactory();
+        tableFactory.setup();
+        try {
+            new TwitterIndexTool(tableFactory).rebuild();
+        } finally {
+            tableFactory.close();
+        }
+    }
+
+}
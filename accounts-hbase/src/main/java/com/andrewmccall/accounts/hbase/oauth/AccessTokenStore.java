@@ -15,6 +15,7 @@ import com.andrewmccall.accounts.hbase.TableFactory;
 import com.andrewmccall.oauth.AccessToken;
 import com.andrewmccall.oauth.Service;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -44,7 +45,12 @@ public class AccessTokenStore implements com.andrewmccall.accounts.core.oauth.Ac
         get.addColumn(OAUTH_TOKEN, Bytes.toBytes(service.getId()));
         Result result;
         try {
-            result = tableFactory.getTable().get(get);
+            HTable table = tableFactory.getTable();
+            try {
+                result = table.get(get);
+            } finally {
+                tableFactory.putTable(table);
+            }
             if (!result.isEmpty()) {
                 byte[] tokenB = result.getValue(OAUTH_TOKEN, Bytes.toBytes(service.getId()));
                 if (tokenB != null) {
@@ -95,7 +101,12 @@ public class AccessTokenStore implements com.andrewmccall.accounts.core.oauth.Ac
                 value
         ));
         try {
-            tableFactory.getTable().put(put);
+            HTable table = tableFactory.getTable();
+            try {
+                table.put(put);
+            } finally {
+                tableFactory.putTable(table);
+            }
         } catch (IOException e) {
             if (log.isWarnEnabled())
                 log.warn("Failed to store OAuthTokenUtil " + token, e);
@@ -115,7 +126,12 @@ public class AccessTokenStore implements com.andrewmccall.accounts.core.oauth.Ac
                 value
         ));
         try {
-            tableFactory.getTable().put(put);
+            HTable table = tableFactory.getTable();
+            try {
+                table.put(put);
+            } finally {
+                tableFactory.putTable(table);
+            }
         } catch (IOException e) {
             if (log.isWarnEnabled())
                 log.warn("Failed to store OAuthTokenUtil " + token, e);
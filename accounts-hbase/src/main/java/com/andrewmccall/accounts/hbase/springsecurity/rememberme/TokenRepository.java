@@ -11,12 +11,16 @@
 package com.andrewmccall.accounts.hbase.springsecurity.rememberme;
 
 import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.UserTokenRepository;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.hbase.AccountService;
 import com.andrewmccall.accounts.hbase.TableFactory;
 import org.springframework.stereotype.Service;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -25,16 +29,27 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.UUID;
 
 /**
- * Hbase TokenRepository implementation.
+ * Hbase TokenRepository implementation. Tokens live in the rememberMe family of the user's own row, so a user and one
+ * of their tokens can be read with a single Get.
+ * <p/>
+ * Revocations are cells in the rememberMe family of a row of their own, REVOCATIONS_ROW, qualified by user id and
+ * series and timestamped when they're made. The row has nothing in the user family so scans over the users don't see
+ * it, and the family TTL drops revocations along with the tokens.
  */
 @Service
-public class TokenRepository implements com.andrewmccall.accounts.core.springsecurity.rememberme.TokenRepository {
+public class TokenRepository implements UserTokenRepository {
 
     public static final String REMEMBER_ME_COLUMN_FAMILY = "rememberMe";
     public static final byte[] REMEMBER_ME = Bytes.toBytes(REMEMBER_ME_COLUMN_FAMILY);
+    public static final byte[] REVOCATIONS_ROW = Bytes.toBytes("rememberMeRevocations");
+
+    private static final byte[] EMPTY = new byte[0];
 
     private Logger log = LoggerFactory.getLogger(this.getClass());
 
@@ -51,7 +66,35 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
         Put put = new Put(Bytes.toBytes(rememberMeToken.getUser().getId().toString()));
         put.add(REMEMBER_ME, Bytes.toBytes(rememberMeToken.getSeries()), rememberMeToken.getDate().getTime(), Bytes.toBytes(rememberMeToken.getValue()));
         try {
-            tableFactory.getTable().put(put);
+            HTable table = tableFactory.getTable();
+            try {
+                table.put(put);
+            } finally {
+                tableFactory.putTable(table);
+            }
+        } catch (IOException e) {
+            throw new AccountsException("Couldn't add remember me token: " + rememberMeToken, e);
+        }
+    }
+
+    /**
+     * Stores the token with a checkAndPut that only succeeds while the row has no cell for the series.
+     *
+     * @param rememberMeToken the token to store.
+     * @return true if the token was stored, false if the series was already in use.
+     */
+    @Override
+    public boolean createIfAbsent(RememberMeToken rememberMeToken) throws AccountsException {
+        byte[] series = Bytes.toBytes(rememberMeToken.getSeries());
+        Put put = new Put(Bytes.toBytes(rememberMeToken.getUser().getId().toString()));
+        put.add(REMEMBER_ME, series, rememberMeToken.getDate().getTime(), Bytes.toBytes(rememberMeToken.getValue()));
+        try {
+            HTable table = tableFactory.getTable();
+            try {
+                return table.checkAndPut(put.getRow(), REMEMBER_ME, series, null, put);
+            } finally {
+                tableFactory.putTable(table);
+            }
         } catch (IOException e) {
             throw new AccountsException("Couldn't add remember me token: " + rememberMeToken, e);
         }
@@ -68,7 +111,12 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
     @Override
     public boolean exists(String series, User user) throws AccountsException {
         try {
-            return tableFactory.getTable().exists(toGet(series, user));
+            HTable table = tableFactory.getTable();
+            try {
+                return table.exists(toGet(series, user));
+            } finally {
+                tableFactory.putTable(table);
+            }
         } catch (IOException e) {
             throw new AccountsException("Exception throw checking for existance of token", e);
         }
@@ -84,7 +132,13 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
     @Override
     public RememberMeToken getToken(String series, User user) throws AccountsException {
         try {
-            Result result = tableFactory.getTable().get(toGet(series, user));
+            Result result;
+            HTable table = tableFactory.getTable();
+            try {
+                result = table.get(toGet(series, user));
+            } finally {
+                tableFactory.putTable(table);
+            }
             if (!result.isEmpty()) {
                 Date date = new Date(result.getCellValue().getTimestamp());
                 String value = Bytes.toString(result.getCellValue().getValue());
@@ -96,6 +150,48 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
         }
     }
 
+    /**
+     * Gets the user's columns and the one remember-me cell for the series in a single Get.
+     *
+     * @param userId the user's id as a String.
+     * @param series the series.
+     * @return the token with its user, null if either doesn't exist.
+     */
+    @Override
+    public RememberMeToken getTokenWithUser(String userId, String series) throws AccountsException {
+        byte[] row;
+        try {
+            row = Bytes.toBytes(UUID.fromString(userId).toString());
+        } catch (IllegalArgumentException e) {
+            throw new AccountsException("Invalid id: " + userId, e);
+        }
+        byte[] qualifier = Bytes.toBytes(series);
+
+        Get get = new Get(row);
+        get.addFamily(AccountService.FAMILY);
+        get.addColumn(REMEMBER_ME, qualifier);
+
+        try {
+            Result result;
+            HTable table = tableFactory.getTable();
+            try {
+                result = table.get(get);
+            } finally {
+                tableFactory.putTable(table);
+            }
+            KeyValue cell = result.getColumnLatest(REMEMBER_ME, qualifier);
+            if (cell == null || result.getValue(AccountService.FAMILY, AccountService.ID) == null) {
+                if (log.isDebugEnabled())
+                    log.debug("No user and token for id: " + userId + " series: " + series);
+                return null;
+            }
+            User<UUID> user = AccountService.resultToUser(result);
+            return new RememberMeToken(series, user, Bytes.toString(cell.getValue()), new Date(cell.getTimestamp()));
+        } catch (IOException e) {
+            throw new AccountsException("Exception thrown getting user and token", e);
+        }
+    }
+
     private static Get toGet(final String series, final User user) {
         Get get = new Get(Bytes.toBytes(user.getId().toString()));
         get.addColumn(REMEMBER_ME, Bytes.toBytes(series));
@@ -116,7 +212,12 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
             if (log.isTraceEnabled())
                 log.trace("Calling delete (empty:" + delete.isEmpty() + " delete: " + delete);
 
-            tableFactory.getTable().delete(delete);
+            HTable table = tableFactory.getTable();
+            try {
+                table.delete(delete);
+            } finally {
+                tableFactory.putTable(table);
+            }
 
         } catch (IOException e) {
             if (log.isWarnEnabled())
@@ -124,6 +225,65 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
         }
     }
 
+    /**
+     * Puts a cell qualified user id:series, or user id: for all the user's series, in the revocations row.
+     *
+     * @param series the series, null for all the user's series.
+     * @param user   the user
+     */
+    @Override
+    public void revoke(String series, User user) throws AccountsException {
+        Put put = new Put(REVOCATIONS_ROW);
+        put.add(REMEMBER_ME, Bytes.toBytes(user.getId() + ":" + (series == null ? "" : series)), System.currentTimeMillis(), EMPTY);
+        try {
+            HTable table = tableFactory.getTable();
+            try {
+                table.put(put);
+            } finally {
+                tableFactory.putTable(table);
+            }
+        } catch (IOException e) {
+            throw new AccountsException("Couldn't revoke series: " + series + " for user: " + user.getId(), e);
+        }
+    }
+
+    /**
+     * Gets the revocations row restricted to the cells timestamped after since.
+     *
+     * @param since the time of the last revocation already seen
+     * @return the revocations after since.
+     */
+    @Override
+    public List<RememberMeToken> getRevocations(Date since) throws AccountsException {
+        try {
+            Get get = new Get(REVOCATIONS_ROW);
+            get.addFamily(REMEMBER_ME);
+            get.setTimeRange(since.getTime() + 1, Long.MAX_VALUE);
+
+            Result result;
+            HTable table = tableFactory.getTable();
+            try {
+                result = table.get(get);
+            } finally {
+                tableFactory.putTable(table);
+            }
+            List<RememberMeToken> revocations = new ArrayList<RememberMeToken>();
+            if (result.isEmpty())
+                return revocations;
+            for (KeyValue cell : result.raw()) {
+                String qualifier = Bytes.toString(cell.getQualifier());
+                int split = qualifier.indexOf(':');
+                User<UUID> user = new User<UUID>();
+                user.setId(UUID.fromString(qualifier.substring(0, split)));
+                String series = split == qualifier.length() - 1 ? null : qualifier.substring(split + 1);
+                revocations.add(new RememberMeToken(series, user, null, new Date(cell.getTimestamp())));
+            }
+            return revocations;
+        } catch (IOException e) {
+            throw new AccountsException("Exception thrown getting revocations", e);
+        }
+    }
+
     /**
      * updates a token.
      *
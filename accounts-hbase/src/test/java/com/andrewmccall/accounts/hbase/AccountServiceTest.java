@@ -4,6 +4,9 @@
 
 package com.andrewmccall.accounts.hbase;
 
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
@@ -14,10 +17,14 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import java.io.IOException;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
@@ -33,18 +40,192 @@ public class AccountServiceTest {//} extends com.andrewmccall.accounts.core.Acco
     @Mock
     HTable table;
 
+    MockTable rows;
+
+    AccountService accountService;
+
     @Before
-    public void setup() {
+    public void setup() throws IOException {
         MockitoAnnotations.initMocks(this);
         reset(table);
         when(tableFactory.getTable()).thenReturn(table);
+        rows = MockTable.on(table);
+
+        accountService = new AccountService();
+        ReflectionTestUtils.setField(accountService, "tableFactory", tableFactory);
     }
 
     @Test
-    public void testSetup() {
+    public void testSetup() throws IOException {
         assertTrue(tableFactory.getTable() != null);
     }
 
+    @Test
+    public void testCreateIndexesTwitterId() throws Exception {
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+
+        assertEquals(user.getId().toString(), Bytes.toString(rows.getValue(AccountService.twitterIndexRow(user.getTwitterId()), AccountService.TWITTER_INDEX, AccountService.INDEXED_USER)));
+        assertEquals(user.getId(), accountService.getUserForTwitterId(user.getTwitterId()).getId());
+    }
+
+    @Test
+    public void testCreateTwitterIdInUse() throws Exception {
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+
+        User<UUID> other = newUser();
+        other.setTwitterId(user.getTwitterId());
+        try {
+            accountService.createUser(other);
+            fail("The twitterId is already indexed to a user that has it.");
+        } catch (AccountsException e) {
+            // expected
+        }
+        assertEquals(user.getId(), accountService.getUserForTwitterId(user.getTwitterId()).getId());
+        assertTrue("The other user's row should be removed.", rows.get(Bytes.toBytes(other.getId().toString())).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentCreatesForTwitterId() throws Exception {
+        User<UUID> first = newUser();
+        final User<UUID> second = newUser();
+        second.setTwitterId(first.getTwitterId());
+
+        // the second create runs start to finish straight after the first create's first write.
+        doAnswer(new Answer<Boolean>() {
+            private boolean interleaved;
+
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                boolean written = rows.checkAndPut((byte[]) args[0], (byte[]) args[1], (byte[]) args[2], (byte[]) args[3], (Put) args[4]);
+                if (written && !interleaved) {
+                    interleaved = true;
+                    accountService.createUser(second);
+                }
+                return written;
+            }
+        }).when(table).checkAndPut(any(byte[].class), any(byte[].class), any(byte[].class), any(byte[].class), any(Put.class));
+
+        try {
+            accountService.createUser(first);
+            fail("The second user claimed the twitterId first.");
+        } catch (AccountsException e) {
+            // expected
+        }
+
+        assertEquals(second.getId(), accountService.getUserForTwitterId(second.getTwitterId()).getId());
+        assertTrue("The first user's row should be removed.", rows.get(Bytes.toBytes(first.getId().toString())).isEmpty());
+    }
+
+    @Test
+    public void testCreateTakesOverStaleIndex() throws Exception {
+        User<UUID> stale = newUser();
+        accountService.createUser(stale);
+        long twitterId = stale.getTwitterId();
+
+        // the user moved to another twitterId without the index row being cleared.
+        rows.put(new Put(Bytes.toBytes(stale.getId().toString())).add(AccountService.FAMILY, AccountService.ID, Bytes.toBytes(twitterId + 1)));
+        assertNull("A stale index row shouldn't find the user it points to.", accountService.getUserForTwitterId(twitterId));
+
+        User<UUID> user = newUser();
+        user.setTwitterId(twitterId);
+        accountService.createUser(user);
+
+        assertEquals(user.getId().toString(), Bytes.toString(rows.getValue(AccountService.twitterIndexRow(twitterId), AccountService.TWITTER_INDEX, AccountService.INDEXED_USER)));
+        assertEquals(user.getId(), accountService.getUserForTwitterId(twitterId).getId());
+    }
+
+    @Test
+    public void testUpdateMovesIndex() throws Exception {
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+        long twitterId = user.getTwitterId();
+
+        user = accountService.getUser(user.getId());
+        user.setTwitterId(twitterId + 1);
+        accountService.update(user);
+
+        assertEquals(user.getId(), accountService.getUserForTwitterId(twitterId + 1).getId());
+        assertNull("The old index row is stale.", accountService.getUserForTwitterId(twitterId));
+        assertFalse(accountService.twitterIdExists(twitterId));
+    }
+
+    @Test(expected = AccountsException.class)
+    public void testUpdateTwitterIdInUse() throws Exception {
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+        User<UUID> other = newUser();
+        accountService.createUser(other);
+
+        other.setTwitterId(user.getTwitterId());
+        accountService.update(other);
+    }
+
+    @Test
+    public void testUpdateWritesOnlyDirtyColumns() throws Exception {
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+
+        accountService.update(partial(user));
+
+        byte[] row = Bytes.toBytes(user.getId().toString());
+        assertEquals("changed", Bytes.toString(rows.getValue(row, AccountService.FAMILY, AccountService.BIO)));
+        User<UUID> ret = accountService.getUser(user.getId());
+        assertEquals("changed", ret.getBio());
+        assertEquals("Columns that weren't changed should survive.", user.getName(), ret.getName());
+        assertEquals(user.getUsername(), ret.getUsername());
+        assertEquals(user.getLocation(), ret.getLocation());
+    }
+
+    @Test
+    public void testUpdateKeepsCompactProfile() throws Exception {
+        accountService.setUseCompactEncoding(true);
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+
+        accountService.update(partial(user));
+
+        User<UUID> ret = accountService.getUser(user.getId());
+        assertEquals("changed", ret.getBio());
+        assertEquals("The profile cell is written whole, from the stored user.", user.getName(), ret.getName());
+        assertEquals(user.getUsername(), ret.getUsername());
+        assertEquals(user.getLocation(), ret.getLocation());
+    }
+
+    @Test
+    public void testUpdateBehindCompactProfile() throws Exception {
+        accountService.setUseCompactEncoding(true);
+        User<UUID> user = newUser();
+        accountService.createUser(user);
+        accountService.setUseCompactEncoding(false);
+
+        accountService.update(partial(user));
+
+        User<UUID> ret = accountService.getUser(user.getId());
+        assertEquals("changed", ret.getBio());
+        assertEquals("The columns are stale behind the profile cell, all of them are written.", user.getName(), ret.getName());
+        assertEquals(user.getLocation(), ret.getLocation());
+    }
+
+    /**
+     * @return the user as an update sees one loaded with the AUTH view, only the id and twitterId, with a new bio.
+     */
+    private static User<UUID> partial(User<UUID> user) {
+        User<UUID> partial = new User<UUID>();
+        partial.setId(user.getId());
+        partial.setTwitterId(user.getTwitterId());
+        partial.clearDirty();
+        partial.setBio("changed");
+        return partial;
+    }
+
+    private User<UUID> newUser() {
+        User<UUID> user = new User<UUID>();
+        RandomTestUtils.generateUser(user);
+        return user;
+    }
+
     /*
     @Override
     public void testCreateUser() throws Exception {
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.cache.CachingAccountService;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks a failed import doesn't hand the table back to the pool with puts still in its write buffer.
+ */
+public class BulkAccountStoreTest {
+
+    private HTable table;
+    private ArrayList<Put> writeBuffer;
+    private TableFactory tableFactory;
+    private AccountService accountService;
+    private BulkAccountStore store;
+
+    @Before
+    public void setup() throws Exception {
+        table = mock(HTable.class);
+        writeBuffer = new ArrayList<Put>();
+        when(table.getWriteBuffer()).thenReturn(writeBuffer);
+        // with autoflush off puts wait in the buffer until it's flushed.
+        doAnswer(new Answer() {
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation) {
+                writeBuffer.addAll((List<Put>) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(table).put(anyList());
+
+        tableFactory = new TableFactory() {
+            @Override
+            protected HTable newTable() {
+                return table;
+            }
+        };
+        tableFactory.startPool();
+
+        accountService = new AccountService();
+        ReflectionTestUtils.setField(accountService, "tableFactory", tableFactory);
+        store = new BulkAccountStore();
+        ReflectionTestUtils.setField(store, "tableFactory", tableFactory);
+        ReflectionTestUtils.setField(store, "accountService", accountService);
+        store.setBatchSize(1);
+    }
+
+    @Test
+    public void testFailedImportFlushes() throws Exception {
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) {
+                writeBuffer.clear();
+                return null;
+            }
+        }).when(table).flushCommits();
+
+        try {
+            store.importUsers(failAfter(2));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        InOrder order = inOrder(table);
+        order.verify(table).setAutoFlush(false);
+        order.verify(table, times(2)).put(anyList());
+        order.verify(table).flushCommits();
+        order.verify(table).setAutoFlush(true);
+        assertTrue(writeBuffer.isEmpty());
+        assertEquals("The table should be back in the pool.", 0, tableFactory.getLeased());
+    }
+
+    @Test
+    public void testFailedFlushDiscards() throws Exception {
+        doThrow(new IOException("down")).when(table).flushCommits();
+
+        try {
+            store.importUsers(Arrays.asList(newUser(), newUser()).iterator());
+            fail();
+        } catch (AccountsException e) {
+            // expected, the final flush fails.
+        }
+
+        assertTrue("Puts that couldn't be sent should be dropped.", writeBuffer.isEmpty());
+        verify(table).setAutoFlush(true);
+        assertEquals(0, tableFactory.getLeased());
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testImportUnderCache() throws Exception {
+        CachingAccountService<UUID> caching = mock(CachingAccountService.class);
+        when(caching.getDelegate()).thenReturn(accountService);
+        ReflectionTestUtils.setField(store, "accountService", caching);
+
+        assertEquals(2, store.importUsers(Arrays.asList(newUser(), newUser()).iterator()));
+
+        verify(caching, never()).createUser(any(User.class));
+        verify(caching).clear();
+        assertEquals("Each user is a user row and an index row.", 4, writeBuffer.size());
+    }
+
+    /**
+     * @return an iterator over count users that fails if it's read past them.
+     */
+    private static Iterator<User<UUID>> failAfter(final int count) {
+        return new Iterator<User<UUID>>() {
+            private int read;
+
+            public boolean hasNext() {
+                if (read == count)
+                    throw new IllegalStateException("Bad line.");
+                return true;
+            }
+
+            public User<UUID> next() {
+                read++;
+                return newUser();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static User<UUID> newUser() {
+        User<UUID> user = new User<UUID>();
+        RandomTestUtils.generateUser(user);
+        return user;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Backs a mock HTable with rows held in memory, enough for get, put, checkAndPut and deleting whole rows. A get returns the whole row, every
+ * put is timestamped after the last so the latest write wins as it does on a region server.
+ */
+class MockTable {
+
+    private final Map<String, Map<String, KeyValue>> rows = new HashMap<String, Map<String, KeyValue>>();
+    private long timestamp = 1;
+
+    private MockTable() {
+    }
+
+    /**
+     * Stubs the table's get, put, checkAndPut and delete to read and write the returned rows.
+     */
+    static MockTable on(HTable table) throws IOException {
+        final MockTable rows = new MockTable();
+
+        when(table.get(any(Get.class))).thenAnswer(new Answer<Result>() {
+            public Result answer(InvocationOnMock invocation) {
+                return rows.get(((Get) invocation.getArguments()[0]).getRow());
+            }
+        });
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) {
+                rows.put((Put) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(table).put(any(Put.class));
+        when(table.checkAndPut(any(byte[].class), any(byte[].class), any(byte[].class), any(byte[].class), any(Put.class))).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return rows.checkAndPut((byte[]) args[0], (byte[]) args[1], (byte[]) args[2], (byte[]) args[3], (Put) args[4]);
+            }
+        });
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) {
+                rows.delete(((Delete) invocation.getArguments()[0]).getRow());
+                return null;
+            }
+        }).when(table).delete(any(Delete.class));
+        return rows;
+    }
+
+    synchronized Result get(byte[] row) {
+        Map<String, KeyValue> columns = rows.get(Bytes.toStringBinary(row));
+        KeyValue[] kvs = columns == null ? new KeyValue[0] : columns.values().toArray(new KeyValue[columns.size()]);
+        Arrays.sort(kvs, KeyValue.COMPARATOR);
+        return new Result(kvs);
+    }
+
+    /**
+     * @return the latest value of the cell, null if it's never been written.
+     */
+    synchronized byte[] getValue(byte[] row, byte[] family, byte[] qualifier) {
+        Map<String, KeyValue> columns = rows.get(Bytes.toStringBinary(row));
+        KeyValue kv = columns == null ? null : columns.get(column(family, qualifier));
+        return kv == null ? null : kv.getValue();
+    }
+
+    synchronized void put(Put put) {
+        String row = Bytes.toStringBinary(put.getRow());
+        Map<String, KeyValue> columns = rows.get(row);
+        if (columns == null) {
+            columns = new TreeMap<String, KeyValue>();
+            rows.put(row, columns);
+        }
+        long ts = timestamp++;
+        for (List<KeyValue> kvs : put.getFamilyMap().values()) {
+            for (KeyValue kv : kvs)
+                columns.put(column(kv.getFamily(), kv.getQualifier()), new KeyValue(put.getRow(), kv.getFamily(), kv.getQualifier(), ts, kv.getValue()));
+        }
+    }
+
+    synchronized boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] expected, Put put) {
+        if (!Arrays.equals(expected, getValue(row, family, qualifier)))
+            return false;
+        put(put);
+        return true;
+    }
+
+    synchronized void delete(byte[] row) {
+        rows.remove(Bytes.toStringBinary(row));
+    }
+
+    private static String column(byte[] family, byte[] qualifier) {
+        return Bytes.toString(family) + ":" + Bytes.toString(qualifier);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the compact profile encoding, and that resultToUser picks the right layout, without a cluster.
+ */
+public class ProfileCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        User<UUID> user = new User<UUID>();
+        RandomTestUtils.generateUser(user);
+        user.setBio("Ünïcödé bio ☃");
+        user.setWebsite(null);
+        user.setLocation("");
+        user.setFriends(Integer.MAX_VALUE);
+
+        User<UUID> decoded = new User<UUID>();
+        ProfileCodec.decode(ProfileCodec.encode(user), decoded);
+
+        assertEquals(user.getBio(), decoded.getBio());
+        assertNull(decoded.getWebsite());
+        assertEquals("", decoded.getLocation());
+        assertEquals(Integer.MAX_VALUE, decoded.getFriends());
+        assertFalse("Every profile field should survive.", decoded.copyProfile(user));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVersion() {
+        ProfileCodec.decode(new byte[]{99, 0, 0, 0, 0, 0, 0, 0, 0}, new User<UUID>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        User<UUID> user = new User<UUID>();
+        RandomTestUtils.generateUser(user);
+        byte[] bytes = ProfileCodec.encode(user);
+        ProfileCodec.decode(bytes, 0, bytes.length - 10, new User<UUID>());
+    }
+
+    @Test
+    public void testResultToUserPicksNewestLayout() {
+        User<UUID> compact = new User<UUID>();
+        RandomTestUtils.generateUser(compact);
+        User<UUID> columns = new User<UUID>();
+        RandomTestUtils.generateUser(columns);
+        columns.setTwitterId(compact.getTwitterId());
+
+        byte[] row = Bytes.toBytes(UUID.randomUUID().toString());
+        byte[] twitterId = Bytes.toBytes(compact.getTwitterId());
+
+        // profile cell written at 1, columns and twitterId rewritten at 2: the columns win.
+        Result result = result(
+                new KeyValue(row, AccountService.FAMILY, AccountService.ID, 2, twitterId),
+                new KeyValue(row, AccountService.FAMILY, AccountService.NAME, 2, Bytes.toBytes(columns.getName())),
+                new KeyValue(row, AccountService.FAMILY, AccountService.PROFILE, 1, ProfileCodec.encode(compact)));
+        assertEquals(columns.getName(), AccountService.resultToUser(result).getName());
+
+        // profile cell written with the twitterId: the profile wins.
+        result = result(
+                new KeyValue(row, AccountService.FAMILY, AccountService.ID, 3, twitterId),
+                new KeyValue(row, AccountService.FAMILY, AccountService.NAME, 2, Bytes.toBytes(columns.getName())),
+                new KeyValue(row, AccountService.FAMILY, AccountService.PROFILE, 3, ProfileCodec.encode(compact)));
+        User<UUID> user = AccountService.resultToUser(result);
+        assertEquals(compact.getName(), user.getName());
+        assertEquals(compact.getTwitterId(), user.getTwitterId());
+    }
+
+    private static Result result(KeyValue... kvs) {
+        Arrays.sort(kvs, KeyValue.COMPARATOR);
+        return new Result(kvs);
+    }
+}
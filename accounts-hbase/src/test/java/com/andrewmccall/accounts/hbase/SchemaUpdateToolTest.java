@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import com.andrewmccall.accounts.hbase.oauth.AccessTokenStore;
+import com.andrewmccall.accounts.hbase.springsecurity.rememberme.TokenRepository;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class SchemaUpdateToolTest {
+
+    private HTable table;
+    private TableFactory tableFactory;
+    private SchemaUpdateTool tool;
+
+    @Before
+    public void setup() throws Exception {
+        table = mock(HTable.class);
+        tableFactory = new TableFactory() {
+            @Override
+            protected HTable newTable() {
+                return table;
+            }
+        };
+        tableFactory.startPool();
+        tool = new SchemaUpdateTool(tableFactory);
+    }
+
+    @Test
+    public void testUpdateSchemaAddsMissing() throws IOException {
+        HTableDescriptor existing = new HTableDescriptor(Bytes.toBytes("accounts"));
+        existing.addFamily(new HColumnDescriptor(AccountService.FAMILY));
+        existing.addFamily(new HColumnDescriptor(AccessTokenStore.OAUTH_TOKEN));
+        when(table.getTableDescriptor()).thenReturn(existing);
+        HBaseAdmin admin = mock(HBaseAdmin.class);
+
+        assertTrue(tool.updateSchema(admin));
+
+        InOrder order = inOrder(admin);
+        order.verify(admin).disableTable(existing.getName());
+        order.verify(admin).addColumn(eq(existing.getName()), argThat(new FamilyMatcher(AccountService.TWITTER_INDEX)));
+        order.verify(admin).enableTable(existing.getName());
+        verify(admin, never()).addColumn(any(byte[].class), argThat(new FamilyMatcher(AccountService.FAMILY)));
+    }
+
+    @Test
+    public void testUpdateSchemaUpToDate() throws IOException {
+        when(table.getTableDescriptor()).thenReturn(tableFactory.describeTable());
+        HBaseAdmin admin = mock(HBaseAdmin.class);
+
+        assertFalse(tool.updateSchema(admin));
+        verifyZeroInteractions(admin);
+    }
+
+    @Test
+    public void testUpdateSchemaChangesRememberMe() throws IOException {
+        HTableDescriptor existing = tableFactory.describeTable();
+        tableFactory.setRememberMeTimeToLive(60);
+        when(table.getTableDescriptor()).thenReturn(existing);
+        HBaseAdmin admin = mock(HBaseAdmin.class);
+
+        assertTrue(tool.updateSchema(admin));
+
+        InOrder order = inOrder(admin);
+        order.verify(admin).disableTable(existing.getName());
+        order.verify(admin).modifyColumn(eq(existing.getName()), eq(TokenRepository.REMEMBER_ME), argThat(new FamilyMatcher(TokenRepository.REMEMBER_ME) {
+            @Override
+            public boolean matches(Object argument) {
+                return super.matches(argument) && ((HColumnDescriptor) argument).getTimeToLive() == 60;
+            }
+        }));
+        order.verify(admin).enableTable(existing.getName());
+        verify(admin, never()).addColumn(any(byte[].class), any(HColumnDescriptor.class));
+    }
+
+    @Test
+    public void testUpdateSchemaEnablesOnFailure() throws IOException {
+        HTableDescriptor existing = new HTableDescriptor(Bytes.toBytes("accounts"));
+        existing.addFamily(new HColumnDescriptor(AccountService.FAMILY));
+        when(table.getTableDescriptor()).thenReturn(existing);
+        HBaseAdmin admin = mock(HBaseAdmin.class);
+        doThrow(new IOException("down")).when(admin).addColumn(any(byte[].class), any(HColumnDescriptor.class));
+
+        try {
+            tool.updateSchema(admin);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        verify(admin).enableTable(existing.getName());
+    }
+
+    private static class FamilyMatcher extends org.mockito.ArgumentMatcher<HColumnDescriptor> {
+
+        private final byte[] name;
+
+        FamilyMatcher(byte[] name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            return argument != null && Bytes.equals(name, ((HColumnDescriptor) argument).getName());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Exercises the table pool with mock tables, newTable is the only part that needs a cluster.
+ */
+public class TableFactoryTest {
+
+    private TableFactory tableFactory;
+
+    @Before
+    public void setup() throws Exception {
+        tableFactory = new TableFactory() {
+            @Override
+            protected HTable newTable() {
+                return mock(HTable.class);
+            }
+        };
+        tableFactory.setPoolSize(2);
+        tableFactory.setMaxWait(50);
+        tableFactory.startPool();
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        assertEquals("The first table is created up front.", 1, tableFactory.getCreated());
+
+        HTable table = tableFactory.getTable();
+        tableFactory.putTable(table);
+        assertSame("An idle table should be leased again.", table, tableFactory.getTable());
+
+        assertEquals(1, tableFactory.getCreated());
+        assertEquals(2, tableFactory.getLeaseCount());
+        assertEquals(0, tableFactory.getWaitCount());
+    }
+
+    @Test
+    public void testBoundedSize() throws IOException {
+        HTable first = tableFactory.getTable();
+        HTable second = tableFactory.getTable();
+        assertNotSame(first, second);
+        assertEquals(2, tableFactory.getCreated());
+        assertEquals(2, tableFactory.getLeased());
+
+        try {
+            tableFactory.getTable();
+            fail("Both tables are leased, the pool should be exhausted.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("No more than poolSize tables should be created.", 2, tableFactory.getCreated());
+        assertEquals(1, tableFactory.getWaitCount());
+        assertEquals(1, tableFactory.getExhaustedCount());
+        assertTrue("The wait should last maxWait.", tableFactory.getWaitTime() >= 40);
+        assertEquals(2, tableFactory.getLeaseCount());
+    }
+
+    @Test
+    public void testWaitForReturn() throws Exception {
+        tableFactory.setMaxWait(5000);
+        final HTable first = tableFactory.getTable();
+        tableFactory.getTable();
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread returner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waiting.await(5, TimeUnit.SECONDS);
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tableFactory.putTable(first);
+            }
+        };
+        returner.start();
+        waiting.countDown();
+
+        assertSame("The returned table should be handed to the waiting caller.", first, tableFactory.getTable());
+        returner.join();
+
+        assertEquals(1, tableFactory.getWaitCount());
+        assertEquals(0, tableFactory.getExhaustedCount());
+        assertTrue(tableFactory.getWaitTime() > 0);
+        assertEquals(2, tableFactory.getCreated());
+    }
+
+    @Test
+    public void testCloseLeased() throws IOException {
+        HTable leased = tableFactory.getTable();
+        HTable idle = tableFactory.getTable();
+        tableFactory.putTable(idle);
+
+        tableFactory.close();
+        verify(idle).close();
+        verify(leased, never()).close();
+
+        tableFactory.putTable(leased);
+        verify(leased).close();
+        assertEquals(0, tableFactory.getLeased());
+        assertEquals(0, tableFactory.getAvailable());
+
+        try {
+            tableFactory.getTable();
+            fail("The pool is closed.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVerifySchema() throws IOException {
+        HTable table = tableFactory.getTable();
+        when(table.getTableDescriptor()).thenReturn(tableFactory.describeTable());
+        tableFactory.putTable(table);
+        tableFactory.verifySchema();
+
+        HTableDescriptor old = new HTableDescriptor(Bytes.toBytes("accounts"));
+        old.addFamily(new HColumnDescriptor(AccountService.FAMILY));
+        when(table.getTableDescriptor()).thenReturn(old);
+        try {
+            tableFactory.verifySchema();
+            fail("The table is missing families, it should be updated with SchemaUpdateTool first.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("The table used to check should be back in the pool.", 0, tableFactory.getLeased());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ */
+
+package com.andrewmccall.accounts.hbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class TwitterIndexToolTest {
+
+    private HTable table;
+    private MockTable rows;
+    private TableFactory tableFactory;
+    private TwitterIndexTool tool;
+
+    @Before
+    public void setup() throws Exception {
+        table = mock(HTable.class);
+        rows = MockTable.on(table);
+        tableFactory = new TableFactory() {
+            @Override
+            protected HTable newTable() {
+                return table;
+            }
+        };
+        tableFactory.startPool();
+        tool = new TwitterIndexTool(tableFactory);
+    }
+
+    @Test
+    public void testRebuild() throws IOException {
+        String first = UUID.randomUUID().toString();
+        String second = UUID.randomUUID().toString();
+        ResultScanner scanner = mock(ResultScanner.class);
+        when(scanner.iterator()).thenReturn(Arrays.asList(userRow(first, 1l), userRow(second, 2l)).iterator());
+        when(table.getScanner(any(Scan.class))).thenReturn(scanner);
+
+        assertEquals(2, tool.rebuild());
+
+        assertEquals(first, Bytes.toString(rows.getValue(AccountService.twitterIndexRow(1l), AccountService.TWITTER_INDEX, AccountService.INDEXED_USER)));
+        assertEquals(second, Bytes.toString(rows.getValue(AccountService.twitterIndexRow(2l), AccountService.TWITTER_INDEX, AccountService.INDEXED_USER)));
+
+        InOrder order = inOrder(table, scanner);
+        order.verify(table).setAutoFlush(false);
+        order.verify(table, times(2)).put(any(Put.class));
+        order.verify(scanner).close();
+        order.verify(table).flushCommits();
+        order.verify(table).setAutoFlush(true);
+        assertEquals("The table should be back in the pool.", 0, tableFactory.getLeased());
+    }
+
+    @Test
+    public void testRebuildFails() throws IOException {
+        when(table.getScanner(any(Scan.class))).thenThrow(new IOException("down"));
+        try {
+            tool.rebuild();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        verify(table).setAutoFlush(true);
+        assertEquals(0, tableFactory.getLeased());
+    }
+
+    private static Result userRow(String id, long twitterId) {
+        return new Result(new KeyValue[]{new KeyValue(Bytes.toBytes(id), AccountService.FAMILY, AccountService.ID, 1l, Bytes.toBytes(twitterId))});
+    }
+}
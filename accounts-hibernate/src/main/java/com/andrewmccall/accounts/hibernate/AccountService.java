@@ -2,15 +2,20 @@ package com.andrewmccall.accounts.hibernate;
 
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UpsertResult;
+import com.andrewmccall.accounts.core.UserView;
 import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.hibernate.classic.Session;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.exception.ConstraintViolationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.*;
 
 /**
  * Account service implemented using Hibernate as the backing data store. 
@@ -19,8 +24,19 @@ import javax.annotation.Resource;
 @Transactional(readOnly = true)
 public class AccountService implements com.andrewmccall.accounts.core.AccountService<Long> {
 
-    private static final String TWITTER_QUERY = "from User as user where user.twitterId = :twitterId";
+    /**
+     * The query cache region twitterId lookups are cached in. twitterId is the User's natural id so the cached result is
+     * just the user's id, the user itself comes from the entity cache.
+     */
+    public static final String TWITTER_REGION = "com.andrewmccall.accounts.twitterId";
+
     private static final String USER_QUERY = "from User as user where user.username = :username";
+    private static final String USERS_QUERY = "from User as user where user.id in (:ids)";
+
+    /**
+     * The largest IN list sent in a single query, larger requests are split to stay under database limits.
+     */
+    private static final int MAX_IN_LIST = 500;
 
     @Resource
     private SessionFactory sessionFactory;
@@ -32,8 +48,13 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
             log.info("Created new instance of " + this.getClass().getName());
     }
 
+    /**
+     * Inserts the user in a single statement, a duplicate twitterId is caught by the unique constraint on the user
+     * table rather than looked up first. The session can't be used after a constraint violation so the transaction is
+     * rolled back when one happens.
+     */
     @Override
-    @Transactional(readOnly = false)
+    @Transactional(readOnly = false, rollbackFor = AccountsException.class)
     public void createUser(User user) throws AccountsException {
 
         if (log.isDebugEnabled())
@@ -44,11 +65,18 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         if (session.contains(user))
             throw new AccountsException("User exists.");
 
-        if (this.twitterIdExists(user.getTwitterId()))
-            throw new AccountsException("Twitter id exists.");
-
-        session.persist(user);
+        try {
+            session.persist(user);
+            // identity ids insert on persist, anything else waits for the flush, either way a violation shows up here.
+            session.flush();
+        } catch (ConstraintViolationException e) {
+            if (log.isDebugEnabled())
+                log.debug("Twitter id exists for user: " + user + " constraint: " + e.getConstraintName());
+            user.setId(null);
+            throw new AccountsException("Twitter id exists.", e);
+        }
 
+        user.clearDirty();
         if (log.isTraceEnabled())
             log.trace("User created with ID: " + user.getId());
 
@@ -66,6 +94,8 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         if (u != null) {
             if (log.isDebugEnabled())
                 log.debug("ID: " + id + " returned user: " + u);
+            // hibernate loads through the setters, the user matches its row.
+            u.clearDirty();
             return u;
         }
         if (log.isDebugEnabled())
@@ -86,6 +116,52 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         return getUser(Long.valueOf(idString));
     }
 
+    /**
+     * Always loads the full user, the profile is a single row and the entity cache holds whole users.
+     */
+    @Override
+    public User getUser(String idString, UserView view) throws AccountsException {
+        return getUser(idString);
+    }
+
+    /**
+     * Gets several users with a single IN query (one per 500 ids).
+     *
+     * @param ids the ids of the Users to get, duplicates are ignored.
+     * @return a map of id to User in the order the ids were given, missing ids are left out.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<Long, User<Long>> getUsers(Collection<Long> ids) throws AccountsException {
+        List<Long> unique = new ArrayList<Long>(new LinkedHashSet<Long>(ids));
+
+        if (log.isTraceEnabled())
+            log.trace("Getting users for ids: " + unique);
+
+        Session session = sessionFactory.getCurrentSession();
+        Map<Long, User<Long>> found = new HashMap<Long, User<Long>>(unique.size());
+        for (int i = 0; i < unique.size(); i += MAX_IN_LIST) {
+            Query q = session.createQuery(USERS_QUERY);
+            q.setParameterList("ids", unique.subList(i, Math.min(i + MAX_IN_LIST, unique.size())));
+            for (User<Long> user : (List<User<Long>>) q.list()) {
+                user.clearDirty();
+                found.put(user.getId(), user);
+            }
+        }
+
+        // the database returns rows in whatever order it likes, put them back in the order asked for.
+        Map<Long, User<Long>> users = new LinkedHashMap<Long, User<Long>>(found.size());
+        for (Long id : unique) {
+            User<Long> user = found.get(id);
+            if (user != null)
+                users.put(id, user);
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Found " + users.size() + " of " + unique.size() + " users.");
+        return users;
+    }
+
     @Override
     public boolean twitterIdExists(long twitterId) throws AccountsException {
         if (log.isTraceEnabled())
@@ -96,13 +172,70 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         return exists;
     }
 
+    /**
+     * Copies the fields changed since the user was loaded onto the persistent user, loading it if it isn't in the
+     * session. Reattaching a detached user would write every column from it, with dynamic-update the flush writes only
+     * the changed ones and a user that's only partly filled in doesn't blank the rest. A user that hasn't changed is
+     * skipped.
+     */
     @Override
     @Transactional(readOnly = false)
     public void update(User user) throws AccountsException {
+        if (!user.isDirty()) {
+            if (log.isDebugEnabled())
+                log.debug("Nothing changed, not updating user: " + user.getId());
+            return;
+        }
         if (log.isDebugEnabled())
             log.debug("Updating user: " + user);
         Session session = sessionFactory.getCurrentSession();
-        session.update(user);
+        User stored = (User) session.get(User.class, (Long) user.getId());
+        if (stored == null)
+            throw new AccountsException("No user could be found for id: " + user.getId());
+        // the flush at commit writes the changes.
+        if (stored != user)
+            stored.copyFields(user, user.getDirtyFields());
+        user.clearDirty();
+    }
+
+    /**
+     * Looks the user up with a single query and copies the profile onto it. The user is persistent so Hibernate's own
+     * dirty checking decides whether an UPDATE is needed when the transaction is flushed. If there's no user the profile
+     * is persisted as is. A concurrent upsert for the same twitterId that inserts first is caught by the unique
+     * constraint, as in createUser the transaction is rolled back and the caller can try again, finding that user.
+     *
+     * @param profile a user holding the twitterId and the profile to store, its id is ignored.
+     * @return the stored user and whether it was created or changed.
+     * @throws AccountsException if the user was created concurrently.
+     */
+    @Override
+    @Transactional(readOnly = false, rollbackFor = AccountsException.class)
+    public UpsertResult<Long> upsertForTwitterId(User<Long> profile) throws AccountsException {
+        User<Long> user = getUserForTwitterId(profile.getTwitterId());
+        if (user == null) {
+            if (log.isDebugEnabled())
+                log.debug("Twitter ID doesn't exist, creating new user: " + profile);
+            profile.setId(null);
+            Session session = sessionFactory.getCurrentSession();
+            try {
+                session.persist(profile);
+                session.flush();
+            } catch (ConstraintViolationException e) {
+                if (log.isDebugEnabled())
+                    log.debug("Twitter ID: " + profile.getTwitterId() + " was created concurrently, constraint: " + e.getConstraintName());
+                profile.setId(null);
+                throw new AccountsException("Twitter id exists.", e);
+            }
+            profile.clearDirty();
+            return new UpsertResult<Long>(profile, true, false);
+        }
+
+        boolean changed = user.copyProfile(profile);
+        if (log.isDebugEnabled())
+            log.debug("Twitter ID exists, user: " + user + " changed: " + changed);
+        // the flush at commit writes the changes.
+        user.clearDirty();
+        return new UpsertResult<Long>(user, false, changed);
     }
 
     @Override
@@ -114,15 +247,15 @@ public class AccountService implements com.andrewmccall.accounts.core.AccountSer
         if (log.isTraceEnabled())
             log.trace("got session" +session);
 
-        Query q = session.createQuery(TWITTER_QUERY);
-        q.setParameter("twitterId", twitterId);
-
-        if (log.isTraceEnabled())
-            log.trace("QUERY: " + q.toString());
-        
-        User user = (User) q.uniqueResult();
+        User user = (User) session.createCriteria(User.class)
+                .add(Restrictions.naturalId().set("twitterId", twitterId))
+                .setCacheable(true)
+                .setCacheRegion(TWITTER_REGION)
+                .uniqueResult();
         if (log.isDebugEnabled())
             log.debug("User for twitterId: " + twitterId + " returned: " + user);
+        if (user != null)
+            user.clearDirty();
         return user;
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hibernate;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.bulk.UserHandler;
+import org.hibernate.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.Resource;
+import java.util.Iterator;
+
+/**
+ * Bulk import and export for the Hibernate backend. Both directions use their own session, outside of any Spring
+ * transaction, with the second-level cache ignored so a bulk run doesn't flush out the users it's holding.
+ * <p/>
+ * Imports save batchSize users, flush them and clear the session before committing, so the session never holds more
+ * than one batch and a failure only loses the batch it happens in. Keep batchSize a multiple of hibernate.jdbc.batch_size
+ * so every flush fills whole JDBC batches. Inserts can't be batched when ids come from an identity column, on databases
+ * with sequences a sequence or hilo generator gets the full benefit. Duplicate twitterIds or usernames fail the batch.
+ * <p/>
+ * Exports scroll over the users in id order, clearing the session every batchSize users.
+ */
+@Repository
+public class BulkAccountStore implements com.andrewmccall.accounts.core.bulk.BulkAccountStore<Long> {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final String EXPORT_QUERY = "from User as user order by user.id";
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Resource
+    private SessionFactory sessionFactory;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    @Override
+    public long importUsers(Iterator<? extends User<?>> users) throws AccountsException {
+        long count = 0;
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            session.setCacheMode(CacheMode.IGNORE);
+            tx = session.beginTransaction();
+            while (users.hasNext()) {
+                User<?> from = users.next();
+                User<Long> user = new User<Long>();
+                user.setTwitterId(from.getTwitterId());
+                user.copyProfile(from);
+                session.save(user);
+
+                if (++count % batchSize == 0) {
+                    session.flush();
+                    session.clear();
+                    tx.commit();
+                    tx = session.beginTransaction();
+                    if (log.isInfoEnabled())
+                        log.info("Imported " + count + " users.");
+                }
+            }
+            session.flush();
+            tx.commit();
+            return count;
+        } catch (HibernateException e) {
+            rollback(tx);
+            throw new AccountsException("Import failed in the batch after " + (count - count % batchSize) + " users.", e);
+        } catch (RuntimeException e) {
+            rollback(tx);
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public long exportUsers(UserHandler<Long> handler) throws AccountsException {
+        long count = 0;
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            session.setCacheMode(CacheMode.IGNORE);
+            tx = session.beginTransaction();
+            ScrollableResults results = session.createQuery(EXPORT_QUERY)
+                    .setReadOnly(true)
+                    .setFetchSize(batchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    @SuppressWarnings({"unchecked"})
+                    User<Long> user = (User<Long>) results.get(0);
+                    handler.handle(user);
+                    if (++count % batchSize == 0) {
+                        session.clear();
+                        if (log.isInfoEnabled())
+                            log.info("Exported " + count + " users.");
+                    }
+                }
+            } finally {
+                results.close();
+            }
+            tx.commit();
+            return count;
+        } catch (HibernateException e) {
+            rollback(tx);
+            throw new AccountsException("Export failed after " + count + " users.", e);
+        } catch (AccountsException e) {
+            rollback(tx);
+            throw e;
+        } catch (RuntimeException e) {
+            rollback(tx);
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    private void rollback(Transaction tx) {
+        if (tx == null || !tx.isActive())
+            return;
+        try {
+            tx.rollback();
+        } catch (HibernateException e) {
+            if (log.isWarnEnabled())
+                log.warn("Rollback failed.", e);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of users saved between flushes, and read between clears.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes the second-level and query cache counters Hibernate keeps, per region. Only populated when
+ * hibernate.generate_statistics is on, which the accounts config does.
+ */
+@Service
+public class CacheStatistics {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Resource
+    private SessionFactory sessionFactory;
+
+    /**
+     * @return the names of every second-level cache region, including the query cache regions.
+     */
+    public String[] getRegionNames() {
+        return getStatistics().getSecondLevelCacheRegionNames();
+    }
+
+    /**
+     * @param region the region name.
+     * @return the number of lookups answered from the region.
+     */
+    public long getHitCount(String region) {
+        SecondLevelCacheStatistics stats = getRegionStatistics(region);
+        return stats == null ? 0 : stats.getHitCount();
+    }
+
+    /**
+     * @param region the region name.
+     * @return the number of lookups that went to the database.
+     */
+    public long getMissCount(String region) {
+        SecondLevelCacheStatistics stats = getRegionStatistics(region);
+        return stats == null ? 0 : stats.getMissCount();
+    }
+
+    /**
+     * @param region the region name.
+     * @return the number of entries written to the region.
+     */
+    public long getPutCount(String region) {
+        SecondLevelCacheStatistics stats = getRegionStatistics(region);
+        return stats == null ? 0 : stats.getPutCount();
+    }
+
+    /**
+     * @param region the region name.
+     * @return the number of entries currently held in memory.
+     */
+    public long getElementCountInMemory(String region) {
+        SecondLevelCacheStatistics stats = getRegionStatistics(region);
+        return stats == null ? 0 : stats.getElementCountInMemory();
+    }
+
+    /**
+     * @return hits / (hits + misses) over every region, 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        Statistics statistics = getStatistics();
+        long hits = statistics.getSecondLevelCacheHitCount();
+        long total = hits + statistics.getSecondLevelCacheMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return the statistics for every region keyed on the region name.
+     */
+    public Map<String, SecondLevelCacheStatistics> getRegionStatistics() {
+        Map<String, SecondLevelCacheStatistics> regions = new LinkedHashMap<String, SecondLevelCacheStatistics>();
+        for (String region : getRegionNames())
+            regions.put(region, getRegionStatistics(region));
+        return regions;
+    }
+
+    /**
+     * Writes hits, misses and puts for every region to the log at info.
+     */
+    public void logStatistics() {
+        if (!log.isInfoEnabled())
+            return;
+        for (Map.Entry<String, SecondLevelCacheStatistics> entry : getRegionStatistics().entrySet()) {
+            SecondLevelCacheStatistics stats = entry.getValue();
+            if (stats != null)
+                log.info("Region '" + entry.getKey() + "' hits: " + stats.getHitCount() + " misses: " + stats.getMissCount() + " puts: " + stats.getPutCount() + " in memory: " + stats.getElementCountInMemory());
+        }
+    }
+
+    /**
+     * Zeroes every counter Hibernate keeps, not just the cache ones.
+     */
+    public void clear() {
+        getStatistics().clear();
+    }
+
+    private SecondLevelCacheStatistics getRegionStatistics(String region) {
+        return getStatistics().getSecondLevelCacheStatistics(region);
+    }
+
+    private Statistics getStatistics() {
+        return sessionFactory.getStatistics();
+    }
+}
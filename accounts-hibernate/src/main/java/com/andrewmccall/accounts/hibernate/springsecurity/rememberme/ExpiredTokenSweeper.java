@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hibernate.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes remember-me tokens older than the token validity, RememberMeService refuses them anyway. Nothing else
+ * deletes them short of a cookie theft, so without this the rememberme table only grows.
+ * <p/>
+ * A sweep deletes in batches of up to batchSize tokens, each in its own transaction, so no delete holds its locks for
+ * long. A batch loads expired tokens through rememberme_date_idx and deletes them one by one, so only their entries
+ * leave the second-level cache, a bulk HQL delete would empty the whole RememberMeToken region. Batches are paused
+ * pauseMillis apart and a sweep stops after maxBatches, whatever's left waits for the next one.
+ * <p/>
+ * Revocations older than the token validity only cover expired cookies, they're deleted at the end of each sweep.
+ * <p/>
+ * Sweeps run every intervalSeconds on a thread of their own, the first one intervalSeconds after startup. Set it to 0
+ * to only sweep when {@link #sweep()} is called. The sweeper isn't picked up by the component scan, an application
+ * that wants it declares the bean, with the validity its RememberMeService uses:
+ * <pre>
+ * &lt;bean class="com.andrewmccall.accounts.hibernate.springsecurity.rememberme.ExpiredTokenSweeper"&gt;
+ *     &lt;property name="tokenValiditySeconds" value="1209600"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class ExpiredTokenSweeper {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_BATCHES = 100;
+    public static final long DEFAULT_PAUSE = 100;
+    public static final long DEFAULT_INTERVAL = 3600;
+
+    private static final String EXPIRED_QUERY = "from RememberMeToken as token where token.date < :cutoff";
+    private static final String DELETE_REVOCATIONS = "delete from RememberMeRevocation as revocation where revocation.date < :cutoff";
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Resource
+    private SessionFactory sessionFactory;
+
+    private int tokenValiditySeconds = AbstractRememberMeServices.TWO_WEEKS_S;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxBatches = DEFAULT_MAX_BATCHES;
+    private long pauseMillis = DEFAULT_PAUSE;
+    private long intervalSeconds = DEFAULT_INTERVAL;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong swept = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (intervalSeconds <= 0)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rememberme-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    // don't let one failure cancel every later sweep.
+                    if (log.isWarnEnabled())
+                        log.warn("Sweeping expired remember me tokens failed.", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        if (log.isInfoEnabled())
+            log.info("Sweeping remember me tokens older than " + tokenValiditySeconds + "s every " + intervalSeconds + "s.");
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Deletes expired tokens, at most maxBatches batches of them.
+     *
+     * @return the number of tokens deleted.
+     */
+    public int sweep() {
+        Date cutoff = new Date(System.currentTimeMillis() - tokenValiditySeconds * 1000L);
+        int deleted = 0;
+        for (int batch = 0; batch < maxBatches; batch++) {
+            if (batch > 0 && !pause())
+                break;
+            int count = delete(cutoff);
+            deleted += count;
+            if (count < batchSize)
+                break;
+        }
+        deleteRevocations(cutoff);
+        swept.addAndGet(deleted);
+        if (log.isInfoEnabled())
+            log.info("Deleted " + deleted + " remember me tokens older than " + cutoff);
+        return deleted;
+    }
+
+    /**
+     * Deletes up to batchSize expired tokens.
+     *
+     * @return the number deleted, fewer than batchSize once there are none left.
+     */
+    @SuppressWarnings("unchecked")
+    private int delete(Date cutoff) {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            List<RememberMeToken> expired = session.createQuery(EXPIRED_QUERY)
+                    .setParameter("cutoff", cutoff)
+                    .setMaxResults(batchSize)
+                    .list();
+            for (RememberMeToken token : expired)
+                session.delete(token);
+            tx.commit();
+            if (log.isDebugEnabled())
+                log.debug("Deleted a batch of " + expired.size() + " remember me tokens.");
+            return expired.size();
+        } catch (HibernateException e) {
+            if (tx != null && tx.isActive())
+                tx.rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    private void deleteRevocations(Date cutoff) {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            int deleted = session.createQuery(DELETE_REVOCATIONS).setParameter("cutoff", cutoff).executeUpdate();
+            tx.commit();
+            if (log.isDebugEnabled())
+                log.debug("Deleted " + deleted + " remember me revocations.");
+        } catch (HibernateException e) {
+            if (tx != null && tx.isActive())
+                tx.rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return false if interrupted, the sweep stops.
+     */
+    private boolean pause() {
+        if (pauseMillis <= 0)
+            return true;
+        try {
+            Thread.sleep(pauseMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param tokenValiditySeconds tokens older than this are deleted, the RememberMeService's tokenValiditySeconds.
+     */
+    public void setTokenValiditySeconds(int tokenValiditySeconds) {
+        this.tokenValiditySeconds = tokenValiditySeconds;
+    }
+
+    /**
+     * @param batchSize the most tokens each transaction deletes.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxBatches the most batches a sweep deletes.
+     */
+    public void setMaxBatches(int maxBatches) {
+        this.maxBatches = maxBatches;
+    }
+
+    /**
+     * @param pauseMillis the pause between batches.
+     */
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * @param intervalSeconds the time between sweeps, 0 or less not to schedule them. Set before start.
+     */
+    public void setIntervalSeconds(long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * @return the number of tokens deleted since startup.
+     */
+    public long getSweptCount() {
+        return swept.get();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.hibernate.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.User;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A row of the rememberme_revocation table, a revoked series or, with no series, all of a user's cookies up to date.
+ */
+public class RememberMeRevocation implements Serializable {
+
+    private static final long serialVersionUID = 4610833962730580361L;
+
+    private Long id;
+    private User user;
+    private String series;
+    private Date date;
+
+    public RememberMeRevocation() {
+    }
+
+    public RememberMeRevocation(User user, String series, Date date) {
+        this.user = user;
+        this.series = series;
+        this.date = date;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public String getSeries() {
+        return series;
+    }
+
+    public void setSeries(String series) {
+        this.series = series;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+}
@@ -1,30 +1,69 @@
 package com.andrewmccall.accounts.hibernate.springsecurity.rememberme;
 
 import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.UserTokenRepository;
 import com.andrewmccall.accounts.core.User;
 import com.andrewmccall.accounts.core.AccountsException;
 import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.hibernate.classic.Session;
+import org.hibernate.exception.ConstraintViolationException;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 /**
  * Hbase TokenRepository implementation.
  */
 @Repository
 @Transactional(readOnly = true)
-public class TokenRepository implements com.andrewmccall.accounts.core.springsecurity.rememberme.TokenRepository {
+public class TokenRepository implements UserTokenRepository {
+
+    /**
+     * Loads the token and its user with one join, the user is then in the session so token.getUser() doesn't go back
+     * to the database.
+     */
+    private static final String TOKEN_WITH_USER_QUERY = "select token, user from RememberMeToken as token, User as user " +
+            "where token.user = user and user.id = :userId and token.series = :series";
+
+    /**
+     * Only the user's id, so the users aren't loaded.
+     */
+    private static final String REVOCATIONS_QUERY = "select revocation.series, revocation.user.id, revocation.date " +
+            "from RememberMeRevocation as revocation where revocation.date > :since";
 
     private Logger log = LoggerFactory.getLogger(this.getClass());
 
     @Resource
     private SessionFactory sessionFactory;
 
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Runs createIfAbsent in a transaction of its own.
+     */
+    private TransactionTemplate newTransaction;
+
+    @PostConstruct
+    public void init() {
+        newTransaction = new TransactionTemplate(transactionManager);
+        newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
     @Override
     @Transactional(readOnly = false)
     public void create(RememberMeToken rememberMeToken) throws AccountsException {
@@ -33,6 +72,32 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
         //session.flush();
     }
 
+    /**
+     * Inserts the token straight away, the primary key on user and series rejects a series that's in use. The insert
+     * runs in a new transaction and session, committed on its own, which is all that's rolled back after a violation.
+     * A caller's transaction is suspended meanwhile, so it mustn't hold a lock on the user's row.
+     */
+    @Override
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public boolean createIfAbsent(final RememberMeToken rememberMeToken) throws AccountsException {
+        return newTransaction.execute(new TransactionCallback<Boolean>() {
+            public Boolean doInTransaction(TransactionStatus status) {
+                Session session = sessionFactory.getCurrentSession();
+                try {
+                    session.save(rememberMeToken);
+                    session.flush();
+                    return true;
+                } catch (ConstraintViolationException e) {
+                    if (log.isDebugEnabled())
+                        log.debug("Series in use for user: " + rememberMeToken.getUser().getId() + " constraint: " + e.getConstraintName());
+                    // the session can't be flushed again.
+                    status.setRollbackOnly();
+                    return false;
+                }
+            }
+        });
+    }
+
     @Override
     public boolean exists(String series, User user) throws AccountsException {
         boolean exists = (getToken(series, user) != null);
@@ -46,6 +111,26 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
         return (RememberMeToken) sessionFactory.getCurrentSession().get(RememberMeToken.class, new RememberMeToken(series, user));
     }
 
+    @Override
+    public RememberMeToken getTokenWithUser(String userId, String series) throws AccountsException {
+        Long id;
+        try {
+            id = Long.valueOf(userId);
+        } catch (NumberFormatException e) {
+            throw new AccountsException("Invalid id: " + userId, e);
+        }
+        Query query = sessionFactory.getCurrentSession().createQuery(TOKEN_WITH_USER_QUERY);
+        query.setParameter("userId", id);
+        query.setParameter("series", series);
+        Object[] row = (Object[]) query.uniqueResult();
+        if (row == null) {
+            if (log.isDebugEnabled())
+                log.debug("No user and token for id: " + userId + " series: " + series);
+            return null;
+        }
+        return (RememberMeToken) row[0];
+    }
+
     @Override
     @Transactional(readOnly = false)
     public void removeUserTokens(User user) {
@@ -61,6 +146,40 @@ public class TokenRepository implements com.andrewmccall.accounts.core.springsec
     @Override
     @Transactional(readOnly = false)
     public void update(RememberMeToken token) throws AccountsException {
-        sessionFactory.getCurrentSession().update(token);
+        // loaded rather than reattached: the token may be a new instance for a series that's already in the session or
+        // one that isn't stored, and its date is the version so a reattached token is checked against its new date.
+        Session session = sessionFactory.getCurrentSession();
+        RememberMeToken stored = (RememberMeToken) session.get(RememberMeToken.class, new RememberMeToken(token.getSeries(), token.getUser()));
+        if (stored == null) {
+            if (log.isDebugEnabled())
+                log.debug("No token for series: " + token.getSeries() + " storing it.");
+            session.save(token);
+        } else if (stored != token) {
+            // the date is set by hibernate when the change is flushed.
+            stored.setValue(token.getValue());
+        }
+    }
+
+    @Override
+    @Transactional(readOnly = false)
+    public void revoke(String series, User user) throws AccountsException {
+        if (log.isDebugEnabled())
+            log.debug("Revoking series: " + series + " for User: " + user);
+        sessionFactory.getCurrentSession().save(new RememberMeRevocation(user, series, new Date()));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<RememberMeToken> getRevocations(Date since) throws AccountsException {
+        Query query = sessionFactory.getCurrentSession().createQuery(REVOCATIONS_QUERY);
+        query.setParameter("since", since);
+        List<Object[]> rows = query.list();
+        List<RememberMeToken> revocations = new ArrayList<RememberMeToken>(rows.size());
+        for (Object[] row : rows) {
+            User<Long> user = new User<Long>();
+            user.setId((Long) row[1]);
+            revocations.add(new RememberMeToken((String) row[0], user, null, (Date) row[2]));
+        }
+        return revocations;
     }
 }
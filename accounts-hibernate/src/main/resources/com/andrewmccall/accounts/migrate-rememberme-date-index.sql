@@ -0,0 +1,9 @@
+-- Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+--
+-- Adds the index on rememberme.date to a schema created before accounts.hbm.xml declared it. hbm2ddl update never
+-- runs database-objects so this has to be run by hand, once.
+--
+-- ExpiredTokenSweeper uses the index to find and delete expired tokens a batch at a time, without it every batch scans
+-- the table.
+
+create index rememberme_date_idx on rememberme (date);
@@ -0,0 +1,15 @@
+-- Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+--
+-- Adds the unique constraint on user.twitterId to a schema created before accounts.hbm.xml declared it. hbm2ddl update
+-- never adds constraints to an existing table so this has to be run by hand, once. The constraint is left unnamed, as
+-- it is in the create table hbm2ddl generates, so the database names it the same way in both.
+--
+-- The constraint can't be added while duplicates exist, find them first with:
+--
+--   select twitterId, count(*) from user group by twitterId having count(*) > 1;
+--
+-- twitterId is indexed by its constraint, getUserForTwitterId no longer scans the table. username only gets an
+-- index, user_username_idx, which hbm2ddl update creates. A schema that had an earlier version of this script run
+-- against it has a unique user_username_key constraint on username that should be dropped.
+
+alter table user add unique (twitterId);
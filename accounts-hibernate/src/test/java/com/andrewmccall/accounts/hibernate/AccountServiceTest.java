@@ -1,11 +1,19 @@
 package com.andrewmccall.accounts.hibernate;
 
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.annotation.Transactional;
 import org.junit.runner.RunWith;
 
+import javax.annotation.Resource;
 import java.util.Random;
 
+import static org.junit.Assert.*;
+
 /**
  * Just runs the basic AccountService tests on a the JPA implementation to make sure it's working properly.
  */
@@ -15,8 +23,39 @@ public class AccountServiceTest extends com.andrewmccall.accounts.core.AccountSe
 
     Random r = new Random();
 
+    @Resource
+    SessionFactory sessionFactory;
+
     @Override
     public Long getId() {
         return r.nextLong();
     }
+
+    /**
+     * The core test's users stay in the session, here the stored user has to be loaded and only the changed column
+     * written.
+     */
+    @Test
+    @Transactional
+    public void testUpdateDetachedUser() throws AccountsException {
+        accountService.createUser(user);
+        sessionFactory.getCurrentSession().flush();
+        sessionFactory.getCurrentSession().clear();
+
+        User<Long> partial = new User<Long>();
+        partial.setId(user.getId());
+        partial.clearDirty();
+        partial.setBio("changed");
+        accountService.update(partial);
+        sessionFactory.getCurrentSession().flush();
+        sessionFactory.getCurrentSession().clear();
+
+        User<Long> ret = accountService.getUser(user.getId());
+        assertNotSame(user, ret);
+        assertEquals("changed", ret.getBio());
+        assertEquals("Columns that weren't changed should survive.", user.getName(), ret.getName());
+        assertEquals(user.getTwitterId(), ret.getTwitterId());
+        assertEquals(user.getUsername(), ret.getUsername());
+        assertEquals(user.getTimeZoneId(), ret.getTimeZoneId());
+    }
 }
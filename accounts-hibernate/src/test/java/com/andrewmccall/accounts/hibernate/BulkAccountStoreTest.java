@@ -0,0 +1,56 @@
+package com.andrewmccall.accounts.hibernate;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.bulk.UserHandler;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports more than one batch of users and checks they all come back out, with ids assigned.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/com/andrewmccall/accounts/accounts-hibernate-test-config.xml"})
+public class BulkAccountStoreTest {
+
+    @Resource
+    private BulkAccountStore bulkAccountStore;
+
+    @Resource
+    private com.andrewmccall.accounts.core.AccountService<Long> accountService;
+
+    @Test
+    public void testImportThenExport() throws Exception {
+        bulkAccountStore.setBatchSize(2);
+
+        List<User<String>> users = new ArrayList<User<String>>();
+        for (int i = 0; i < 5; i++) {
+            User<String> user = new User<String>();
+            RandomTestUtils.generateUser(user);
+            user.setId("ignored-" + i);
+            users.add(user);
+        }
+
+        assertEquals(5, bulkAccountStore.importUsers(users.iterator()));
+        for (User<String> user : users)
+            assertEquals(user.getName(), accountService.getUserForTwitterId(user.getTwitterId()).getName());
+
+        final Set<Long> exported = new HashSet<Long>();
+        bulkAccountStore.exportUsers(new UserHandler<Long>() {
+            public void handle(User<Long> user) throws AccountsException {
+                exported.add(user.getTwitterId());
+            }
+        });
+        for (User<String> user : users)
+            assertTrue("Every imported user should be exported.", exported.contains(user.getTwitterId()));
+    }
+}
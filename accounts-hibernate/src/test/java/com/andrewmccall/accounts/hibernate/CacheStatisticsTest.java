@@ -0,0 +1,73 @@
+package com.andrewmccall.accounts.hibernate;
+
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks users and twitterId lookups are served from the second-level cache once they've been loaded. Every call
+ * below runs in its own transaction, so a hit can only have come from the second-level cache.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/com/andrewmccall/accounts/accounts-hibernate-test-config.xml"})
+public class CacheStatisticsTest {
+
+    private static final String USER_REGION = User.class.getName();
+
+    @Resource
+    private com.andrewmccall.accounts.core.AccountService<Long> accountService;
+
+    @Resource
+    private CacheStatistics cacheStatistics;
+
+    @Test
+    public void testUserCached() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        long hits = cacheStatistics.getHitCount(USER_REGION);
+        User<Long> first = accountService.getUser(user.getId());
+        User<Long> second = accountService.getUser(user.getId());
+
+        assertEquals(user.getId(), first.getId());
+        assertEquals(user.getId(), second.getId());
+        assertTrue(cacheStatistics.getHitCount(USER_REGION) >= hits + 2);
+    }
+
+    @Test
+    public void testTwitterIdCached() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        accountService.getUserForTwitterId(user.getTwitterId());
+        long hits = cacheStatistics.getHitCount(AccountService.TWITTER_REGION);
+        User<Long> found = accountService.getUserForTwitterId(user.getTwitterId());
+
+        assertEquals(user.getId(), found.getId());
+        assertTrue(cacheStatistics.getHitCount(AccountService.TWITTER_REGION) > hits);
+    }
+
+    @Test
+    public void testUpdateInvalidates() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        accountService.getUser(user.getId());
+        user.setName("after");
+        accountService.update(user);
+
+        assertEquals("after", accountService.getUser(user.getId()).getName());
+        assertEquals("after", accountService.getUserForTwitterId(user.getTwitterId()).getName());
+    }
+}
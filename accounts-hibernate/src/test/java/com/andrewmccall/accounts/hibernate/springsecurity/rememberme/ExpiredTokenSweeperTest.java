@@ -0,0 +1,94 @@
+package com.andrewmccall.accounts.hibernate.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountService;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import org.apache.commons.lang.RandomStringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Not transactional, the sweeper uses its own sessions so the tokens have to be committed for it to see them.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/com/andrewmccall/accounts/accounts-hibernate-test-config.xml"})
+public class ExpiredTokenSweeperTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000l;
+
+    @Resource
+    private AccountService<Long> accountService;
+
+    @Resource
+    private com.andrewmccall.accounts.core.springsecurity.rememberme.TokenRepository tokenRepository;
+
+    @Resource
+    private ExpiredTokenSweeper expiredTokenSweeper;
+
+    @Resource
+    private SessionFactory sessionFactory;
+
+    @Test
+    public void testSweep() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        long now = System.currentTimeMillis();
+        RememberMeToken[] expired = new RememberMeToken[5];
+        for (int i = 0; i < expired.length; i++) {
+            expired[i] = token(user, new Date(now - (i + 2) * DAY));
+            tokenRepository.create(expired[i]);
+        }
+        RememberMeToken current = token(user, new Date(now));
+        tokenRepository.create(current);
+
+        expiredTokenSweeper.setTokenValiditySeconds(24 * 60 * 60);
+        expiredTokenSweeper.setBatchSize(2);
+        expiredTokenSweeper.setPauseMillis(0);
+
+        assertTrue("Every expired token should be deleted, over several batches.", expiredTokenSweeper.sweep() >= expired.length);
+
+        for (RememberMeToken token : expired)
+            assertFalse("The expired token should have been deleted.", tokenRepository.exists(token.getSeries(), user));
+        assertTrue("The current token should be left alone.", tokenRepository.exists(current.getSeries(), user));
+    }
+
+    @Test
+    public void testSweepKeepsCachedTokens() throws Exception {
+        User<Long> user = new User<Long>();
+        RandomTestUtils.generateUser(user);
+        accountService.createUser(user);
+
+        RememberMeToken current = token(user, new Date());
+        tokenRepository.create(current);
+        tokenRepository.create(token(user, new Date(System.currentTimeMillis() - 2 * DAY)));
+        // loaded once so it's cached whatever the insert did.
+        tokenRepository.getToken(current.getSeries(), user);
+
+        expiredTokenSweeper.setTokenValiditySeconds(24 * 60 * 60);
+        expiredTokenSweeper.setPauseMillis(0);
+        expiredTokenSweeper.sweep();
+
+        SecondLevelCacheStatistics cache = sessionFactory.getStatistics().getSecondLevelCacheStatistics(RememberMeToken.class.getName());
+        long hits = cache.getHitCount();
+        tokenRepository.getToken(current.getSeries(), user);
+        assertEquals("Only the expired tokens should leave the cache.", hits + 1, cache.getHitCount());
+    }
+
+    private static RememberMeToken token(User<Long> user, Date date) {
+        return new RememberMeToken(RandomStringUtils.randomAlphanumeric(16), user, RandomStringUtils.randomAlphanumeric(16), date);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.UpsertResult;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.UserView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps users in memory, for edge nodes that don't need them to outlive the JVM, as a test double, and as a baseline
+ * for the benchmarks.
+ * <p/>
+ * Users are held in a map by id with indexes from twitterId and username to the id. Reads never lock. Writes lock the
+ * stripe for the twitterId they touch, so that creating, upserting and changing a twitterId can check and claim it
+ * atomically while writes for other twitterIds go ahead in parallel. Users are copied on the way in and out, so
+ * changing a user you've been given doesn't change the stored one until you update it.
+ * <p/>
+ * twitterIds are unique, usernames aren't: as with the other stores a username can be held by a user that gave it up
+ * on twitter and by the user that took it, until the first logs in again.
+ */
+@Repository
+public class AccountService implements com.andrewmccall.accounts.core.AccountService<Long> {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final ConcurrentMap<Long, User<Long>> users = new ConcurrentHashMap<Long, User<Long>>();
+    private final ConcurrentMap<Long, Long> byTwitterId = new ConcurrentHashMap<Long, Long>();
+    /**
+     * username + USERNAME_SEPARATOR + the zero padded id, so a username's ids are a range sorted by id.
+     */
+    private final ConcurrentSkipListSet<String> byUsername = new ConcurrentSkipListSet<String>();
+
+    private static final char USERNAME_SEPARATOR = '\0';
+
+    private final Object[] locks;
+
+    public AccountService() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes the number of locks writes are spread over.
+     */
+    public AccountService(int stripes) {
+        locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++)
+            locks[i] = new Object();
+    }
+
+    @Override
+    public void createUser(User<Long> user) throws AccountsException {
+        synchronized (lockFor(user.getTwitterId())) {
+            if (byTwitterId.containsKey(user.getTwitterId()))
+                throw new AccountsException("TwitterId '" + user.getTwitterId() + "' already in use.");
+            user.setId(ids.incrementAndGet());
+            store(null, copy(user));
+            user.clearDirty();
+        }
+        if (log.isDebugEnabled())
+            log.debug("Created user: " + user);
+    }
+
+    @Override
+    public User<Long> getUser(Long id) throws AccountsException {
+        User<Long> user = id == null ? null : users.get(id);
+        if (user == null)
+            throw new AccountsException("No user could be found for id: " + id);
+        return copy(user);
+    }
+
+    @Override
+    public User<Long> getUser(String idString) throws AccountsException {
+        try {
+            return getUser(Long.valueOf(idString));
+        } catch (NumberFormatException e) {
+            throw new AccountsException("Invalid id: " + idString, e);
+        }
+    }
+
+    /**
+     * Always returns the full user, there's nothing to save by copying less of it.
+     */
+    @Override
+    public User<Long> getUser(String idString, UserView view) throws AccountsException {
+        return getUser(idString);
+    }
+
+    @Override
+    public Map<Long, User<Long>> getUsers(Collection<Long> ids) throws AccountsException {
+        Map<Long, User<Long>> found = new LinkedHashMap<Long, User<Long>>();
+        for (Long id : ids) {
+            User<Long> user = id == null ? null : users.get(id);
+            if (user != null)
+                found.put(id, copy(user));
+        }
+        return found;
+    }
+
+    @Override
+    public boolean twitterIdExists(long twitterId) throws AccountsException {
+        return byTwitterId.containsKey(twitterId);
+    }
+
+    @Override
+    public void update(User<Long> user) throws AccountsException {
+        if (user.getId() == null)
+            throw new AccountsException("Can't update a user without an id.");
+        if (!user.isDirty()) {
+            if (log.isDebugEnabled())
+                log.debug("Nothing changed, not updating user: " + user.getId());
+            return;
+        }
+        while (true) {
+            User<Long> existing = users.get(user.getId());
+            if (existing == null)
+                throw new AccountsException("No user could be found for id: " + user.getId());
+            // only the changed fields are taken from the user, the rest of it may never have been loaded.
+            User<Long> updated = copy(existing);
+            updated.copyFields(user, user.getDirtyFields());
+
+            // lock both twitterIds' stripes, always in the same order so two updates can't deadlock.
+            Object a = lockFor(existing.getTwitterId());
+            Object b = lockFor(updated.getTwitterId());
+            if (stripe(existing.getTwitterId()) > stripe(updated.getTwitterId())) {
+                Object t = a;
+                a = b;
+                b = t;
+            }
+            synchronized (a) {
+                synchronized (b) {
+                    if (users.get(user.getId()) != existing)
+                        continue; // changed while we were locking, the twitterId we locked may be the wrong one.
+
+                    if (existing.getTwitterId() != updated.getTwitterId() && byTwitterId.containsKey(updated.getTwitterId()))
+                        throw new AccountsException("TwitterId '" + updated.getTwitterId() + "' already in use.");
+                    updated.clearDirty();
+                    store(existing, updated);
+                    user.clearDirty();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public User<Long> getUserForTwitterId(long twitterId) throws AccountsException {
+        Long id = byTwitterId.get(twitterId);
+        User<Long> user = id == null ? null : users.get(id);
+        return user == null ? null : copy(user);
+    }
+
+    /**
+     * @param username the username.
+     * @return the user with the username, the most recently created one if more than one has it, null if none do.
+     */
+    public User<Long> getUserForUsername(String username) {
+        if (username == null)
+            return null;
+        // a user can be removed from the index between reading it and looking them up, try the next newest.
+        for (String key : byUsername.subSet(username + USERNAME_SEPARATOR, username + (char) (USERNAME_SEPARATOR + 1)).descendingSet()) {
+            User<Long> user = users.get(Long.valueOf(key.substring(username.length() + 1)));
+            if (user != null && username.equals(user.getUsername()))
+                return copy(user);
+        }
+        return null;
+    }
+
+    @Override
+    public UpsertResult<Long> upsertForTwitterId(User<Long> profile) throws AccountsException {
+        synchronized (lockFor(profile.getTwitterId())) {
+            Long id = byTwitterId.get(profile.getTwitterId());
+            if (id == null) {
+                profile.setId(ids.incrementAndGet());
+                store(null, copy(profile));
+                profile.clearDirty();
+                return new UpsertResult<Long>(profile, true, false);
+            }
+
+            User<Long> existing = users.get(id);
+            User<Long> user = copy(existing);
+            boolean changed = user.copyProfile(profile);
+            if (changed)
+                store(existing, copy(user));
+            user.clearDirty();
+            return new UpsertResult<Long>(user, false, changed);
+        }
+    }
+
+    /**
+     * Stores a user and moves the indexes over from the version it replaces. Callers hold the twitterId stripe locks.
+     */
+    private void store(User<Long> previous, User<Long> user) {
+        Long id = user.getId();
+        users.put(id, user);
+        byTwitterId.put(user.getTwitterId(), id);
+        if (user.getUsername() != null)
+            byUsername.add(usernameKey(user.getUsername(), id));
+
+        if (previous != null) {
+            if (previous.getTwitterId() != user.getTwitterId())
+                byTwitterId.remove(previous.getTwitterId(), id);
+            if (previous.getUsername() != null && !previous.getUsername().equals(user.getUsername()))
+                byUsername.remove(usernameKey(previous.getUsername(), id));
+        }
+    }
+
+    private static String usernameKey(String username, Long id) {
+        return username + USERNAME_SEPARATOR + String.format("%019d", id);
+    }
+
+    private int stripe(long twitterId) {
+        int hash = (int) (twitterId ^ (twitterId >>> 32));
+        return (hash & 0x7fffffff) % locks.length;
+    }
+
+    private Object lockFor(long twitterId) {
+        return locks[stripe(twitterId)];
+    }
+
+    private static User<Long> copy(User<Long> user) {
+        User<Long> copy = new User<Long>();
+        copy.setId(user.getId());
+        copy.setTwitterId(user.getTwitterId());
+        copy.copyProfile(user);
+        copy.clearDirty();
+        return copy;
+    }
+
+    /**
+     * @return a live view of the stored users, for BulkAccountStore. Callers must copy a user before handing it out.
+     */
+    Collection<User<Long>> users() {
+        return users.values();
+    }
+
+    /**
+     * @return the number of users stored.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Forgets every user.
+     */
+    public void clear() {
+        users.clear();
+        byTwitterId.clear();
+        byUsername.clear();
+    }
+}
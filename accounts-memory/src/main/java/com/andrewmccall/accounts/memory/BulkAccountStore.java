@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.bulk.UserHandler;
+import com.andrewmccall.accounts.core.cache.CachingAccountService;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.Resource;
+import java.util.Iterator;
+
+/**
+ * Bulk import and export for the in-memory AccountService. There's nothing to batch, imports go through createUser so
+ * a twitterId that's already stored fails the import. If the accountService bean is wrapped in a CachingAccountService
+ * the imports go through the cache too, exports read the in-memory service underneath it.
+ */
+@Repository
+public class BulkAccountStore implements com.andrewmccall.accounts.core.bulk.BulkAccountStore<Long> {
+
+    @Resource
+    private com.andrewmccall.accounts.core.AccountService<Long> accountService;
+
+    @Override
+    public long importUsers(Iterator<? extends User<?>> users) throws AccountsException {
+        long count = 0;
+        while (users.hasNext()) {
+            User<?> from = users.next();
+            User<Long> user = new User<Long>();
+            user.setTwitterId(from.getTwitterId());
+            user.copyProfile(from);
+            accountService.createUser(user);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long exportUsers(UserHandler<Long> handler) throws AccountsException {
+        long count = 0;
+        for (User<Long> user : getAccountService().users()) {
+            User<Long> copy = new User<Long>();
+            copy.setId(user.getId());
+            copy.setTwitterId(user.getTwitterId());
+            copy.copyProfile(user);
+            handler.handle(copy);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the in-memory AccountService, unwrapped from the cache if there is one.
+     */
+    private AccountService getAccountService() {
+        com.andrewmccall.accounts.core.AccountService<Long> service = accountService;
+        if (service instanceof CachingAccountService)
+            service = ((CachingAccountService<Long>) service).getDelegate();
+        return (AccountService) service;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory.oauth;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.oauth.AccessToken;
+import com.andrewmccall.oauth.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory AccessTokenStore. Only the secret and value are kept, like the other stores the token handed back is a
+ * new one of the type the service's oauth version uses.
+ */
+@Repository
+public class AccessTokenStore implements com.andrewmccall.accounts.core.oauth.AccessTokenStore {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final ConcurrentMap<String, String[]> tokens = new ConcurrentHashMap<String, String[]>();
+
+    @Override
+    public AccessToken getToken(User user, Service service) {
+        AccessToken token = newToken(service);
+        String[] stored = tokens.get(key(user, service));
+        if (stored == null)
+            return null;
+        token.setSecret(stored[0]);
+        token.setValue(stored[1]);
+        token.setService(service);
+        return token;
+    }
+
+    @Override
+    public void storeToken(AccessToken accessToken, User user) {
+        if (log.isTraceEnabled())
+            log.trace("Storing OAuthToken: " + accessToken + " for user: " + user);
+        Service service = accessToken.getService();
+        // fail the same way for an unknown service type whether or not there's a token stored.
+        newToken(service);
+        tokens.put(key(user, service), new String[]{accessToken.getSecret(), accessToken.getValue()});
+    }
+
+    private static AccessToken newToken(Service service) {
+        if (service instanceof com.andrewmccall.oauth.oauth_2_0.Service)
+            return new com.andrewmccall.oauth.oauth_2_0.AccessToken();
+        else if (service instanceof com.andrewmccall.oauth.oauth_1_0.Service)
+            return new com.andrewmccall.oauth.oauth_1_0.AccessToken();
+        else throw new IllegalArgumentException("Service is wrong type.");
+    }
+
+    private static String key(User user, Service service) {
+        return user.getId() + ":" + service.getId();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.web.authentication.rememberme.AbstractRememberMeServices;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory TokenRepository, each user's tokens are kept in their own map by series so removing them is one remove.
+ * Tokens are copied on the way in and out. Revocations are kept in the order they're made and dropped from the head
+ * once they're older than tokenValiditySeconds, by then the cookies they revoke have expired.
+ */
+@Repository
+public class TokenRepository implements com.andrewmccall.accounts.core.springsecurity.rememberme.TokenRepository {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final ConcurrentMap<Object, ConcurrentMap<String, RememberMeToken>> tokens = new ConcurrentHashMap<Object, ConcurrentMap<String, RememberMeToken>>();
+
+    private final ConcurrentLinkedQueue<RememberMeToken> revocations = new ConcurrentLinkedQueue<RememberMeToken>();
+
+    private int tokenValiditySeconds = AbstractRememberMeServices.TWO_WEEKS_S;
+
+    @Override
+    public void create(RememberMeToken rememberMeToken) throws AccountsException {
+        tokensFor(rememberMeToken.getUser(), true).put(rememberMeToken.getSeries(), copy(rememberMeToken));
+    }
+
+    @Override
+    public boolean createIfAbsent(RememberMeToken rememberMeToken) throws AccountsException {
+        return tokensFor(rememberMeToken.getUser(), true).putIfAbsent(rememberMeToken.getSeries(), copy(rememberMeToken)) == null;
+    }
+
+    @Override
+    public boolean exists(String series, User user) throws AccountsException {
+        ConcurrentMap<String, RememberMeToken> userTokens = tokensFor(user, false);
+        return userTokens != null && userTokens.containsKey(series);
+    }
+
+    @Override
+    public RememberMeToken getToken(String series, User user) throws AccountsException {
+        ConcurrentMap<String, RememberMeToken> userTokens = tokensFor(user, false);
+        return userTokens == null ? null : copy(userTokens.get(series));
+    }
+
+    @Override
+    public void removeUserTokens(User user) {
+        if (log.isDebugEnabled())
+            log.debug("Removing all tokens for User: " + user);
+        tokens.remove(user.getId());
+    }
+
+    /**
+     * Stores the token over the user's one for the series, or as a new one if they don't have it.
+     */
+    @Override
+    public void update(RememberMeToken token) throws AccountsException {
+        tokensFor(token.getUser(), true).put(token.getSeries(), copy(token));
+    }
+
+    @Override
+    public void revoke(String series, User user) throws AccountsException {
+        User revoked = new User();
+        revoked.setId(user.getId());
+        revocations.add(new RememberMeToken(series, revoked, null, new Date()));
+        dropExpiredRevocations();
+    }
+
+    @Override
+    public List<RememberMeToken> getRevocations(Date since) throws AccountsException {
+        dropExpiredRevocations();
+        List<RememberMeToken> after = new ArrayList<RememberMeToken>();
+        for (RememberMeToken revocation : revocations) {
+            if (revocation.getDate().after(since))
+                after.add(copy(revocation));
+        }
+        return after;
+    }
+
+    private void dropExpiredRevocations() {
+        long oldest = System.currentTimeMillis() - tokenValiditySeconds * 1000l;
+        RememberMeToken head;
+        // remove rather than poll, another thread may have dropped the head already.
+        while ((head = revocations.peek()) != null && head.getDate().getTime() < oldest)
+            revocations.remove(head);
+    }
+
+    public int getTokenValiditySeconds() {
+        return tokenValiditySeconds;
+    }
+
+    /**
+     * @param tokenValiditySeconds revocations older than this are dropped, the RememberMeService's tokenValiditySeconds.
+     */
+    public void setTokenValiditySeconds(int tokenValiditySeconds) {
+        this.tokenValiditySeconds = tokenValiditySeconds;
+    }
+
+    private ConcurrentMap<String, RememberMeToken> tokensFor(User user, boolean create) {
+        ConcurrentMap<String, RememberMeToken> userTokens = tokens.get(user.getId());
+        if (userTokens == null && create) {
+            userTokens = new ConcurrentHashMap<String, RememberMeToken>();
+            ConcurrentMap<String, RememberMeToken> existing = tokens.putIfAbsent(user.getId(), userTokens);
+            if (existing != null)
+                userTokens = existing;
+        }
+        return userTokens;
+    }
+
+    private static RememberMeToken copy(RememberMeToken token) {
+        if (token == null)
+            return null;
+        return new RememberMeToken(token.getSeries(), token.getUser(), token.getValue(), token.getDate());
+    }
+}
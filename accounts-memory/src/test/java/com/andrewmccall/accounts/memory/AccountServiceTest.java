@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory;
+
+import com.andrewmccall.accounts.core.AccountsException;
+import com.andrewmccall.accounts.core.RandomTestUtils;
+import com.andrewmccall.accounts.core.User;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the basic AccountService tests against the in-memory implementation.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/com/andrewmccall/accounts/accounts-memory-test-config.xml"})
+public class AccountServiceTest extends com.andrewmccall.accounts.core.AccountServiceTest<Long> {
+
+    Random r = new Random();
+
+    @Override
+    public Long getId() {
+        return r.nextLong();
+    }
+
+    @Test
+    public void testGetUserForSharedUsername() throws AccountsException {
+        AccountService memory = (AccountService) accountService;
+        String username = user.getUsername();
+        accountService.createUser(user);
+        assertEquals(user.getId(), memory.getUserForUsername(user.getUsername()).getId());
+
+        User<Long> other = new User<Long>();
+        RandomTestUtils.generateUser(other);
+        other.setUsername(user.getUsername());
+        accountService.createUser(other);
+        assertEquals("The newest user with the username.", other.getId(), memory.getUserForUsername(user.getUsername()).getId());
+
+        // the other user moves on, the first still has the username.
+        other.setUsername(user.getUsername() + "renamed");
+        accountService.update(other);
+        assertEquals(user.getId(), memory.getUserForUsername(user.getUsername()).getId());
+        assertEquals(other.getId(), memory.getUserForUsername(other.getUsername()).getId());
+
+        user.setUsername(null);
+        accountService.update(user);
+        assertNull(memory.getUserForUsername(username));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010. Andrew McCall [andrew@andrewmccall.com] - All Rights Reserved.
+ *
+ * Unless explicitly stated otherwise, all rights are owned by or controlled by Andrew McCall.
+ *
+ * Except as otherwise expressly permitted under copyright law the content not be copied, reproduced,
+ * republished, downloaded, posted, broadcast or transmitted in any way without first obtaining Andrew
+ * McCall's written permission or that of the copyright owner.
+ */
+
+package com.andrewmccall.accounts.memory.springsecurity.rememberme;
+
+import com.andrewmccall.accounts.core.User;
+import com.andrewmccall.accounts.core.springsecurity.rememberme.RememberMeToken;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collection;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/com/andrewmccall/accounts/accounts-memory-test-config.xml"})
+public class TokenRepositoryTest extends com.andrewmccall.accounts.core.springsecurity.rememberme.TokenRepositoryTest {
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testExpiredRevocationsDropped() throws Exception {
+        TokenRepository tokenRepository = new TokenRepository();
+        tokenRepository.setTokenValiditySeconds(60);
+        User<Long> user = new User<Long>();
+        user.setId(1l);
+
+        Collection<RememberMeToken> revocations = (Collection<RememberMeToken>) ReflectionTestUtils.getField(tokenRepository, "revocations");
+        revocations.add(new RememberMeToken("expired", user, null, new Date(System.currentTimeMillis() - 61000)));
+        tokenRepository.revoke("current", user);
+
+        assertEquals(1, revocations.size());
+        assertEquals("current", tokenRepository.getRevocations(new Date(0)).get(0).getSeries());
+    }
+}